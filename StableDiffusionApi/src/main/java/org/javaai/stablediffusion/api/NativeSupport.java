@@ -0,0 +1,45 @@
+package org.javaai.stablediffusion.api;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks optional native entry points which are missing from the loaded sd-jni
+ * library. <br>
+ * Older sd-jni binaries only export the original entry points, callers probe an
+ * optional entry point once, and fall back to the plain implementation after
+ * the first {@link UnsatisfiedLinkError}.
+ */
+class NativeSupport {
+
+	private final static Logger logger = Logger.getLogger(NativeSupport.class.getName());
+
+	private static final Set<String> unavailable = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * 
+	 * @param entryPoint name of the native method.
+	 * @return false if a previous call of this entry point failed to link.
+	 */
+	static boolean isAvailable(String entryPoint) {
+		return !unavailable.contains(entryPoint);
+	}
+
+	/**
+	 * Remember that the native method is not exported by the loaded library, log
+	 * it only once.
+	 * 
+	 * @param entryPoint name of the native method.
+	 * @param error      the link error.
+	 */
+	static void markUnavailable(String entryPoint, UnsatisfiedLinkError error) {
+		if (unavailable.add(entryPoint)) {
+			logger.log(Level.WARNING, "Native entry point \"{0}\" is not available in the loaded sd-jni library, "
+					+ "falling back to the compatible implementation.", entryPoint);
+			logger.log(Level.FINEST, "Link error of native entry point \"" + entryPoint + "\".", error);
+		}
+	}
+
+}
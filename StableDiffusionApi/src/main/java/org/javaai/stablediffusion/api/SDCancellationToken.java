@@ -0,0 +1,34 @@
+package org.javaai.stablediffusion.api;
+
+/**
+ * Cooperative cancellation of a running request, the native sampler checks the token between steps 
+ * and aborts the request once it is cancelled. Thread safe. 
+ */
+public class SDCancellationToken {
+	
+	
+	private volatile boolean cancelled = false;
+	
+	
+	public void cancel() {
+		cancelled = true;
+	}
+	
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	
+	/**
+	 * 
+	 * @throws StableDiffusionCancelledException if cancelled. 
+	 */
+	public void throwIfCancelled() {
+		if (cancelled) {
+			throw new StableDiffusionCancelledException("Request cancelled. ");
+		}
+	}
+	
+
+}
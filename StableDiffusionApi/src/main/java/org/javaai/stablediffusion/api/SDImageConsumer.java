@@ -0,0 +1,20 @@
+package org.javaai.stablediffusion.api;
+
+@FunctionalInterface
+public interface SDImageConsumer<P, I> {
+	
+	
+	
+	/**
+	 * Called once per image as soon as it is decoded, on the thread running the request. 
+	 * The next image is not produced before this method returns. 
+	 * 
+	 * @param params params of this image, seed is the seed of this image. 
+	 * @param index index of this image in the batch, starting at 0. 
+	 * @param image pixels of this image. 
+	 */
+	public void onImage(P params, int index, I image);
+	
+	
+
+}
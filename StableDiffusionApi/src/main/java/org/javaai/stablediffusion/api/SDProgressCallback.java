@@ -0,0 +1,18 @@
+package org.javaai.stablediffusion.api;
+
+public interface SDProgressCallback {
+	
+	
+	
+	/**
+	 * Called by the native sampler after every sampling step, on the thread running the request. 
+	 * 
+	 * @param step current step, starting at 1. 
+	 * @param steps total steps of the sampling. 
+	 * @param time seconds spent on this step. 
+	 */
+	public void onSDProgress(int step, int steps, float time);
+	
+	
+
+}
@@ -0,0 +1,73 @@
+package org.javaai.stablediffusion.api;
+
+/**
+ * Optional per request settings. 
+ */
+public class SDRequestOptions {
+	
+	private SDProgressCallback progressCallback;
+	private SDCancellationToken cancellationToken;
+	private SDVaeTiling vaeTiling;
+	
+	
+	public SDRequestOptions() {
+		super();
+	}
+	
+	
+	public SDRequestOptions(SDProgressCallback progressCallback, SDCancellationToken cancellationToken) {
+		super();
+		this.progressCallback = progressCallback;
+		this.cancellationToken = cancellationToken;
+	}
+	
+	
+	/**
+	 * 
+	 * @return shallow copy of this options. 
+	 */
+	public SDRequestOptions copy() {
+		SDRequestOptions copy = new SDRequestOptions();
+		copy.progressCallback = progressCallback;
+		copy.cancellationToken = cancellationToken;
+		copy.vaeTiling = vaeTiling;
+		return copy;
+	}
+	
+	
+	public SDProgressCallback getProgressCallback() {
+		return progressCallback;
+	}
+	/**
+	 * 
+	 * @param progressCallback Nullable, called after every sampling step. 
+	 */
+	public void setProgressCallback(SDProgressCallback progressCallback) {
+		this.progressCallback = progressCallback;
+	}
+	public SDCancellationToken getCancellationToken() {
+		return cancellationToken;
+	}
+	/**
+	 * 
+	 * @param cancellationToken Nullable, aborts the request once cancelled. 
+	 */
+	public void setCancellationToken(SDCancellationToken cancellationToken) {
+		this.cancellationToken = cancellationToken;
+	}
+	public SDVaeTiling getVaeTiling() {
+		return vaeTiling;
+	}
+	/**
+	 * 
+	 * @param vaeTiling Nullable, VAE tiling of this request, default is chosen by the policy of the instance, 
+	 * see {@link StableDiffusion#setVaeTilingPolicy(SDVaeTilingPolicy)}. 
+	 */
+	public void setVaeTiling(SDVaeTiling vaeTiling) {
+		this.vaeTiling = vaeTiling;
+	}
+	
+	
+	
+
+}
@@ -0,0 +1,100 @@
+package org.javaai.stablediffusion.api;
+
+/**
+ * VAE tiling of one request: whether the VAE encodes and decodes the image by tiles, which bounds its memory 
+ * at the cost of speed, and the size and overlap of the tiles. Immutable. 
+ */
+public class SDVaeTiling {
+	
+	
+	/**
+	 * Tile size of the native default, in pixels. 
+	 */
+	public static final int DEFAULT_TILE_SIZE = 256;
+	
+	/**
+	 * Overlap of the native default, as a fraction of the tile size. 
+	 */
+	public static final float DEFAULT_OVERLAP = 0.5f;
+	
+	public static final SDVaeTiling DISABLED = new SDVaeTiling(false, DEFAULT_TILE_SIZE, DEFAULT_OVERLAP);
+	
+	public static final SDVaeTiling ENABLED = new SDVaeTiling(true, DEFAULT_TILE_SIZE, DEFAULT_OVERLAP);
+	
+	
+	private final boolean enabled;
+	
+	private final int tileSize;
+	
+	private final float overlap;
+	
+	
+	private SDVaeTiling(boolean enabled, int tileSize, float overlap) {
+		this.enabled = enabled;
+		this.tileSize = tileSize;
+		this.overlap = overlap;
+	}
+	
+	
+	/**
+	 * 
+	 * @param tileSize tile width and height in pixels, multiple of 8. 
+	 * @param overlap fraction of the tile size shared by neighbour tiles, from 0 to 0.5. 
+	 * @return enabled tiling. 
+	 */
+	public static SDVaeTiling enabled(int tileSize, float overlap) {
+		
+		if (tileSize < 8 || tileSize % 8 != 0) {
+			throw new IllegalArgumentException("Argument tileSize must be a multiple of 8: " + tileSize);
+		}
+		
+		if (!(overlap >= 0 && overlap <= 0.5f)) {
+			throw new IllegalArgumentException("Argument overlap must be between 0 and 0.5: " + overlap);
+		}
+		
+		return new SDVaeTiling(true, tileSize, overlap);
+	}
+	
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	
+	public int getTileSize() {
+		return tileSize;
+	}
+	
+	
+	public float getOverlap() {
+		return overlap;
+	}
+	
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof SDVaeTiling)) {
+			return false;
+		}
+		SDVaeTiling other = (SDVaeTiling) obj;
+		return enabled == other.enabled && tileSize == other.tileSize 
+				&& Float.floatToIntBits(overlap) == Float.floatToIntBits(other.overlap);
+	}
+	
+	
+	@Override
+	public int hashCode() {
+		return (Boolean.hashCode(enabled) * 31 + tileSize) * 31 + Float.floatToIntBits(overlap);
+	}
+	
+	
+	@Override
+	public String toString() {
+		return enabled ? "SDVaeTiling [tileSize=" + tileSize + ", overlap=" + overlap + "]" : "SDVaeTiling [disabled]";
+	}
+	
+
+}
@@ -0,0 +1,49 @@
+package org.javaai.stablediffusion.api;
+
+/**
+ * Chooses the VAE tiling of requests which do not set one in {@link SDRequestOptions#setVaeTiling(SDVaeTiling)}, 
+ * see {@link StableDiffusion#setVaeTilingPolicy(SDVaeTilingPolicy)}. 
+ */
+@FunctionalInterface
+public interface SDVaeTilingPolicy {
+	
+	
+	/**
+	 * Rough native memory of an untiled VAE pass, per pixel of the image. 
+	 */
+	public static final long UNTILED_VAE_BYTES_PER_PIXEL = 6400L;
+	
+	
+	/**
+	 * 
+	 * @param width width of the image. 
+	 * @param height height of the image. 
+	 * @return NotNull 
+	 */
+	public SDVaeTiling choose(int width, int height);
+	
+	
+	/**
+	 * Tile images larger than maxUntiledPixels, or whose untiled VAE pass would not fit memoryBudgetBytes, 
+	 * so small images keep the fast untiled VAE and large ones do not run out of memory. 
+	 * 
+	 * @param maxUntiledPixels largest width * height decoded without tiling. 
+	 * @param memoryBudgetBytes native memory the VAE may use, 0 or less for no budget. 
+	 * @param tiling NotNull, enabled tiling of large images, like {@link SDVaeTiling#ENABLED}. 
+	 * @return 
+	 */
+	public static SDVaeTilingPolicy auto(long maxUntiledPixels, long memoryBudgetBytes, SDVaeTiling tiling) {
+		
+		if (tiling == null || !tiling.isEnabled()) {
+			throw new IllegalArgumentException("Argument tiling must be an enabled tiling. ");
+		}
+		
+		return (width, height) -> {
+			long pixels = (long) width * height;
+			boolean overBudget = memoryBudgetBytes > 0 && pixels * UNTILED_VAE_BYTES_PER_PIXEL > memoryBudgetBytes;
+			return pixels > maxUntiledPixels || overBudget ? tiling : SDVaeTiling.DISABLED;
+		};
+	}
+	
+
+}
@@ -1,23 +1,85 @@
 package org.javaai.stablediffusion.api;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import org.apache.commons.lang3.StringUtils;
+import org.javaai.stablediffusion.api.concurrent.LazyComponent;
+import org.javaai.stablediffusion.api.concurrent.StableDiffusionExecutors;
 import org.javaai.stablediffusion.api.enums.GGML_type;
 import org.javaai.stablediffusion.api.enums.RNGType;
 import org.javaai.stablediffusion.api.enums.SampleMethod;
 import org.javaai.stablediffusion.api.enums.Schedule;
 import org.javaai.stablediffusion.api.result.Img2ImgParams;
+import org.javaai.stablediffusion.api.result.Latent;
 import org.javaai.stablediffusion.api.result.StableResult;
 import org.javaai.stablediffusion.api.result.Txt2ImgParams;
+import org.javaai.stablediffusion.api.upscale.Upscaler;
+import org.javaai.stablediffusion.api.utils.DigestBuilder;
+import org.javaai.stablediffusion.api.utils.DirectBufferPool;
 import org.javaai.stablediffusion.api.utils.ImageUtils;
 
+/**
+ * One native stable-diffusion context. <br>
+ * Thread safe, calls into the same instance are serialized, use a 
+ * {@link org.javaai.stablediffusion.api.pool.StableDiffusionPool} to run requests in parallel. 
+ */
 public class StableDiffusion implements AutoCloseable {
 
 	private Long pointer;
 	
+	private boolean loaded = false;
+	
+	/**
+	 * Digest of the constructor arguments which change the generated images. 
+	 */
+	private final String contextFingerprint;
+	
+	private String modelFingerprint;
+	
+	/**
+	 * Nullable, weights this context shares, see {@link #fromModel(StableDiffusionModel, Integer, Boolean, String, String, Boolean, String, Integer, Integer)}. 
+	 */
+	private StableDiffusionModel sharedModel;
+	
+	/**
+	 * Size of the loaded weight files, estimate of the memory usage. 
+	 */
+	private long weightFilesBytes;
+	
+	/**
+	 * Nullable, ESRGAN model of esrgan_path, loaded on first {@link #upscale(byte[], int, int, int)} and closed 
+	 * after sd.esrgan.idle.seconds without use, default is 300. Never part of the native context. 
+	 */
+	private final LazyComponent<Upscaler> esrgan;
+	
+	/**
+	 * VAE tiling of the vae_tiling constructor argument, used when neither the request nor the policy choose one. 
+	 */
+	private final SDVaeTiling defaultVaeTiling;
+	
+	/**
+	 * VAE tiling currently set in the native context. 
+	 */
+	private SDVaeTiling appliedVaeTiling;
+	
+	private SDVaeTilingPolicy vaeTilingPolicy;
+	
+	/**
+	 * Packed init images and outputs of {@link #img2imgBatch(List, String, String, Float, Integer, Integer, Integer, Integer, Float, long[], SDRequestOptions)}. 
+	 */
+	private static final DirectBufferPool batchBuffers = new DirectBufferPool(4);
+	
 
 	public static final Integer img_default_width = 512;
 
@@ -38,6 +100,8 @@ public class StableDiffusion implements AutoCloseable {
 	 * @param n_threads Nullable, default is -1. 
 	 * @param vae_decode_only Nullable, default is false. 
 	 * @param taesd_path Nullable, default is empty string. 
+	 * @param esrgan_path Nullable, default is empty string, loaded on first {@link #upscale(byte[], int, int, int)} 
+	 * and closed again when idle, see {@link Upscaler#lazy(String, Integer, long, TimeUnit)}. 
 	 * @param free_params_immediately Nullable, default is false. 
 	 * @param lora_model_dir Nullable, default is empty string. 
 	 * @param rng_type Nullable, default is {@link RNGType#STD_DEFAULT_RNG}
@@ -50,6 +114,21 @@ public class StableDiffusion implements AutoCloseable {
 			Boolean vae_tiling, 
 			String lora_model_dir, 
 			Integer rng_type) {
+		this(n_threads, vae_decode_only, taesd_path, esrgan_path, free_params_immediately, vae_tiling, 
+				lora_model_dir, rng_type, null, null);
+	}
+	
+	
+	private StableDiffusion(Integer n_threads, 
+			Boolean vae_decode_only, 
+			String taesd_path, 
+			String esrgan_path, 
+			Boolean free_params_immediately, 
+			Boolean vae_tiling, 
+			String lora_model_dir, 
+			Integer rng_type, 
+			StableDiffusionModel model, 
+			Integer schedule) {
 
 		if (n_threads == null) {
 			n_threads = -1;
@@ -63,9 +142,9 @@ public class StableDiffusion implements AutoCloseable {
 			taesd_path = "";
 		}
 		
-		if (esrgan_path == null) {
-			esrgan_path = "";
-		}
+		// ESRGAN is not given to the native context, only nodes which upscale pay for its memory. 
+		esrgan = StringUtils.isBlank(esrgan_path) ? null : Upscaler.lazy(esrgan_path, n_threads, 
+				Long.getLong("sd.esrgan.idle.seconds", 300L), TimeUnit.SECONDS);
 
 		if (free_params_immediately == null) {
 			free_params_immediately = false;
@@ -74,6 +153,8 @@ public class StableDiffusion implements AutoCloseable {
 		if (vae_tiling == null) {
 			vae_tiling = false;
 		}
+		defaultVaeTiling = vae_tiling ? SDVaeTiling.ENABLED : SDVaeTiling.DISABLED;
+		appliedVaeTiling = defaultVaeTiling;
 
 		if (lora_model_dir == null) {
 			lora_model_dir = "";
@@ -84,14 +165,105 @@ public class StableDiffusion implements AutoCloseable {
 		}
 		
 		
+		contextFingerprint = new DigestBuilder()
+				.add(vae_decode_only)
+				.addFileIdentity(taesd_path)
+				.add(vae_tiling)
+				.add(lora_model_dir)
+				.add(rng_type)
+				.build();
+		
+		if (model == null) {
+			pointer = newInstance(n_threads, vae_decode_only, 
+					taesd_path, "", free_params_immediately, vae_tiling,
+					lora_model_dir, rng_type);
+			return;
+		}
+		
+		if (schedule == null) {
+			schedule = Schedule.DEFAULT;
+		}
+		
+		Long modelPointer = model.retain();
+		if (modelPointer != null && NativeSupport.isAvailable("newContextFromModel0")) {
+			try {
+				pointer = newContextFromModel0(modelPointer, n_threads, vae_decode_only, 
+						taesd_path, "", vae_tiling, lora_model_dir, rng_type, schedule);
+			} catch (UnsatisfiedLinkError e) {
+				NativeSupport.markUnavailable("newContextFromModel0", e);
+			}
+		}
+		
+		if (pointer != null) {
+			if (pointer == 0L) {
+				pointer = null;
+				model.release();
+				throw new StableDiffusionException("Create context from shared model failed! "
+						+ "model_path: [" + model.getModel_path() + "]");
+			}
+			sharedModel = model;
+			loaded = true;
+			weightFilesBytes = fileLength(model.getModel_path()) + fileLength(model.getVae_path());
+			modelFingerprint = fingerprint(contextFingerprint, model.getModel_path(), model.getVae_path(), 
+					model.getGgml_type(), schedule);
+			return;
+		}
+		
+		// No shared weights in the loaded sd-jni library, load a private copy, mapped to share pages where possible. 
+		model.release();
 		pointer = newInstance(n_threads, vae_decode_only, 
-				taesd_path, esrgan_path, free_params_immediately, vae_tiling,
+				taesd_path, "", false, vae_tiling,
 				lora_model_dir, rng_type);
+		try {
+			loadFromFile(model.getModel_path(), model.getVae_path(), model.getGgml_type(), schedule, true);
+		} catch (RuntimeException e) {
+			delete(pointer);
+			pointer = null;
+			throw e;
+		}
+	}
+	
+	
+	/**
+	 * Create a context which shares the read-only weights of model, the context only allocates its own 
+	 * compute buffers. The context keeps the weights alive until it is closed, even if model is closed first. <br>
+	 * If the loaded sd-jni library can not share weights, the context loads a private copy of them 
+	 * with {@link #loadFromFile(String, String, Integer, Integer, Boolean)}, memory mapped where possible. 
+	 * 
+	 * @param model NotNull, not closed. 
+	 * @param n_threads Nullable, default is -1. 
+	 * @param vae_decode_only Nullable, default is false. 
+	 * @param taesd_path Nullable, default is empty string. 
+	 * @param esrgan_path Nullable, default is empty string, loaded on first {@link #upscale(byte[], int, int, int)}. 
+	 * @param vae_tiling Nullable, default is false. 
+	 * @param lora_model_dir Nullable, default is empty string. 
+	 * @param rng_type Nullable, default is {@link RNGType#STD_DEFAULT_RNG}
+	 * @param schedule Nullable, default is {@link Schedule#DEFAULT}
+	 * @return instance with the model already loaded. 
+	 */
+	public static StableDiffusion fromModel(StableDiffusionModel model, 
+			Integer n_threads, 
+			Boolean vae_decode_only, 
+			String taesd_path, 
+			String esrgan_path, 
+			Boolean vae_tiling, 
+			String lora_model_dir, 
+			Integer rng_type, 
+			Integer schedule) {
 		
-
+		if (model == null) {
+			throw new IllegalArgumentException("Argument model can not be null. ");
+		}
+		
+		return new StableDiffusion(n_threads, vae_decode_only, taesd_path, esrgan_path, false, vae_tiling, 
+				lora_model_dir, rng_type, model, schedule);
 	}
 	
 	
+	protected static native long newContextFromModel0(long model_pointer, int n_threads, boolean vae_decode_only, 
+			String taesd_path, String esrgan_path, boolean vae_tiling, String lora_model_dir, int rng_type, int schedule);
+	
+	
 	protected static native long newInstance(int n_threads, boolean vae_decode_only, String taesd_path,
 			String esrgan_path, boolean free_params_immediately, boolean vae_tiling, String lora_model_dir, int rng_type);
 	
@@ -103,12 +275,90 @@ public class StableDiffusion implements AutoCloseable {
 	
 
 	@Override
-	public void close() throws Exception {
+	public synchronized void close() throws Exception {
 		if (pointer == null) {
 			return;
 		}
+		if (esrgan != null) {
+			esrgan.close();
+		}
 		delete(pointer);
 		pointer = null;
+		loaded = false;
+		modelFingerprint = null;
+		weightFilesBytes = 0;
+		
+		if (sharedModel != null) {
+			sharedModel.release();
+			sharedModel = null;
+		}
+	}
+	
+	
+	public synchronized boolean isClosed() {
+		return pointer == null;
+	}
+	
+	
+	/**
+	 * 
+	 * @return true if {@link #loadFromFile(String, String, Integer, Integer)} succeeded on this instance. 
+	 */
+	public synchronized boolean isLoaded() {
+		return loaded;
+	}
+	
+	
+	/**
+	 * Fingerprint of the loaded model, computed by {@link #loadFromFile(String, String, Integer, Integer)} 
+	 * from the model and vae files (path, size and last modified time), ggml_type, schedule, 
+	 * and the constructor arguments which change the generated images. <br>
+	 * Same fingerprint and same params generate the same images. 
+	 * 
+	 * @return Nullable, null if no model loaded. 
+	 */
+	public synchronized String getModelFingerprint() {
+		return modelFingerprint;
+	}
+	
+	
+	/**
+	 * Native memory held by this instance: weights and compute buffers. <br>
+	 * Needs an sd-jni library which exports getMemoryUsage0, otherwise estimated from the size of the 
+	 * loaded weight files. Weights shared with other contexts are counted by every context. 
+	 * 
+	 * @return bytes, 0 if no model loaded. 
+	 */
+	public synchronized long getMemoryUsage() {
+		if (!loaded) {
+			return 0;
+		}
+		
+		if (NativeSupport.isAvailable("getMemoryUsage0")) {
+			try {
+				return getMemoryUsage0(checkPointer());
+			} catch (UnsatisfiedLinkError e) {
+				NativeSupport.markUnavailable("getMemoryUsage0", e);
+			}
+		}
+		
+		return weightFilesBytes;
+	}
+	
+	
+	protected static native long getMemoryUsage0(long pointer);
+	
+	
+	private static long fileLength(String path) {
+		return StringUtils.isEmpty(path) ? 0 : new File(path).length();
+	}
+	
+	
+	private long checkPointer() {
+		if (pointer == null) {
+			throw new StableDiffusionException("StableDiffusion instance already closed. ");
+		}
+		return pointer;
 	}
 	
 	
@@ -130,11 +380,37 @@ public class StableDiffusion implements AutoCloseable {
 	 * @return
 	 */
 	public boolean loadFromFile(String model_path, String vae_path, Integer ggml_type, Integer schedule) {
+		return loadFromFile(model_path, vae_path, ggml_type, schedule, null);
+	}
+	
+	
+	/**
+	 * Same as {@link #loadFromFile(String, String, Integer, Integer)}, optionally memory maps the weights. <br>
+	 * Mapped weights are read-only pages of the OS page cache, shared by every process loading the same file, 
+	 * tensors are used in place where their type is kept, other tensors are converted into private memory. 
+	 * Only .safetensors and .gguf files can be mapped, and only when ggml_type is 
+	 * {@link GGML_type#GGML_TYPE_COUNT}, other loads read the weights as usual. 
+	 * Needs an sd-jni library which exports loadFromFileMmap0, otherwise the weights are read as usual. 
+	 * 
+	 * @param model_path NotNull
+	 * @param vae_path Nullable, default is empty string. 
+	 * @param ggml_type Nullable, default is {@link GGML_type#GGML_TYPE_COUNT}
+	 * @param schedule Nullable, default is {@link Schedule#DEFAULT}
+	 * @param use_mmap Nullable, default is false. 
+	 * @return
+	 */
+	public synchronized boolean loadFromFile(String model_path, String vae_path, Integer ggml_type, Integer schedule, 
+			Boolean use_mmap) {
 		
 		if (StringUtils.isBlank(model_path)) {
 			throw new IllegalArgumentException("Argument model_path can not be empty/blank. ");
 		}
 		
+		if (sharedModel != null) {
+			throw new StableDiffusionException("Instance shares the weights of a StableDiffusionModel, "
+					+ "create another context with StableDiffusion.fromModel instead. ");
+		}
+		
 		if (vae_path == null) {
 			vae_path = "";
 		}
@@ -147,7 +423,24 @@ public class StableDiffusion implements AutoCloseable {
 			schedule = Schedule.DEFAULT;
 		}
 		
-		boolean ret = loadFromFile0(pointer, model_path, vae_path, ggml_type, schedule);
+		if (use_mmap == null) {
+			use_mmap = false;
+		}
+		
+		boolean ret = false;
+		boolean mapped = false;
+		if (use_mmap && isMappable(model_path, ggml_type) && NativeSupport.isAvailable("loadFromFileMmap0")) {
+			try {
+				ret = loadFromFileMmap0(checkPointer(), model_path, vae_path, ggml_type, schedule);
+				mapped = true;
+			} catch (UnsatisfiedLinkError e) {
+				NativeSupport.markUnavailable("loadFromFileMmap0", e);
+			}
+		}
+		
+		if (!mapped) {
+			ret = loadFromFile0(checkPointer(), model_path, vae_path, ggml_type, schedule);
+		}
 		
 		if (!ret) {
 			throw new StableDiffusionException("Load model failed! "
@@ -157,14 +450,97 @@ public class StableDiffusion implements AutoCloseable {
 					+ "schedule: [" + schedule + "]");
 		}
 		
+		loaded = true;
+		modelFingerprint = fingerprint(contextFingerprint, model_path, vae_path, ggml_type, schedule);
+		weightFilesBytes = fileLength(model_path) + fileLength(vae_path);
+		
 		return ret;
 		
 	}
 	
+	
+	private static String fingerprint(String contextFingerprint, String model_path, String vae_path, 
+			int ggml_type, int schedule) {
+		return new DigestBuilder()
+				.add(contextFingerprint)
+				.addFileIdentity(model_path)
+				.addFileIdentity(vae_path)
+				.add(ggml_type)
+				.add(schedule)
+				.build();
+	}
+	
 	protected static native boolean loadFromFile0(
 			long pointer, 
 			String model_path, String vae_path, int ggml_type_value, int schedule);
 	
+	protected static native boolean loadFromFileMmap0(
+			long pointer, 
+			String model_path, String vae_path, int ggml_type_value, int schedule);
+	
+	
+	private static boolean isMappable(String model_path, int ggml_type) {
+		String lower = model_path.toLowerCase(Locale.ROOT);
+		return ggml_type == GGML_type.GGML_TYPE_COUNT 
+				&& (lower.endsWith(".safetensors") || lower.endsWith(".gguf"));
+	}
+	
+	
+	/**
+	 * Convert weights (.ckpt or .safetensors) to a gguf file with the vae merged and the tensors quantized 
+	 * to ggml_type, loading that file with ggml_type {@link GGML_type#GGML_TYPE_COUNT} skips the conversion. <br>
+	 * Needs an sd-jni library which exports convert0. 
+	 * 
+	 * @param model_path NotNull, path to local model path. 
+	 * @param vae_path Nullable, default is empty string. 
+	 * @param ggml_type Nullable, default is {@link GGML_type#GGML_TYPE_COUNT}, keeps the original types. 
+	 * @param output_path NotNull, path of the gguf file to write. 
+	 * @return false if the loaded sd-jni library can not convert. 
+	 * @throws StableDiffusionException if conversion failed. 
+	 */
+	public static boolean convert(String model_path, String vae_path, Integer ggml_type, String output_path) {
+		
+		if (StringUtils.isBlank(model_path)) {
+			throw new IllegalArgumentException("Argument model_path can not be empty/blank. ");
+		}
+		
+		if (StringUtils.isBlank(output_path)) {
+			throw new IllegalArgumentException("Argument output_path can not be empty/blank. ");
+		}
+		
+		if (vae_path == null) {
+			vae_path = "";
+		}
+		
+		if (ggml_type == null) {
+			ggml_type = GGML_type.GGML_TYPE_COUNT;
+		}
+		
+		if (!NativeSupport.isAvailable("convert0")) {
+			return false;
+		}
+		
+		boolean ret;
+		try {
+			ret = convert0(model_path, vae_path, output_path, ggml_type);
+		} catch (UnsatisfiedLinkError e) {
+			NativeSupport.markUnavailable("convert0", e);
+			return false;
+		}
+		
+		if (!ret) {
+			throw new StableDiffusionException("Convert model failed! "
+					+ "model_path: [" + model_path + "]"
+					+ "vae_path: [" + vae_path + "]"
+					+ "ggml_type_value: [" + ggml_type + "]"
+					+ "output_path: [" + output_path + "]");
+		}
+		
+		return true;
+	}
+	
+	protected static native boolean convert0(String model_path, String vae_path, String output_path, int ggml_type_value);
+	
 
 	
 
@@ -211,64 +587,83 @@ public class StableDiffusion implements AutoCloseable {
 			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
 			Integer sample_steps, Long seed, Integer batch_count) {
 		
+		return txt2img(prompt, negative_prompt, cfg_scale, width, height, 
+				sample_method, sample_steps, seed, batch_count, null);
+	}
+	
+	
+	/**
+	 * 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param seed Nullable, default is 42L. 
+	 * @param batch_count Nullable, default is 1. 
+	 * @param options Nullable, progress callback and cancellation of this request. 
+	 * @return results already converted to BGR color image. 
+	 * @throws StableDiffusionCancelledException if cancelled by options. 
+	 */
+	public StableResult<Txt2ImgParams, BufferedImage> txt2img(String prompt, String negative_prompt, 
+			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
+			Integer sample_steps, Long seed, Integer batch_count, SDRequestOptions options) {
+		
 		
 		StableResult<Txt2ImgParams, byte[]> pixelImagesResult = txt2PixelsImg(prompt, 
 				negative_prompt, cfg_scale, width, 
 				height, sample_method, sample_steps, seed, 
-				batch_count);
-		
-		
-		StableResult<Txt2ImgParams, BufferedImage> bufferedImageResult = new StableResult<>();
-		bufferedImageResult.setParams(pixelImagesResult.getParams());
-		
-		List<BufferedImage> results = new ArrayList<>(pixelImagesResult.getResultImages().size());
-		for (byte[] pixels : pixelImagesResult.getResultImages()) {
-			pixels = ImageUtils.reverseRGB(pixels);
-			
-			BufferedImage image = ImageUtils.pixelsBGRToImage(pixels, 
-					pixelImagesResult.getParams().getWidth(), 
-					pixelImagesResult.getParams().getHeight());
-			results.add(image);
-		}
+				batch_count, options);
 		
-		bufferedImageResult.setResultImages(results);
 		
-		return bufferedImageResult;
+		return toBGRImages(pixelImagesResult, 
+				pixelImagesResult.getParams().getWidth(), 
+				pixelImagesResult.getParams().getHeight());
 		
 	}
 	
-
-	private Integer makeWidthSafe(Integer width) {
-
-		if (width == null) {
-			width = img_default_width;
-		}
-		
-		return width;
-	}
-
-	private Integer makeHeightSafe(Integer height) {
-
-		if (height == null) {
-			height = img_default_height;
-		}
-		
-		return height;
+	
+	/**
+	 * Asynchronous version of {@link #txt2img(String)}. 
+	 * 
+	 * @param prompt NotNull 
+	 * @return future of results already converted to BGR color image.
+	 */
+	public CompletableFuture<StableResult<Txt2ImgParams, BufferedImage>> txt2imgAsync(String prompt) {
+		return txt2imgAsync(prompt, null, null, null, null, null, null, null, null);
 	}
 	
 	
 	/**
+	 * Asynchronous version of {@link #txt2img(String, String, Float, Integer, Integer, Integer, Integer, Long, Integer)}, 
+	 * sampling runs on {@link StableDiffusionExecutors#getInferenceExecutor()}, 
+	 * pixel conversion runs on {@link StableDiffusionExecutors#getConversionExecutor()}. 
 	 * 
-	 * @param  Nullable, output param returns image size, left is width, right is height. 
 	 * @param prompt NotNull 
-	 * @return pixels images, RGB color mode, need convert to GBR color mode by {@link ImageUtils#reverseRGB(byte[])} manually. 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param seed Nullable, default is 42L. 
+	 * @param batch_count Nullable, default is 1. 
+	 * @return future of results already converted to BGR color image. 
 	 */
-	public StableResult<Txt2ImgParams, byte[]> txt2PixelsImg(
-			String prompt) {
-		return txt2PixelsImg(prompt, null, null, null, null, null, null, null, null);
+	public CompletableFuture<StableResult<Txt2ImgParams, BufferedImage>> txt2imgAsync(String prompt, String negative_prompt, 
+			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
+			Integer sample_steps, Long seed, Integer batch_count) {
+		
+		return txt2imgAsync(prompt, negative_prompt, cfg_scale, width, height, 
+				sample_method, sample_steps, seed, batch_count, null);
 	}
 	
+	
 	/**
+	 * Asynchronous version of {@link #txt2img(String, String, Float, Integer, Integer, Integer, Integer, Long, Integer, SDRequestOptions)}, 
+	 * cancelling the returned future aborts the native sampling. 
 	 * 
 	 * @param prompt NotNull 
 	 * @param negative_prompt Nullable, default is empty string. 
@@ -279,204 +674,1541 @@ public class StableDiffusion implements AutoCloseable {
 	 * @param sample_steps Nullable, default is 20.  
 	 * @param seed Nullable, default is 42L. 
 	 * @param batch_count Nullable, default is 1. 
-	 * @return pixels images, RGB color mode, need convert to GBR color mode by {@link ImageUtils#reverseRGB(byte[])} manually. 
+	 * @param options Nullable, progress callback and cancellation of this request. 
+	 * @return future of results already converted to BGR color image. 
 	 */
-	public StableResult<Txt2ImgParams, byte[]> txt2PixelsImg(String prompt, 
-			String negative_prompt, Float cfg_scale, Integer width, Integer height, 
-			Integer sample_method, Integer sample_steps, Long seed, Integer batch_count) {
-		
-		if (StringUtils.isBlank(prompt)) {
-			throw new IllegalArgumentException("Argument prompt can not be empty/blank. ");
-		}
-		
-		if (negative_prompt == null) {
-			negative_prompt = "";
-		}
-		
-		if (cfg_scale == null) {
-			cfg_scale = 7.0f;
+	public CompletableFuture<StableResult<Txt2ImgParams, BufferedImage>> txt2imgAsync(String prompt, String negative_prompt, 
+			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
+			Integer sample_steps, Long seed, Integer batch_count, SDRequestOptions options) {
+		
+		SDRequestOptions cancellable = cancellableOptions(options);
+		
+		return cancelOnCancellation(StableDiffusionExecutors.supplyAsync(() -> txt2PixelsImg(prompt, 
+						negative_prompt, cfg_scale, width, 
+						height, sample_method, sample_steps, seed, 
+						batch_count, cancellable), 
+				StableDiffusionExecutors.getInferenceExecutor())
+				.thenApplyAsync(pixels -> toBGRImages(pixels, 
+						pixels.getParams().getWidth(), pixels.getParams().getHeight()), 
+						StableDiffusionExecutors.getConversionExecutor()), 
+				cancellable);
+	}
+	
+	
+	/**
+	 * 
+	 * @return copy of options with a cancellation token. 
+	 */
+	private static SDRequestOptions cancellableOptions(SDRequestOptions options) {
+		SDRequestOptions cancellable = options == null ? new SDRequestOptions() : options.copy();
+		if (cancellable.getCancellationToken() == null) {
+			cancellable.setCancellationToken(new SDCancellationToken());
 		}
+		return cancellable;
+	}
+	
+	
+	private static <T> CompletableFuture<T> cancelOnCancellation(CompletableFuture<T> future, SDRequestOptions options) {
+		future.whenComplete((result, error) -> {
+			if (error instanceof CancellationException) {
+				options.getCancellationToken().cancel();
+			}
+		});
+		return future;
+	}
+	
+	
+	/**
+	 * Policy of requests which do not set a VAE tiling in their options, for example 
+	 * {@link SDVaeTilingPolicy#auto(long, long, SDVaeTiling)} lets one instance serve small images untiled 
+	 * and large images tiled. <br>
+	 * Needs an sd-jni library which exports setVaeTiling0, otherwise the vae_tiling constructor argument 
+	 * applies to every request. 
+	 * 
+	 * @param vaeTilingPolicy Nullable, default is the vae_tiling constructor argument. 
+	 */
+	public synchronized void setVaeTilingPolicy(SDVaeTilingPolicy vaeTilingPolicy) {
+		this.vaeTilingPolicy = vaeTilingPolicy;
+	}
+	
+	
+	/**
+	 * VAE tiling a request runs with: the one of options, else the one chosen by the policy, else the 
+	 * constructor default. Tiling changes the decoded pixels, so it is part of the keys of 
+	 * {@link org.javaai.stablediffusion.api.cache.StableResultCache}. 
+	 * 
+	 * @param options Nullable 
+	 * @param width width of the image. 
+	 * @param height height of the image. 
+	 * @return NotNull, the constructor default if the loaded sd-jni library can not change tiling. 
+	 */
+	public synchronized SDVaeTiling getVaeTiling(SDRequestOptions options, int width, int height) {
 		
-		width = makeWidthSafe(width);
-		height = makeHeightSafe(height);
-		
-		if (sample_method == null) {
-			sample_method = SampleMethod.EULER_A;
+		if (!NativeSupport.isAvailable("setVaeTiling0")) {
+			return defaultVaeTiling;
 		}
 		
-		if (sample_steps == null) {
-			sample_steps = 20;
+		SDVaeTiling tiling = options == null ? null : options.getVaeTiling();
+		if (tiling == null && vaeTilingPolicy != null) {
+			tiling = vaeTilingPolicy.choose(width, height);
+		}
+		if (tiling == null) {
+			tiling = defaultVaeTiling;
+		}
+		return tiling;
+	}
+	
+	
+	/**
+	 * Set the VAE tiling of the next native call, see {@link #getVaeTiling(SDRequestOptions, int, int)}. 
+	 * The native context is only updated when the tiling changes. 
+	 */
+	private void applyVaeTiling(SDRequestOptions options, int width, int height) {
+		
+		if (!NativeSupport.isAvailable("setVaeTiling0")) {
+			return;
 		}
 		
-		if (seed == null) {
-			seed = 42L;
+		SDVaeTiling tiling = getVaeTiling(options, width, height);
+		if (tiling.equals(appliedVaeTiling)) {
+			return;
+		}
+		
+		try {
+			setVaeTiling0(checkPointer(), tiling.isEnabled(), tiling.getTileSize() / Latent.VAE_SCALE_FACTOR, 
+					tiling.getOverlap());
+			appliedVaeTiling = tiling;
+		} catch (UnsatisfiedLinkError e) {
+			NativeSupport.markUnavailable("setVaeTiling0", e);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * @param tile_size tile width and height in latent pixels. 
+	 * @param overlap fraction of the tile size shared by neighbour tiles. 
+	 */
+	protected static native void setVaeTiling0(long pointer, boolean enabled, int tile_size, float overlap);
+	
+	
+	/**
+	 * Run the native call with options bound to the current thread, 
+	 * the cancellation token is checked before and after the call. 
+	 */
+	private static <T> T callNative(SDRequestOptions options, Supplier<T> call) {
+		
+		SDCancellationToken cancellationToken = options == null ? null : options.getCancellationToken();
+		if (cancellationToken != null) {
+			cancellationToken.throwIfCancelled();
+		}
+		
+		T result;
+		SDRequestOptions previous = Util.enterRequest(options);
+		try {
+			result = call.get();
+		} finally {
+			Util.exitRequest(previous);
+		}
+		
+		// Native returns partial results when the sampler aborted. 
+		if (cancellationToken != null) {
+			cancellationToken.throwIfCancelled();
+		}
+		
+		return result;
+	}
+	
+	
+	/**
+	 * 
+	 * @param pixels NotNull, RGB pixels owned by the caller, converted in place. 
+	 */
+	private static <P> StableResult<P, BufferedImage> toBGRImages(StableResult<P, byte[]> pixels, int width, int height) {
+		
+		StableResult<P, BufferedImage> bufferedImageResult = new StableResult<>();
+		bufferedImageResult.setParams(pixels.getParams());
+		
+		List<BufferedImage> results = new ArrayList<>(pixels.getResultImages().size());
+		for (byte[] image : pixels.getResultImages()) {
+			// pixels are owned by this call, swap and wrap them without copying. 
+			results.add(ImageUtils.pixelsRGBToBGRImage(image, width, height));
+		}
+		
+		bufferedImageResult.setResultImages(results);
+		
+		return bufferedImageResult;
+	}
+	
+
+	private static Integer makeWidthSafe(Integer width) {
+
+		if (width == null) {
+			width = img_default_width;
+		}
+		
+		return width;
+	}
+
+	private static Integer makeHeightSafe(Integer height) {
+
+		if (height == null) {
+			height = img_default_height;
+		}
+		
+		return height;
+	}
+	
+	
+	/**
+	 * 
+	 * @param  Nullable, output param returns image size, left is width, right is height. 
+	 * @param prompt NotNull 
+	 * @return pixels images, RGB color mode, need convert to GBR color mode by {@link ImageUtils#reverseRGB(byte[])} manually. 
+	 */
+	public StableResult<Txt2ImgParams, byte[]> txt2PixelsImg(
+			String prompt) {
+		return txt2PixelsImg(prompt, null, null, null, null, null, null, null, null);
+	}
+	
+	/**
+	 * 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param seed Nullable, default is 42L. 
+	 * @param batch_count Nullable, default is 1. 
+	 * @return pixels images, RGB color mode, need convert to GBR color mode by {@link ImageUtils#reverseRGB(byte[])} manually. 
+	 */
+	public StableResult<Txt2ImgParams, byte[]> txt2PixelsImg(String prompt, 
+			String negative_prompt, Float cfg_scale, Integer width, Integer height, 
+			Integer sample_method, Integer sample_steps, Long seed, Integer batch_count) {
+		
+		return txt2PixelsImg(prompt, negative_prompt, cfg_scale, width, height, 
+				sample_method, sample_steps, seed, batch_count, (SDRequestOptions) null);
+	}
+	
+	
+	/**
+	 * 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param seed Nullable, default is 42L. 
+	 * @param batch_count Nullable, default is 1. 
+	 * @param options Nullable, progress callback and cancellation of this request. 
+	 * @return pixels images, RGB color mode, need convert to GBR color mode by {@link ImageUtils#reverseRGB(byte[])} manually. 
+	 * @throws StableDiffusionCancelledException if cancelled by options. 
+	 */
+	public synchronized StableResult<Txt2ImgParams, byte[]> txt2PixelsImg(String prompt, 
+			String negative_prompt, Float cfg_scale, Integer width, Integer height, 
+			Integer sample_method, Integer sample_steps, Long seed, Integer batch_count, 
+			SDRequestOptions options) {
+		
+		Txt2ImgParams params = newTxt2ImgParams(prompt, negative_prompt, cfg_scale, 
+				width, height, sample_method, sample_steps, seed, batch_count);
+		
+		applyVaeTiling(options, params.getWidth(), params.getHeight());
+		
+		List<byte[]> results = callNative(options, () -> txt2img0(checkPointer(), 
+				params.getPrompt(), params.getNegative_prompt(), params.getCfg_scale(), 
+				params.getWidth(), params.getHeight(), params.getSample_method(), 
+				params.getSample_steps(), params.getSeed(), params.getBatch_count()));
+		
+		StableResult<Txt2ImgParams, byte[]> stableResult = new StableResult<>();
+		stableResult.setParams(params);
+		stableResult.setResultImages(results);
+		
+		return stableResult;
+	}
+	
+	
+	/**
+	 * Same as {@link #txt2PixelsImg(String, String, Float, Integer, Integer, Integer, Integer, Long, Integer)}, 
+	 * but native writes RGB pixels straight into the caller supplied direct buffer, no java heap array is allocated per image. <br>
+	 * Images are written one after another from the buffer's current position, the buffer's position and limit are not changed, 
+	 * see {@link DirectBufferPool} to reuse buffers between requests. 
+	 * 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param seed Nullable, default is 42L. 
+	 * @param batch_count Nullable, default is 1. 
+	 * @param output NotNull, direct buffer, remaining space must hold width * height * 3 * batch_count bytes. 
+	 * @return slices of output buffer, one per image, RGB color mode. 
+	 */
+	public StableResult<Txt2ImgParams, ByteBuffer> txt2PixelsImg(String prompt, 
+			String negative_prompt, Float cfg_scale, Integer width, Integer height, 
+			Integer sample_method, Integer sample_steps, Long seed, Integer batch_count, 
+			ByteBuffer output) {
+		
+		return txt2PixelsImg(prompt, negative_prompt, cfg_scale, width, height, 
+				sample_method, sample_steps, seed, batch_count, output, null);
+	}
+	
+	
+	/**
+	 * Same as {@link #txt2PixelsImg(String, String, Float, Integer, Integer, Integer, Integer, Long, Integer, ByteBuffer)}, 
+	 * with per request options. 
+	 * 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param seed Nullable, default is 42L. 
+	 * @param batch_count Nullable, default is 1. 
+	 * @param output NotNull, direct buffer, remaining space must hold width * height * 3 * batch_count bytes. 
+	 * @param options Nullable, progress callback and cancellation of this request. 
+	 * @return slices of output buffer, one per image, RGB color mode. 
+	 * @throws StableDiffusionCancelledException if cancelled by options. 
+	 */
+	public synchronized StableResult<Txt2ImgParams, ByteBuffer> txt2PixelsImg(String prompt, 
+			String negative_prompt, Float cfg_scale, Integer width, Integer height, 
+			Integer sample_method, Integer sample_steps, Long seed, Integer batch_count, 
+			ByteBuffer output, SDRequestOptions options) {
+		
+		Txt2ImgParams params = newTxt2ImgParams(prompt, negative_prompt, cfg_scale, 
+				width, height, sample_method, sample_steps, seed, batch_count);
+		
+		int imageBytes = DirectBufferPool.rgbCapacity(params.getWidth(), params.getHeight(), 1);
+		checkOutputBuffer(output, DirectBufferPool.rgbCapacity(params.getWidth(), params.getHeight(), 
+				params.getBatch_count()));
+		
+		applyVaeTiling(options, params.getWidth(), params.getHeight());
+		
+		int count = callNative(options, () -> {
+			if (NativeSupport.isAvailable("txt2imgDirect0")) {
+				try {
+					return txt2imgDirect0(checkPointer(), 
+							params.getPrompt(), params.getNegative_prompt(), params.getCfg_scale(), 
+							params.getWidth(), params.getHeight(), params.getSample_method(), 
+							params.getSample_steps(), params.getSeed(), params.getBatch_count(), 
+							output, output.position());
+				} catch (UnsatisfiedLinkError e) {
+					NativeSupport.markUnavailable("txt2imgDirect0", e);
+				}
+			}
+			
+			List<byte[]> images = txt2img0(checkPointer(), 
+					params.getPrompt(), params.getNegative_prompt(), params.getCfg_scale(), 
+					params.getWidth(), params.getHeight(), params.getSample_method(), 
+					params.getSample_steps(), params.getSeed(), params.getBatch_count());
+			return copyToOutputBuffer(images, output);
+		});
+		
+		StableResult<Txt2ImgParams, ByteBuffer> stableResult = new StableResult<>();
+		stableResult.setParams(params);
+		stableResult.setResultImages(sliceOutputBuffer(output, imageBytes, count));
+		
+		return stableResult;
+	}
+	
+	
+	/**
+	 * Same as {@link #txt2PixelsImg(String, String, Float, Integer, Integer, Integer, Integer, Long, Integer, SDRequestOptions)}, 
+	 * arguments are taken from params. 
+	 * 
+	 * @param params NotNull, null fields take their default value. 
+	 * @param options Nullable, progress callback and cancellation of this request. 
+	 * @return pixels images, RGB color mode. 
+	 */
+	public StableResult<Txt2ImgParams, byte[]> txt2PixelsImg(Txt2ImgParams params, SDRequestOptions options) {
+		return txt2PixelsImg(params.getPrompt(), params.getNegative_prompt(), params.getCfg_scale(), 
+				params.getWidth(), params.getHeight(), params.getSample_method(), 
+				params.getSample_steps(), params.getSeed(), params.getBatch_count(), options);
+	}
+	
+	
+	/**
+	 * 
+	 * @param params NotNull
+	 * @return copy of params with default value of every null field. 
+	 */
+	public static Txt2ImgParams withDefaults(Txt2ImgParams params) {
+		return newTxt2ImgParams(params.getPrompt(), params.getNegative_prompt(), params.getCfg_scale(), 
+				params.getWidth(), params.getHeight(), params.getSample_method(), 
+				params.getSample_steps(), params.getSeed(), params.getBatch_count());
+	}
+	
+	
+	/**
+	 * Streaming version of {@link #txt2PixelsImg(String, String, Float, Integer, Integer, Integer, Integer, Long, Integer, SDRequestOptions)}, 
+	 * every image is handed to the consumer as soon as it is decoded, instead of holding the whole batch. <br>
+	 * Images are sampled one native call each, which trades the shared prompt encoding of a native batch 
+	 * for the time to first image and peak memory of a single image. 
+	 * 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param seed Nullable, default is 42L, image i uses seed + i, same as a native batch. 
+	 * @param batch_count Nullable, default is 1. 
+	 * @param options Nullable, progress callback and cancellation of this request, checked between images. 
+	 * @param consumer NotNull, receives RGB pixels of every image. 
+	 * @return params of the whole request. 
+	 * @throws StableDiffusionCancelledException if cancelled by options. 
+	 */
+	public synchronized Txt2ImgParams txt2PixelsImgStreaming(String prompt, 
+			String negative_prompt, Float cfg_scale, Integer width, Integer height, 
+			Integer sample_method, Integer sample_steps, Long seed, Integer batch_count, 
+			SDRequestOptions options, SDImageConsumer<Txt2ImgParams, byte[]> consumer) {
+		
+		if (consumer == null) {
+			throw new IllegalArgumentException("Argument consumer can not be null. ");
+		}
+		
+		Txt2ImgParams params = newTxt2ImgParams(prompt, negative_prompt, cfg_scale, 
+				width, height, sample_method, sample_steps, seed, batch_count);
+		
+		applyVaeTiling(options, params.getWidth(), params.getHeight());
+		
+		for (int i = 0; i < params.getBatch_count(); i ++) {
+			Txt2ImgParams imageParams = imageParams(params, i);
+			
+			List<byte[]> images = callNative(options, () -> txt2img0(checkPointer(), 
+					imageParams.getPrompt(), imageParams.getNegative_prompt(), imageParams.getCfg_scale(), 
+					imageParams.getWidth(), imageParams.getHeight(), imageParams.getSample_method(), 
+					imageParams.getSample_steps(), imageParams.getSeed(), 1));
+			
+			for (byte[] image : images) {
+				consumer.onImage(imageParams, i, image);
+			}
+		}
+		
+		return params;
+	}
+	
+	
+	/**
+	 * Same as {@link #txt2PixelsImgStreaming(String, String, Float, Integer, Integer, Integer, Integer, Long, Integer, SDRequestOptions, SDImageConsumer)}, 
+	 * but every image is written to the same caller supplied direct buffer, so only one image is alive at a time. 
+	 * The consumer must be done with the buffer before it returns. 
+	 * 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param seed Nullable, default is 42L, image i uses seed + i, same as a native batch. 
+	 * @param batch_count Nullable, default is 1. 
+	 * @param output NotNull, direct buffer, remaining space must hold width * height * 3 bytes. 
+	 * @param options Nullable, progress callback and cancellation of this request, checked between images. 
+	 * @param consumer NotNull, receives a slice of output holding RGB pixels of every image. 
+	 * @return params of the whole request. 
+	 * @throws StableDiffusionCancelledException if cancelled by options. 
+	 */
+	public synchronized Txt2ImgParams txt2PixelsImgStreaming(String prompt, 
+			String negative_prompt, Float cfg_scale, Integer width, Integer height, 
+			Integer sample_method, Integer sample_steps, Long seed, Integer batch_count, 
+			ByteBuffer output, SDRequestOptions options, SDImageConsumer<Txt2ImgParams, ByteBuffer> consumer) {
+		
+		if (consumer == null) {
+			throw new IllegalArgumentException("Argument consumer can not be null. ");
+		}
+		
+		Txt2ImgParams params = newTxt2ImgParams(prompt, negative_prompt, cfg_scale, 
+				width, height, sample_method, sample_steps, seed, batch_count);
+		
+		for (int i = 0; i < params.getBatch_count(); i ++) {
+			Txt2ImgParams imageParams = imageParams(params, i);
+			
+			StableResult<Txt2ImgParams, ByteBuffer> result = txt2PixelsImg(imageParams.getPrompt(), 
+					imageParams.getNegative_prompt(), imageParams.getCfg_scale(), 
+					imageParams.getWidth(), imageParams.getHeight(), imageParams.getSample_method(), 
+					imageParams.getSample_steps(), imageParams.getSeed(), 1, output, options);
+			
+			for (ByteBuffer image : result.getResultImages()) {
+				consumer.onImage(imageParams, i, image);
+			}
+		}
+		
+		return params;
+	}
+	
+	
+	/**
+	 * 
+	 * @return params of the image at index of a batch. 
+	 */
+	private static Txt2ImgParams imageParams(Txt2ImgParams params, int index) {
+		Txt2ImgParams imageParams = params.copy();
+		imageParams.setSeed(params.getSeed() + index);
+		imageParams.setBatch_count(1);
+		return imageParams;
+	}
+	
+	
+	private static Txt2ImgParams newTxt2ImgParams(String prompt, 
+			String negative_prompt, Float cfg_scale, Integer width, Integer height, 
+			Integer sample_method, Integer sample_steps, Long seed, Integer batch_count) {
+		
+		if (StringUtils.isBlank(prompt)) {
+			throw new IllegalArgumentException("Argument prompt can not be empty/blank. ");
+		}
+		
+		if (negative_prompt == null) {
+			negative_prompt = "";
+		}
+		
+		if (cfg_scale == null) {
+			cfg_scale = 7.0f;
+		}
+		
+		width = makeWidthSafe(width);
+		height = makeHeightSafe(height);
+		
+		if (sample_method == null) {
+			sample_method = SampleMethod.EULER_A;
+		}
+		
+		if (sample_steps == null) {
+			sample_steps = 20;
+		}
+		
+		if (seed == null) {
+			seed = 42L;
+		}
+		
+		if (batch_count == null) {
+			batch_count = 1;
+		}
+		
+		Txt2ImgParams params = new Txt2ImgParams();
+		params.setPrompt(prompt);
+		params.setNegative_prompt(negative_prompt);
+		params.setCfg_scale(cfg_scale);
+		params.setWidth(width);
+		params.setHeight(height);
+		params.setSample_method(sample_method);
+		params.setSample_steps(sample_steps);
+		params.setSeed(seed);
+		params.setBatch_count(batch_count);
+		
+		return params;
+	}
+	
+	
+	private static void checkOutputBuffer(ByteBuffer output, int requiredBytes) {
+		
+		if (output == null) {
+			throw new IllegalArgumentException("Argument output can not be null. ");
+		}
+		
+		if (!output.isDirect()) {
+			throw new IllegalArgumentException("Argument output must be a direct buffer. ");
+		}
+		
+		if (output.isReadOnly()) {
+			throw new IllegalArgumentException("Argument output can not be read only. ");
+		}
+		
+		if (output.remaining() < requiredBytes) {
+			throw new IllegalArgumentException("Argument output too small, remaining: " + output.remaining() 
+					+ ", required: " + requiredBytes);
+		}
+	}
+	
+	
+	/**
+	 * Fallback for native libraries without direct buffer support. 
+	 */
+	private static int copyToOutputBuffer(List<byte[]> images, ByteBuffer output) {
+		
+		ByteBuffer target = output.duplicate();
+		for (byte[] image : images) {
+			target.put(image);
+		}
+		
+		return images.size();
+	}
+	
+	
+	private static List<ByteBuffer> sliceOutputBuffer(ByteBuffer output, int imageBytes, int count) {
+		
+		List<ByteBuffer> slices = new ArrayList<>(count);
+		for (int i = 0; i < count; i ++) {
+			ByteBuffer slice = output.duplicate();
+			slice.position(output.position() + i * imageBytes);
+			slice.limit(slice.position() + imageBytes);
+			slices.add(slice.slice());
+		}
+		
+		return slices;
+	}
+	
+	
+	/**
+	 * 
+	 * @return count of images written to output, starting at offset. 
+	 */
+	protected static native int txt2imgDirect0(
+			long pointer, 
+			String prompt, String negative_prompt, 
+			float cfg_scale, int width, int height, int sample_method, 
+			int sample_steps, long seed, int batch_count, 
+			ByteBuffer output, int offset);
+	
+
+	protected static native List<byte[]> txt2img0(
+			long pointer, 
+			String prompt, String negative_prompt, 
+			float cfg_scale, int width, int height, int sample_method, 
+			int sample_steps, long seed, int batch_count);
+	
+
+
+	
+	/**
+	 * 
+	 * @param img NotNull
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @return results already converted to BGR color image.
+	 */
+	public StableResult<Img2ImgParams, BufferedImage> img2img(
+			BufferedImage img, String prompt) {
+		
+		StableResult<Img2ImgParams, BufferedImage> results = img2img(img, 
+				prompt, null, null, null, null, null, null, null, null);
+		
+		return results;
+	}
+	
+	
+
+	
+	/**
+	 * 
+	 * @param img NotNull
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @return results already converted to BGR color image.
+	 */
+	public StableResult<Img2ImgParams, BufferedImage> img2img(
+			BufferedImage img, String prompt, String negative_prompt) {
+		
+		StableResult<Img2ImgParams, BufferedImage> results = img2img(img, 
+				prompt, negative_prompt, null, null, null, null, null, null, null);
+		
+		return results;
+	}
+	
+
+	
+	/**
+	 * 
+	 * @param img NotNull BGR color mode image. 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param strength Nullable, default is 0.75f.
+	 * @param seed Nullable, default is 42L. 
+	 * @return results already converted to BGR color image.
+	 */
+	public StableResult<Img2ImgParams, BufferedImage> img2img(BufferedImage img, String prompt, String negative_prompt, 
+			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
+			Integer sample_steps, Float strength, Long seed) {
+		
+		return img2img(img, prompt, negative_prompt, cfg_scale, width, height, 
+				sample_method, sample_steps, strength, seed, null);
+	}
+	
+	
+	/**
+	 * 
+	 * @param img NotNull BGR color mode image. 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param strength Nullable, default is 0.75f.
+	 * @param seed Nullable, default is 42L. 
+	 * @param options Nullable, progress callback and cancellation of this request. 
+	 * @return results already converted to BGR color image.
+	 * @throws StableDiffusionCancelledException if cancelled by options. 
+	 */
+	public StableResult<Img2ImgParams, BufferedImage> img2img(BufferedImage img, String prompt, String negative_prompt, 
+			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
+			Integer sample_steps, Float strength, Long seed, SDRequestOptions options) {
+		
+
+		// img2img(byte[]) would swap the channels back, pass the BGR pixels to native as they are. 
+		byte[] pixelsBGR = ImageUtils.imageToPixelsBGR(img);
+		
+		StableResult<Img2ImgParams, byte[]> result = img2imgBGR(
+				pixelsBGR, 
+				prompt, negative_prompt, 
+				cfg_scale, width, height, 
+				sample_method, sample_steps, strength, seed, options);
+		
+		return toBGRImages(result, result.getParams().getWidth(), result.getParams().getHeight());
+		
+	}
+	
+	
+	/**
+	 * Asynchronous version of {@link #img2img(BufferedImage, String)}. 
+	 * 
+	 * @param img NotNull
+	 * @param prompt NotNull 
+	 * @return future of results already converted to BGR color image.
+	 */
+	public CompletableFuture<StableResult<Img2ImgParams, BufferedImage>> img2imgAsync(
+			BufferedImage img, String prompt) {
+		return img2imgAsync(img, prompt, null, null, null, null, null, null, null, null);
+	}
+	
+	
+	/**
+	 * Asynchronous version of {@link #img2img(BufferedImage, String, String, Float, Integer, Integer, Integer, Integer, Float, Long)}, 
+	 * sampling runs on {@link StableDiffusionExecutors#getInferenceExecutor()}, 
+	 * pixel conversion runs on {@link StableDiffusionExecutors#getConversionExecutor()}. 
+	 * 
+	 * @param img NotNull BGR color mode image. 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param strength Nullable, default is 0.75f.
+	 * @param seed Nullable, default is 42L. 
+	 * @return future of results already converted to BGR color image.
+	 */
+	public CompletableFuture<StableResult<Img2ImgParams, BufferedImage>> img2imgAsync(BufferedImage img, 
+			String prompt, String negative_prompt, 
+			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
+			Integer sample_steps, Float strength, Long seed) {
+		
+		return img2imgAsync(img, prompt, negative_prompt, cfg_scale, width, height, 
+				sample_method, sample_steps, strength, seed, null);
+	}
+	
+	
+	/**
+	 * Asynchronous version of {@link #img2img(BufferedImage, String, String, Float, Integer, Integer, Integer, Integer, Float, Long, SDRequestOptions)}, 
+	 * cancelling the returned future aborts the native sampling. 
+	 * 
+	 * @param img NotNull BGR color mode image. 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param strength Nullable, default is 0.75f.
+	 * @param seed Nullable, default is 42L. 
+	 * @param options Nullable, progress callback and cancellation of this request. 
+	 * @return future of results already converted to BGR color image.
+	 */
+	public CompletableFuture<StableResult<Img2ImgParams, BufferedImage>> img2imgAsync(BufferedImage img, 
+			String prompt, String negative_prompt, 
+			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
+			Integer sample_steps, Float strength, Long seed, SDRequestOptions options) {
+		
+		SDRequestOptions cancellable = cancellableOptions(options);
+		
+		return cancelOnCancellation(StableDiffusionExecutors.supplyAsync(() -> ImageUtils.imageToPixelsBGR(img), 
+						StableDiffusionExecutors.getConversionExecutor())
+				.thenApplyAsync(pixelsBGR -> img2imgBGR(pixelsBGR, 
+						prompt, negative_prompt, 
+						cfg_scale, width, height, 
+						sample_method, sample_steps, strength, seed, cancellable), 
+						StableDiffusionExecutors.getInferenceExecutor())
+				.thenApplyAsync(result -> toBGRImages(result, 
+						result.getParams().getWidth(), result.getParams().getHeight()), 
+						StableDiffusionExecutors.getConversionExecutor()), 
+				cancellable);
+	}
+	
+	
+
+	/**
+	 * 
+	 * @param img NotNull, need RGB color mode image, need convert by {@link ImageUtils#reverseRGB(byte[])} manually. 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param  Nullable, output param returns image size, left is width, right is height. 
+	 * @return RGB color mode image, need convert by {@link ImageUtils#reverseRGB(byte[])} manually. 
+	 */
+	public StableResult<Img2ImgParams, byte[]> img2img(byte[] img, String prompt, String negative_prompt) {
+		
+		StableResult<Img2ImgParams, byte[]> results = img2img(img, prompt, negative_prompt, 
+				null, null, null, null, null, null, null);
+		
+		
+		return results;
+		
+	}
+	
+	
+	/**
+	 * 
+	 * @param img NotNull, need RGB color mode image, need convert by {@link ImageUtils#reverseRGB(byte[])} manually. 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param strength Nullable, default is 0.75f.
+	 * @param seed Nullable, default is 42L. 
+	 * @param  Nullable, output param returns image size, left is width, right is height. 
+	 * @return RGB color mode image, need convert by {@link ImageUtils#reverseRGB(byte[])} manually. 
+	 */
+	public StableResult<Img2ImgParams, byte[]> img2img(byte[] img, String prompt, String negative_prompt, 
+			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
+			Integer sample_steps, Float strength, Long seed) {
+		
+		return img2img(img, prompt, negative_prompt, cfg_scale, width, height, 
+				sample_method, sample_steps, strength, seed, (SDRequestOptions) null);
+	}
+	
+	
+	/**
+	 * 
+	 * @param img NotNull, need RGB color mode image, need convert by {@link ImageUtils#reverseRGB(byte[])} manually. 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param strength Nullable, default is 0.75f.
+	 * @param seed Nullable, default is 42L. 
+	 * @param options Nullable, progress callback and cancellation of this request. 
+	 * @return RGB color mode image, need convert by {@link ImageUtils#reverseRGB(byte[])} manually. 
+	 * @throws StableDiffusionCancelledException if cancelled by options. 
+	 */
+	public StableResult<Img2ImgParams, byte[]> img2img(byte[] img, String prompt, String negative_prompt, 
+			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
+			Integer sample_steps, Float strength, Long seed, SDRequestOptions options) {
+		
+		return img2imgBGR(ImageUtils.reverseRGB(img), prompt, negative_prompt, 
+				cfg_scale, width, height, sample_method, sample_steps, strength, seed, options);
+	}
+	
+	
+	/**
+	 * Same as {@link #img2img(byte[], String, String, Float, Integer, Integer, Integer, Integer, Float, Long, SDRequestOptions)}, 
+	 * arguments are taken from params. 
+	 * 
+	 * @param params NotNull, RGBImage is NotNull RGB color mode image, null fields take their default value. 
+	 * @param options Nullable, progress callback and cancellation of this request. 
+	 * @return RGB color mode image. 
+	 */
+	public StableResult<Img2ImgParams, byte[]> img2img(Img2ImgParams params, SDRequestOptions options) {
+		
+		if (params.getRGBImage() == null) {
+			throw new IllegalArgumentException("Argument params.RGBImage can not be null. ");
+		}
+		
+		return img2img(params.getRGBImage(), params.getPrompt(), params.getNegative_prompt(), 
+				params.getCfg_scale(), params.getWidth(), params.getHeight(), params.getSample_method(), 
+				params.getSample_steps(), params.getStrength(), params.getSeed(), options);
+	}
+	
+	
+	/**
+	 * 
+	 * @param params NotNull
+	 * @return copy of params with default value of every null field, RGBImage is shared. 
+	 */
+	public static Img2ImgParams withDefaults(Img2ImgParams params) {
+		Img2ImgParams copy = newImg2ImgParams(params.getPrompt(), params.getNegative_prompt(), 
+				params.getCfg_scale(), params.getWidth(), params.getHeight(), params.getSample_method(), 
+				params.getSample_steps(), params.getStrength(), params.getSeed());
+		copy.setRGBImage(params.getRGBImage());
+		return copy;
+	}
+	
+	
+	/**
+	 * 
+	 * @param img NotNull, BGR color mode pixels, passed to native as they are. 
+	 */
+	private synchronized StableResult<Img2ImgParams, byte[]> img2imgBGR(byte[] img, String prompt, String negative_prompt, 
+			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
+			Integer sample_steps, Float strength, Long seed, SDRequestOptions options) {
+		
+		Img2ImgParams params = newImg2ImgParams(prompt, negative_prompt, cfg_scale, 
+				width, height, sample_method, sample_steps, strength, seed);
+		
+		applyVaeTiling(options, params.getWidth(), params.getHeight());
+		
+		List<byte[]> resultImages = callNative(options, () -> img2img0(checkPointer(), 
+				img,
+				params.getPrompt(), params.getNegative_prompt(), params.getCfg_scale(), 
+				params.getWidth(), params.getHeight(), params.getSample_method(), 
+				params.getSample_steps(), params.getStrength(), params.getSeed()));
+		
+
+		StableResult<Img2ImgParams, byte[]> result = new StableResult<>();
+		result.setParams(params);
+		result.setResultImages(resultImages);
+		
+		return result;
+	}
+	
+	
+	/**
+	 * Same as {@link #img2img(byte[], String, String, Float, Integer, Integer, Integer, Integer, Float, Long)}, 
+	 * but native writes RGB pixels straight into the caller supplied direct buffer, no java heap array is allocated per image. <br>
+	 * The image is written from the buffer's current position, the buffer's position and limit are not changed. 
+	 * 
+	 * @param img NotNull, need RGB color mode image, need convert by {@link ImageUtils#reverseRGB(byte[])} manually. 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param strength Nullable, default is 0.75f.
+	 * @param seed Nullable, default is 42L. 
+	 * @param output NotNull, direct buffer, remaining space must hold width * height * 3 bytes. 
+	 * @return slices of output buffer, RGB color mode. 
+	 */
+	public StableResult<Img2ImgParams, ByteBuffer> img2img(byte[] img, String prompt, String negative_prompt, 
+			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
+			Integer sample_steps, Float strength, Long seed, ByteBuffer output) {
+		
+		return img2img(img, prompt, negative_prompt, cfg_scale, width, height, 
+				sample_method, sample_steps, strength, seed, output, null);
+	}
+	
+	
+	/**
+	 * Same as {@link #img2img(byte[], String, String, Float, Integer, Integer, Integer, Integer, Float, Long, ByteBuffer)}, 
+	 * with per request options. 
+	 * 
+	 * @param img NotNull, need RGB color mode image, need convert by {@link ImageUtils#reverseRGB(byte[])} manually. 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param strength Nullable, default is 0.75f.
+	 * @param seed Nullable, default is 42L. 
+	 * @param output NotNull, direct buffer, remaining space must hold width * height * 3 bytes. 
+	 * @param options Nullable, progress callback and cancellation of this request. 
+	 * @return slices of output buffer, RGB color mode. 
+	 * @throws StableDiffusionCancelledException if cancelled by options. 
+	 */
+	public synchronized StableResult<Img2ImgParams, ByteBuffer> img2img(byte[] img, String prompt, String negative_prompt, 
+			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
+			Integer sample_steps, Float strength, Long seed, ByteBuffer output, SDRequestOptions options) {
+		
+		
+		byte[] pixelsBGR = ImageUtils.reverseRGB(img);
+		
+		Img2ImgParams params = newImg2ImgParams(prompt, negative_prompt, cfg_scale, 
+				width, height, sample_method, sample_steps, strength, seed);
+		
+		int imageBytes = DirectBufferPool.rgbCapacity(params.getWidth(), params.getHeight(), 1);
+		checkOutputBuffer(output, imageBytes);
+		
+		applyVaeTiling(options, params.getWidth(), params.getHeight());
+		
+		int count = callNative(options, () -> {
+			if (NativeSupport.isAvailable("img2imgDirect0")) {
+				try {
+					return img2imgDirect0(checkPointer(), 
+							pixelsBGR,
+							params.getPrompt(), params.getNegative_prompt(), params.getCfg_scale(), 
+							params.getWidth(), params.getHeight(), params.getSample_method(), 
+							params.getSample_steps(), params.getStrength(), params.getSeed(), 
+							output, output.position());
+				} catch (UnsatisfiedLinkError e) {
+					NativeSupport.markUnavailable("img2imgDirect0", e);
+				}
+			}
+			
+			List<byte[]> images = img2img0(checkPointer(), 
+					pixelsBGR,
+					params.getPrompt(), params.getNegative_prompt(), params.getCfg_scale(), 
+					params.getWidth(), params.getHeight(), params.getSample_method(), 
+					params.getSample_steps(), params.getStrength(), params.getSeed());
+			return copyToOutputBuffer(images, output);
+		});
+		
+		StableResult<Img2ImgParams, ByteBuffer> result = new StableResult<>();
+		result.setParams(params);
+		result.setResultImages(sliceOutputBuffer(output, imageBytes, count));
+		
+		return result;
+	}
+	
+	
+	/**
+	 * Same as {@link #img2imgBatch(List, String, String, Float, Integer, Integer, Integer, Integer, Float, long[], SDRequestOptions)}, 
+	 * without options. 
+	 */
+	public StableResult<Img2ImgParams, byte[]> img2imgBatch(List<byte[]> imgs, String prompt, String negative_prompt, 
+			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
+			Integer sample_steps, Float strength, long[] seeds) {
+		
+		return img2imgBatch(imgs, prompt, negative_prompt, cfg_scale, width, height, 
+				sample_method, sample_steps, strength, seeds, null);
+	}
+	
+	
+	/**
+	 * Run several img2img as one native batch, either one init image with several seeds, 
+	 * or several init images with one seed each. Every init image is VAE encoded once per batch. <br>
+	 * Init images are packed into one reused direct buffer, if the loaded sd-jni library has no batched 
+	 * img2img the images are generated one by one. 
+	 * 
+	 * @param imgs NotNull, RGB color mode images of width * height * 3 bytes, one image shared by every seed, 
+	 * or one image per seed. 
+	 * @param prompt NotNull 
+	 * @param negative_prompt Nullable, default is empty string. 
+	 * @param cfg_scale Nullable, default is 7.0f. 
+	 * @param width Nullable, default is 512. 
+	 * @param height Nullable, default is 512, 
+	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
+	 * @param sample_steps Nullable, default is 20.  
+	 * @param strength Nullable, default is 0.75f.
+	 * @param seeds Nullable, seed of every image, default is 42, 43, ... one per init image. 
+	 * @param options Nullable, progress callback and cancellation of this request. 
+	 * @return RGB color mode images, in order of seeds, seed of params is the first seed. 
+	 * @throws StableDiffusionCancelledException if cancelled by options. 
+	 */
+	public synchronized StableResult<Img2ImgParams, byte[]> img2imgBatch(List<byte[]> imgs, String prompt, String negative_prompt, 
+			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
+			Integer sample_steps, Float strength, long[] seeds, SDRequestOptions options) {
+		
+		if (imgs == null || imgs.isEmpty() || imgs.contains(null)) {
+			throw new IllegalArgumentException("Argument imgs can not be empty or contain null. ");
+		}
+		
+		if (seeds == null) {
+			seeds = new long[imgs.size()];
+			for (int i = 0; i < seeds.length; i ++) {
+				seeds[i] = 42L + i;
+			}
 		}
 		
-		if (batch_count == null) {
-			batch_count = 1;
+		if (seeds.length == 0 || (imgs.size() != 1 && imgs.size() != seeds.length)) {
+			throw new IllegalArgumentException("Argument imgs must hold 1 image or one image per seed, images: " 
+					+ imgs.size() + ", seeds: " + seeds.length);
 		}
 		
+		Img2ImgParams params = newImg2ImgParams(prompt, negative_prompt, cfg_scale, 
+				width, height, sample_method, sample_steps, strength, seeds[0]);
 		
-		List<byte[]> results = txt2img0(pointer, 
-				prompt, negative_prompt, cfg_scale, 
-				width, height, sample_method, sample_steps, seed, batch_count);
+		int imageBytes = DirectBufferPool.rgbCapacity(params.getWidth(), params.getHeight(), 1);
+		for (byte[] img : imgs) {
+			if (img.length < imageBytes) {
+				throw new IllegalArgumentException("Argument imgs too short for " + params.getWidth() + "x" 
+						+ params.getHeight() + ": " + img.length);
+			}
+		}
 		
-		StableResult<Txt2ImgParams, byte[]> stableResult = new StableResult<>();
-		Txt2ImgParams params = new Txt2ImgParams();
-		params.setPrompt(prompt);
-		params.setNegative_prompt(negative_prompt);
-		params.setCfg_scale(cfg_scale);
-		params.setWidth(width);
-		params.setHeight(height);
-		params.setSample_method(sample_method);
-		params.setSample_steps(sample_steps);
-		params.setSeed(seed);
-		params.setBatch_count(batch_count);
+		applyVaeTiling(options, params.getWidth(), params.getHeight());
+		
+		long[] batchSeeds = seeds;
+		List<byte[]> resultImages = callNative(options, () -> {
+			if (NativeSupport.isAvailable("img2imgBatch0")) {
+				try {
+					return img2imgBatch(imgs, params, batchSeeds, imageBytes);
+				} catch (UnsatisfiedLinkError e) {
+					NativeSupport.markUnavailable("img2imgBatch0", e);
+				}
+			}
+			
+			SDCancellationToken cancellationToken = options == null ? null : options.getCancellationToken();
+			byte[] sharedBGR = imgs.size() == 1 ? ImageUtils.reverseRGB(imgs.get(0)) : null;
+			List<byte[]> images = new ArrayList<>(batchSeeds.length);
+			for (int i = 0; i < batchSeeds.length; i ++) {
+				if (cancellationToken != null) {
+					cancellationToken.throwIfCancelled();
+				}
+				images.addAll(img2img0(checkPointer(), 
+						sharedBGR != null ? sharedBGR : ImageUtils.reverseRGB(imgs.get(i)),
+						params.getPrompt(), params.getNegative_prompt(), params.getCfg_scale(), 
+						params.getWidth(), params.getHeight(), params.getSample_method(), 
+						params.getSample_steps(), params.getStrength(), batchSeeds[i]));
+			}
+			return images;
+		});
 		
-		stableResult.setParams(params);
-		stableResult.setResultImages(results);
+		StableResult<Img2ImgParams, byte[]> result = new StableResult<>();
+		result.setParams(params);
+		result.setResultImages(resultImages);
 		
-		return stableResult;
+		return result;
 	}
 	
-
-	protected static native List<byte[]> txt2img0(
-			long pointer, 
-			String prompt, String negative_prompt, 
-			float cfg_scale, int width, int height, int sample_method, 
-			int sample_steps, long seed, int batch_count);
 	
-
-
+	/**
+	 * Pack the init images as BGR into one pooled buffer and run the native batch. 
+	 */
+	private List<byte[]> img2imgBatch(List<byte[]> imgs, Img2ImgParams params, long[] seeds, int imageBytes) {
+		
+		ByteBuffer input = batchBuffers.acquire(DirectBufferPool.rgbCapacity(params.getWidth(), params.getHeight(), imgs.size()));
+		ByteBuffer output = batchBuffers.acquire(DirectBufferPool.rgbCapacity(params.getWidth(), params.getHeight(), seeds.length));
+		try {
+			byte[] row = new byte[params.getWidth() * 3];
+			for (byte[] img : imgs) {
+				for (int offset = 0; offset < imageBytes; offset += row.length) {
+					for (int i = 0; i < row.length; i += 3) {
+						row[i] = img[offset + i + 2];
+						row[i + 1] = img[offset + i + 1];
+						row[i + 2] = img[offset + i];
+					}
+					input.put(row);
+				}
+			}
+			
+			int count = img2imgBatch0(checkPointer(), 
+					input, imgs.size(),
+					params.getPrompt(), params.getNegative_prompt(), params.getCfg_scale(), 
+					params.getWidth(), params.getHeight(), params.getSample_method(), 
+					params.getSample_steps(), params.getStrength(), seeds, 
+					output, 0);
+			
+			List<byte[]> images = new ArrayList<>(count);
+			for (int i = 0; i < count; i ++) {
+				byte[] image = new byte[imageBytes];
+				output.get(image);
+				images.add(image);
+			}
+			return images;
+		} finally {
+			batchBuffers.release(input);
+			batchBuffers.release(output);
+		}
+	}
+	
 	
 	/**
+	 * VAE encode an image into the latent space of the loaded model, the latent can be sampled many times by 
+	 * {@link #img2img(Latent, String, String, Float, Integer, Integer, Float, Long, SDRequestOptions)} without 
+	 * encoding the image again, see {@link org.javaai.stablediffusion.api.cache.LatentCache}. 
 	 * 
-	 * @param img NotNull
-	 * @param prompt NotNull 
-	 * @param negative_prompt Nullable, default is empty string. 
-	 * @return results already converted to BGR color image.
+	 * @param img NotNull, RGB color mode image, width * height * 3 bytes. 
+	 * @param width multiple of 8. 
+	 * @param height multiple of 8. 
+	 * @return NotNull 
+	 * @throws UnsupportedOperationException if the loaded sd-jni library has no latent API. 
 	 */
-	public StableResult<Img2ImgParams, BufferedImage> img2img(
-			BufferedImage img, String prompt) {
+	public Latent encodeLatent(byte[] img, int width, int height) {
+		return encodeLatent(img, width, height, null);
+	}
+	
+	
+	/**
+	 * Same as {@link #encodeLatent(byte[], int, int)}, with the VAE tiling of options. 
+	 * 
+	 * @param img NotNull, RGB color mode image, width * height * 3 bytes. 
+	 * @param width multiple of 8. 
+	 * @param height multiple of 8. 
+	 * @param options Nullable, only the VAE tiling is used. 
+	 * @return NotNull 
+	 * @throws UnsupportedOperationException if the loaded sd-jni library has no latent API. 
+	 */
+	public synchronized Latent encodeLatent(byte[] img, int width, int height, SDRequestOptions options) {
 		
-		StableResult<Img2ImgParams, BufferedImage> results = img2img(img, 
-				prompt, null, null, null, null, null, null, null, null);
+		int channels = latentChannels();
+		int size = Latent.byteSize(width, height, channels);
 		
-		return results;
+		if (img == null || img.length < width * height * 3) {
+			throw new IllegalArgumentException("Argument img can not be null or shorter than width * height * 3. ");
+		}
+		
+		if (!NativeSupport.isAvailable("encodeLatent0")) {
+			throw new UnsupportedOperationException("The loaded sd-jni library can not encode latents. ");
+		}
+		
+		applyVaeTiling(options, width, height);
+		
+		ByteBuffer data = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+		boolean encoded;
+		try {
+			encoded = encodeLatent0(checkPointer(), ImageUtils.reverseRGB(img), width, height, data);
+		} catch (UnsatisfiedLinkError e) {
+			NativeSupport.markUnavailable("encodeLatent0", e);
+			throw new UnsupportedOperationException("The loaded sd-jni library can not encode latents. ", e);
+		}
+		
+		if (!encoded) {
+			throw new StableDiffusionException("Encode latent failed! size: [" + width + "x" + height + "]");
+		}
+		
+		return new Latent(data, width, height, channels, modelFingerprint);
 	}
 	
 	
-
-	
 	/**
 	 * 
-	 * @param img NotNull
-	 * @param prompt NotNull 
-	 * @param negative_prompt Nullable, default is empty string. 
-	 * @return results already converted to BGR color image.
+	 * @return latent channels of the loaded model. 
+	 * @throws UnsupportedOperationException if the loaded sd-jni library has no latent API. 
 	 */
-	public StableResult<Img2ImgParams, BufferedImage> img2img(
-			BufferedImage img, String prompt, String negative_prompt) {
+	private int latentChannels() {
 		
-		StableResult<Img2ImgParams, BufferedImage> results = img2img(img, 
-				prompt, negative_prompt, null, null, null, null, null, null, null);
+		if (!loaded) {
+			throw new StableDiffusionException("StableDiffusion instance has no model loaded. ");
+		}
 		
-		return results;
+		if (!NativeSupport.isAvailable("latentChannels0")) {
+			throw new UnsupportedOperationException("The loaded sd-jni library has no latent API. ");
+		}
+		
+		try {
+			return latentChannels0(checkPointer());
+		} catch (UnsatisfiedLinkError e) {
+			NativeSupport.markUnavailable("latentChannels0", e);
+			throw new UnsupportedOperationException("The loaded sd-jni library has no latent API. ", e);
+		}
+	}
+	
+	
+	private void checkLatent(Latent latent) {
+		
+		if (latent == null) {
+			throw new IllegalArgumentException("Argument latent can not be null. ");
+		}
+		
+		if (!latent.getModelFingerprint().equals(modelFingerprint)) {
+			throw new IllegalArgumentException("Argument latent belongs to another model. ");
+		}
 	}
 	
-
 	
 	/**
+	 * Same as {@link #img2img(byte[], String, String, Float, Integer, Integer, Integer, Integer, Float, Long, SDRequestOptions)}, 
+	 * starting from an encoded init image, size of the output is the size of the latent. 
 	 * 
-	 * @param img NotNull BGR color mode image. 
+	 * @param init NotNull, encoded by {@link #encodeLatent(byte[], int, int)} of an instance with the same model. 
 	 * @param prompt NotNull 
 	 * @param negative_prompt Nullable, default is empty string. 
 	 * @param cfg_scale Nullable, default is 7.0f. 
-	 * @param width Nullable, default is 512. 
-	 * @param height Nullable, default is 512, 
 	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
 	 * @param sample_steps Nullable, default is 20.  
 	 * @param strength Nullable, default is 0.75f.
 	 * @param seed Nullable, default is 42L. 
-	 * @return results already converted to BGR color image.
+	 * @param options Nullable, progress callback and cancellation of this request. 
+	 * @return RGB color mode image. 
+	 * @throws UnsupportedOperationException if the loaded sd-jni library has no latent API. 
+	 * @throws StableDiffusionCancelledException if cancelled by options. 
 	 */
-	public StableResult<Img2ImgParams, BufferedImage> img2img(BufferedImage img, String prompt, String negative_prompt, 
-			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
-			Integer sample_steps, Float strength, Long seed) {
+	public synchronized StableResult<Img2ImgParams, byte[]> img2img(Latent init, String prompt, String negative_prompt, 
+			Float cfg_scale, Integer sample_method, Integer sample_steps, Float strength, Long seed, 
+			SDRequestOptions options) {
 		
-
-		byte[] pixelsBGR = ImageUtils.imageToPixelsBGR(img);
-		pixelsBGR = ImageUtils.reverseRGB(pixelsBGR);
+		checkLatent(init);
 		
-		StableResult<Img2ImgParams, byte[]> result = img2img(
-				pixelsBGR, 
-				prompt, negative_prompt, 
-				cfg_scale, width, height, 
-				sample_method, sample_steps, strength, seed);
+		Img2ImgParams params = newImg2ImgParams(prompt, negative_prompt, cfg_scale, 
+				init.getWidth(), init.getHeight(), sample_method, sample_steps, strength, seed);
 		
-		StableResult<Img2ImgParams, BufferedImage> biResult = new StableResult<>();
-		biResult.setParams(result.getParams());
+		if (!NativeSupport.isAvailable("img2imgLatent0")) {
+			throw new UnsupportedOperationException("The loaded sd-jni library can not sample from latents. ");
+		}
 		
-		List<BufferedImage> bufferedImages = new ArrayList<>();
-		for (byte[] byteImage : result.getResultImages()) {
-			
-			byteImage = ImageUtils.reverseRGB(byteImage);
-			
-			BufferedImage bufferedImage = ImageUtils.pixelsBGRToImage(byteImage, 
-					result.getParams().getWidth(), result.getParams().getHeight());
-			bufferedImages.add(bufferedImage);
-
+		applyVaeTiling(options, params.getWidth(), params.getHeight());
+		
+		List<byte[]> resultImages = callNative(options, () -> {
+			try {
+				return img2imgLatent0(checkPointer(), 
+						init.getData(), init.getChannels(),
+						params.getPrompt(), params.getNegative_prompt(), params.getCfg_scale(), 
+						params.getWidth(), params.getHeight(), params.getSample_method(), 
+						params.getSample_steps(), params.getStrength(), params.getSeed());
+			} catch (UnsatisfiedLinkError e) {
+				NativeSupport.markUnavailable("img2imgLatent0", e);
+				throw new UnsupportedOperationException("The loaded sd-jni library can not sample from latents. ", e);
+			}
+		});
+		
+		StableResult<Img2ImgParams, byte[]> result = new StableResult<>();
+		result.setParams(params);
+		result.setResultImages(resultImages);
+		
+		return result;
+	}
+	
+	
+	/**
+	 * Same as {@link #txt2PixelsImg(Txt2ImgParams, SDRequestOptions)}, but stops before VAE decoding and returns 
+	 * the final latents, off heap. <br>
+	 * Pass only the latents worth keeping to {@link #decode(List)}, later, on this or any other instance 
+	 * with the same model, for example a pipeline which ranks N candidates decodes only the best ones. 
+	 * 
+	 * @param params NotNull, null fields take their default value, width and height must be multiples of 8. 
+	 * @param options Nullable, progress callback and cancellation of this request. 
+	 * @return one latent per image of the batch. 
+	 * @throws UnsupportedOperationException if the loaded sd-jni library has no latent API. 
+	 * @throws StableDiffusionCancelledException if cancelled by options. 
+	 */
+	public synchronized StableResult<Txt2ImgParams, Latent> txt2Latent(Txt2ImgParams params, SDRequestOptions options) {
+		
+		Txt2ImgParams p = withDefaults(params);
+		int channels = latentChannels();
+		int latentBytes = Latent.byteSize(p.getWidth(), p.getHeight(), channels);
+		
+		if (!NativeSupport.isAvailable("txt2imgLatent0")) {
+			throw new UnsupportedOperationException("The loaded sd-jni library can not return latents. ");
 		}
 		
-		biResult.setResultImages(bufferedImages);
+		ByteBuffer output = ByteBuffer.allocateDirect(latentBytes * p.getBatch_count()).order(ByteOrder.nativeOrder());
+		int count = callNative(options, () -> {
+			try {
+				return txt2imgLatent0(checkPointer(), 
+						p.getPrompt(), p.getNegative_prompt(), p.getCfg_scale(), 
+						p.getWidth(), p.getHeight(), p.getSample_method(), 
+						p.getSample_steps(), p.getSeed(), p.getBatch_count(), 
+						output);
+			} catch (UnsatisfiedLinkError e) {
+				NativeSupport.markUnavailable("txt2imgLatent0", e);
+				throw new UnsupportedOperationException("The loaded sd-jni library can not return latents. ", e);
+			}
+		});
+		
+		List<Latent> latents = new ArrayList<>(count);
+		for (ByteBuffer slice : sliceOutputBuffer(output, latentBytes, count)) {
+			latents.add(new Latent(slice, p.getWidth(), p.getHeight(), channels, modelFingerprint));
+		}
 		
-		return biResult;
+		StableResult<Txt2ImgParams, Latent> result = new StableResult<>();
+		result.setParams(p);
+		result.setResultImages(latents);
 		
+		return result;
 	}
 	
 	
-
 	/**
+	 * VAE decode latents, latents of the same size are decoded together in one native call. 
 	 * 
-	 * @param img NotNull, need RGB color mode image, need convert by {@link ImageUtils#reverseRGB(byte[])} manually. 
-	 * @param prompt NotNull 
-	 * @param negative_prompt Nullable, default is empty string. 
-	 * @param  Nullable, output param returns image size, left is width, right is height. 
-	 * @return RGB color mode image, need convert by {@link ImageUtils#reverseRGB(byte[])} manually. 
+	 * @param latents NotNull, produced by an instance with the same model. 
+	 * @return RGB color mode images, in order of latents. 
+	 * @throws UnsupportedOperationException if the loaded sd-jni library has no latent API. 
 	 */
-	public StableResult<Img2ImgParams, byte[]> img2img(byte[] img, String prompt, String negative_prompt) {
+	public List<byte[]> decode(List<Latent> latents) {
+		return decode(latents, null);
+	}
+	
+	
+	/**
+	 * Same as {@link #decode(List)}, with the VAE tiling of options, large latents may need a tiled VAE. 
+	 * 
+	 * @param latents NotNull, produced by an instance with the same model. 
+	 * @param options Nullable, only the VAE tiling is used. 
+	 * @return RGB color mode images, in order of latents. 
+	 * @throws UnsupportedOperationException if the loaded sd-jni library has no latent API. 
+	 */
+	public synchronized List<byte[]> decode(List<Latent> latents, SDRequestOptions options) {
 		
-		StableResult<Img2ImgParams, byte[]> results = img2img(img, prompt, negative_prompt, 
-				null, null, null, null, null, null, null);
+		if (latents == null || latents.contains(null)) {
+			throw new IllegalArgumentException("Argument latents can not be null or contain null. ");
+		}
+		
+		for (Latent latent : latents) {
+			checkLatent(latent);
+		}
 		
+		if (!NativeSupport.isAvailable("decodeLatents0")) {
+			throw new UnsupportedOperationException("The loaded sd-jni library can not decode latents. ");
+		}
+		
+		byte[][] images = new byte[latents.size()][];
+		boolean[] decoded = new boolean[latents.size()];
+		for (int i = 0; i < latents.size(); i ++) {
+			if (decoded[i]) {
+				continue;
+			}
+			
+			Latent first = latents.get(i);
+			List<Integer> group = new ArrayList<>();
+			for (int j = i; j < latents.size(); j ++) {
+				Latent latent = latents.get(j);
+				if (!decoded[j] && latent.getWidth() == first.getWidth() && latent.getHeight() == first.getHeight()) {
+					group.add(j);
+					decoded[j] = true;
+				}
+			}
+			
+			ByteBuffer[] buffers = new ByteBuffer[group.size()];
+			for (int j = 0; j < buffers.length; j ++) {
+				buffers[j] = latents.get(group.get(j)).getData();
+			}
+			
+			applyVaeTiling(options, first.getWidth(), first.getHeight());
+			
+			List<byte[]> groupImages;
+			try {
+				groupImages = decodeLatents0(checkPointer(), buffers, first.getChannels(), 
+						first.getWidth(), first.getHeight());
+			} catch (UnsatisfiedLinkError e) {
+				NativeSupport.markUnavailable("decodeLatents0", e);
+				throw new UnsupportedOperationException("The loaded sd-jni library can not decode latents. ", e);
+			}
+			
+			if (groupImages == null || groupImages.size() != buffers.length) {
+				throw new StableDiffusionException("Decode latents failed! size: [" + first.getWidth() + "x" 
+						+ first.getHeight() + "] count: [" + buffers.length + "]");
+			}
+			
+			for (int j = 0; j < buffers.length; j ++) {
+				images[group.get(j)] = groupImages.get(j);
+			}
+		}
 		
+		List<byte[]> results = new ArrayList<>(images.length);
+		for (byte[] image : images) {
+			results.add(image);
+		}
 		return results;
+	}
+	
+	
+	/**
+	 * Two pass hires fix: txt2img at the size of params, upscale, then refine at the hires size by img2img. <br>
+	 * With the latent API the first pass is never decoded, its latents are upscaled off heap and refined, 
+	 * only the final images are decoded and cross JNI. Otherwise the first pass is decoded, its pixels are 
+	 * upscaled and refined by a plain img2img, a first pass already sampled as latents is decoded, not sampled again. 
+	 * 
+	 * @param params NotNull, first pass, null fields take their default value. 
+	 * @param hires_width Nullable, default is 2 * width, multiple of 8. 
+	 * @param hires_height Nullable, default is 2 * height, multiple of 8. 
+	 * @param hires_steps Nullable, default is sample_steps of params. 
+	 * @param hires_strength Nullable, default is 0.5f, how much the second pass changes the upscaled image. 
+	 * @param options Nullable, progress callback and cancellation, shared by both passes. 
+	 * @return RGB color mode images of hires_width * hires_height, params of the first pass. 
+	 * @throws StableDiffusionCancelledException if cancelled by options. 
+	 */
+	public synchronized StableResult<Txt2ImgParams, byte[]> hiresTxt2img(Txt2ImgParams params, 
+			Integer hires_width, Integer hires_height, Integer hires_steps, Float hires_strength, 
+			SDRequestOptions options) {
+		
+		Txt2ImgParams p = withDefaults(params);
+		
+		if (hires_width == null) {
+			hires_width = p.getWidth() * 2;
+		}
+		
+		if (hires_height == null) {
+			hires_height = p.getHeight() * 2;
+		}
+		
+		if (hires_steps == null) {
+			hires_steps = p.getSample_steps();
+		}
 		
+		if (hires_strength == null) {
+			hires_strength = 0.5f;
+		}
+		
+		if (hires_width < 8 || hires_height < 8 || hires_width % 8 != 0 || hires_height % 8 != 0) {
+			throw new IllegalArgumentException("Hires size must be multiples of 8: " + hires_width + "x" + hires_height);
+		}
+		
+		// Only start the latent path if every entry point it needs is supported, as far as known. 
+		List<Latent> baseLatents = null;
+		if (NativeSupport.isAvailable("latentChannels0") && NativeSupport.isAvailable("txt2imgLatent0") 
+				&& NativeSupport.isAvailable("img2imgLatent0") && NativeSupport.isAvailable("decodeLatents0")) {
+			try {
+				baseLatents = txt2Latent(p, options).getResultImages();
+			} catch (UnsupportedOperationException e) {
+				baseLatents = null;
+			}
+		}
+		
+		List<byte[]> images = null;
+		if (baseLatents != null) {
+			try {
+				images = new ArrayList<>(baseLatents.size());
+				for (int i = 0; i < baseLatents.size(); i ++) {
+					Latent base = baseLatents.get(i);
+					if (NativeSupport.isAvailable("img2imgLatent0")) {
+						try {
+							images.addAll(img2img(base.resize(hires_width, hires_height), p.getPrompt(), 
+									p.getNegative_prompt(), p.getCfg_scale(), p.getSample_method(), hires_steps, 
+									hires_strength, p.getSeed() + i, options).getResultImages());
+							continue;
+						} catch (UnsupportedOperationException e) {
+							// Keep the first pass, refine it in pixel space. 
+						}
+					}
+					images.addAll(refineHires(decode(Collections.singletonList(base), options).get(0), p, 
+							hires_width, hires_height, hires_steps, hires_strength, i, options));
+				}
+			} catch (UnsupportedOperationException e) {
+				images = null;
+			}
+		}
+		
+		if (images == null) {
+			List<byte[]> base = txt2PixelsImg(p, options).getResultImages();
+			images = new ArrayList<>(base.size());
+			for (int i = 0; i < base.size(); i ++) {
+				images.addAll(refineHires(base.get(i), p, hires_width, hires_height, hires_steps, hires_strength, 
+						i, options));
+			}
+		}
+		
+		StableResult<Txt2ImgParams, byte[]> result = new StableResult<>();
+		result.setParams(p);
+		result.setResultImages(images);
+		
+		return result;
 	}
 	
 	
 	/**
+	 * Second pass of {@link #hiresTxt2img(Txt2ImgParams, Integer, Integer, Integer, Float, SDRequestOptions)} 
+	 * in pixel space. 
 	 * 
-	 * @param img NotNull, need RGB color mode image, need convert by {@link ImageUtils#reverseRGB(byte[])} manually. 
-	 * @param prompt NotNull 
-	 * @param negative_prompt Nullable, default is empty string. 
-	 * @param cfg_scale Nullable, default is 7.0f. 
-	 * @param width Nullable, default is 512. 
-	 * @param height Nullable, default is 512, 
-	 * @param sample_method Nullable, default is {@link SampleMethod#EULER_A}
-	 * @param sample_steps Nullable, default is 20.  
-	 * @param strength Nullable, default is 0.75f.
-	 * @param seed Nullable, default is 42L. 
-	 * @param  Nullable, output param returns image size, left is width, right is height. 
-	 * @return RGB color mode image, need convert by {@link ImageUtils#reverseRGB(byte[])} manually. 
+	 * @param base RGB color mode image of the first pass. 
+	 * @param index index of base in the batch of the first pass. 
 	 */
-	public StableResult<Img2ImgParams, byte[]> img2img(byte[] img, String prompt, String negative_prompt, 
+	private List<byte[]> refineHires(byte[] base, Txt2ImgParams p, int hires_width, int hires_height, 
+			int hires_steps, float hires_strength, int index, SDRequestOptions options) {
+		byte[] upscaled = ImageUtils.resizeRGB(base, p.getWidth(), p.getHeight(), hires_width, hires_height);
+		return img2img(upscaled, p.getPrompt(), p.getNegative_prompt(), p.getCfg_scale(), 
+				hires_width, hires_height, p.getSample_method(), hires_steps, hires_strength, 
+				p.getSeed() + index, options).getResultImages();
+	}
+	
+	
+	private static Img2ImgParams newImg2ImgParams(String prompt, String negative_prompt, 
 			Float cfg_scale, Integer width, Integer height, Integer sample_method, 
 			Integer sample_steps, Float strength, Long seed) {
 		
-		
-		img = ImageUtils.reverseRGB(img);
-		
 		if (StringUtils.isBlank(prompt)) {
 			throw new IllegalArgumentException("Argument prompt can not be empty/blank. ");
 		}
@@ -508,14 +2240,6 @@ public class StableDiffusion implements AutoCloseable {
 			strength = 0.75f;
 		}
 		
-		
-		List<byte[]> resultImages = img2img0(pointer, 
-				img,
-				prompt, negative_prompt, cfg_scale, 
-				width, height, sample_method, sample_steps, strength, seed);
-		
-
-		StableResult<Img2ImgParams, byte[]> result = new StableResult<>();
 		Img2ImgParams params = new Img2ImgParams();
 		params.setPrompt(prompt);
 		params.setNegative_prompt(negative_prompt);
@@ -527,10 +2251,7 @@ public class StableDiffusion implements AutoCloseable {
 		params.setStrength(strength);
 		params.setSeed(seed);
 		
-		result.setParams(params);
-		result.setResultImages(resultImages);
-		
-		return result;
+		return params;
 	}
 	
 
@@ -542,6 +2263,115 @@ public class StableDiffusion implements AutoCloseable {
 			int sample_steps, float strength, long seed);
 	
 	
+	/**
+	 * 
+	 * @return count of images written to output, starting at offset. 
+	 */
+	protected static native int img2imgDirect0(
+			long pointer, 
+			byte[] img,
+			String prompt, String negative_prompt, 
+			float cfg_scale, int width, int height, int sample_method, 
+			int sample_steps, float strength, long seed, 
+			ByteBuffer output, int offset);
+	
+	
+	/**
+	 * 
+	 * @param images direct buffer of image_count BGR images, 1 image shared by every seed, or one image per seed. 
+	 * @param seeds seed of every output image. 
+	 * @return count of RGB images written to output, starting at offset. 
+	 */
+	protected static native int img2imgBatch0(
+			long pointer, 
+			ByteBuffer images, int image_count,
+			String prompt, String negative_prompt, 
+			float cfg_scale, int width, int height, int sample_method, 
+			int sample_steps, float strength, long[] seeds, 
+			ByteBuffer output, int offset);
+	
+	
+	protected static native int latentChannels0(long pointer);
+	
+	
+	/**
+	 * 
+	 * @param img BGR pixels. 
+	 * @param output direct buffer receiving channels x (height / 8) x (width / 8) float32 values. 
+	 */
+	protected static native boolean encodeLatent0(long pointer, byte[] img, int width, int height, ByteBuffer output);
+	
+	
+	/**
+	 * 
+	 * @param latent direct buffer of the init latent, read only. 
+	 * @return RGB images. 
+	 */
+	protected static native List<byte[]> img2imgLatent0(
+			long pointer, 
+			ByteBuffer latent, int channels,
+			String prompt, String negative_prompt, 
+			float cfg_scale, int width, int height, int sample_method, 
+			int sample_steps, float strength, long seed);
+	
+	
+	/**
+	 * 
+	 * @param output direct buffer receiving batch_count latents, one after another. 
+	 * @return count of latents written to output. 
+	 */
+	protected static native int txt2imgLatent0(
+			long pointer, 
+			String prompt, String negative_prompt, 
+			float cfg_scale, int width, int height, int sample_method, 
+			int sample_steps, long seed, int batch_count, 
+			ByteBuffer output);
+	
+	
+	/**
+	 * 
+	 * @param latents direct buffers of latents of the same size, read only. 
+	 * @return RGB images, one per latent. 
+	 */
+	protected static native List<byte[]> decodeLatents0(long pointer, ByteBuffer[] latents, int channels, 
+			int width, int height);
+	
+	
+	/**
+	 * Upscale with the ESRGAN model given as esrgan_path to the constructor, loaded on first use in a native 
+	 * context of its own and closed again when idle. Does not wait for sampling of this instance. <br>
+	 * Large images should go through a {@link org.javaai.stablediffusion.api.upscale.TiledUpscaler}, 
+	 * which splits them into tiles and runs the tiles on several instances. 
+	 * 
+	 * @param pixelsRGB NotNull, RGB pixels, width * height * 3 bytes. 
+	 * @param width 
+	 * @param height 
+	 * @param upscale_factor at least 1. 
+	 * @return RGB pixels, (width * upscale_factor) * (height * upscale_factor) * 3 bytes. 
+	 * @throws IllegalStateException if the instance has no ESRGAN model. 
+	 * @throws UnsupportedOperationException if the loaded sd-jni library has no ESRGAN upscaling. 
+	 */
+	public byte[] upscale(byte[] pixelsRGB, int width, int height, int upscale_factor) {
+		
+		if (esrgan == null) {
+			throw new IllegalStateException("No ESRGAN model, create the instance with esrgan_path to upscale. ");
+		}
+		
+		if (!NativeSupport.isAvailable("newUpscaler0")) {
+			throw new UnsupportedOperationException("The loaded sd-jni library does not support ESRGAN upscaling. ");
+		}
+		
+		try {
+			return esrgan.use(upscaler -> upscaler.upscale(pixelsRGB, width, height, upscale_factor));
+		} catch (StableDiffusionException e) {
+			if (e.getCause() instanceof UnsatisfiedLinkError) {
+				NativeSupport.markUnavailable("newUpscaler0", (UnsatisfiedLinkError) e.getCause());
+				throw new UnsupportedOperationException("The loaded sd-jni library does not support ESRGAN upscaling. ", 
+						e.getCause());
+			}
+			throw e;
+		}
+	}
 	
 	
 	
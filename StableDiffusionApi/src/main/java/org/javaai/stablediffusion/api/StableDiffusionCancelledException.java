@@ -0,0 +1,24 @@
+package org.javaai.stablediffusion.api;
+
+/**
+ * Thrown when a request is aborted by its {@link SDCancellationToken}. 
+ */
+public class StableDiffusionCancelledException extends StableDiffusionException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -3260935518418934520L;
+
+	public StableDiffusionCancelledException() {
+		super();
+	}
+
+	public StableDiffusionCancelledException(String message) {
+		super(message);
+	}
+
+	
+	
+	
+}
@@ -20,23 +20,46 @@ package org.javaai.stablediffusion.api;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
+import org.javaai.stablediffusion.api.utils.DigestBuilder;
+
 public class StableDiffusionLoader {
 
 	public static final String NATIVE_LIBRARY_NAME = "sd-jni";
 
+	/**
+	 * System property of the directory the native binaries are extracted to, see {@link #getCacheDirectory()}.
+	 */
+	public static final String CACHE_DIR_PROPERTY = "sd.jni.cache.dir";
+
+	/**
+	 * System property forcing a native binary variant: generic, avx2 or avx512,
+	 * default is detected from the CPU features.
+	 */
+	public static final String VARIANT_PROPERTY = "sd.jni.variant";
+
 	private final static Logger logger = Logger.getLogger(StableDiffusionLoader.class.getName());
 
 	static enum OS {
@@ -102,6 +125,103 @@ public class StableDiffusionLoader {
 		}
 	}
 
+	/**
+	 * Packaged builds of the native binary by instruction set, a variant other than
+	 * {@link #GENERIC} is packaged next to the generic binary, in a sub directory
+	 * named after the variant, for example {@code lib/linux/x86_64/avx2/libsd-jni.so}.
+	 */
+	static enum CpuVariant {
+		/**
+		 * Flags of ggml's AVX-512 build.
+		 */
+		AVX512("avx512", "avx512f", "avx512cd", "avx512vl", "avx512dq", "avx512bw"),
+		/**
+		 * Flags of ggml's AVX2 build.
+		 */
+		AVX2("avx2", "avx", "avx2", "fma", "f16c"),
+		GENERIC(null);
+
+		private final String directory;
+		private final Set<String> requiredFlags;
+
+		private CpuVariant(final String directory, final String... requiredFlags) {
+			this.directory = directory;
+			this.requiredFlags = new HashSet<String>(Arrays.asList(requiredFlags));
+		}
+
+		String locate(final String genericLocation) {
+			if (directory == null) {
+				return genericLocation;
+			}
+			final int slash = genericLocation.lastIndexOf('/');
+			return genericLocation.substring(0, slash + 1) + directory + genericLocation.substring(slash);
+		}
+
+		/**
+		 * @return variants to try, best first, always ending with {@link #GENERIC}.
+		 */
+		static List<VariantCandidate> getCandidates(final OS os, final Arch arch) {
+			final List<VariantCandidate> candidates = new ArrayList<VariantCandidate>();
+
+			final String override = System.getProperty(VARIANT_PROPERTY);
+			if (override != null && !override.isEmpty()) {
+				try {
+					final CpuVariant variant = CpuVariant.valueOf(override.trim().toUpperCase(Locale.ROOT));
+					candidates.add(new VariantCandidate(variant, "selected by system property " + VARIANT_PROPERTY));
+					if (variant != GENERIC) {
+						candidates.add(new VariantCandidate(GENERIC, "fallback of " + variant));
+					}
+					return candidates;
+				} catch (final IllegalArgumentException e) {
+					logger.log(Level.WARNING, "Ignoring unknown native binary variant \"{0}\" of system property {1}.",
+							new Object[] { override, VARIANT_PROPERTY });
+				}
+			}
+
+			final Set<String> flags = OS.LINUX.equals(os) && Arch.X86_64.equals(arch) ? readCpuFlags() : null;
+			if (flags == null) {
+				candidates.add(new VariantCandidate(GENERIC, "CPU features not detected on " + os + " " + arch));
+				return candidates;
+			}
+
+			for (final CpuVariant variant : values()) {
+				if (variant != GENERIC && flags.containsAll(variant.requiredFlags)) {
+					candidates.add(new VariantCandidate(variant, "CPU supports " + variant.requiredFlags));
+				}
+			}
+			candidates.add(new VariantCandidate(GENERIC,
+					candidates.isEmpty() ? "CPU lacks AVX2 features" : "fallback of " + candidates.get(0).variant));
+			return candidates;
+		}
+
+		/**
+		 * @return flags of the first processor in /proc/cpuinfo, null if unreadable.
+		 */
+		static Set<String> readCpuFlags() {
+			try {
+				for (final String line : Files.readAllLines(Paths.get("/proc/cpuinfo"), StandardCharsets.UTF_8)) {
+					final int colon = line.indexOf(':');
+					if (colon > 0 && line.substring(0, colon).trim().equals("flags")) {
+						return new HashSet<String>(Arrays.asList(line.substring(colon + 1).trim().split("\\s+")));
+					}
+				}
+			} catch (final IOException | RuntimeException e) {
+				logger.log(Level.FINE, "Can not read /proc/cpuinfo.", e);
+			}
+			return null;
+		}
+	}
+
+	private static class VariantCandidate {
+		private final CpuVariant variant;
+		private final String reason;
+
+		private VariantCandidate(final CpuVariant variant, final String reason) {
+			this.variant = variant;
+			this.reason = reason;
+		}
+	}
+
 	private static class UnsupportedPlatformException extends RuntimeException {
 		private UnsupportedPlatformException(final OS os, final Arch arch) {
 			super(String.format("Operating system \"%s\" and architecture \"%s\" are not supported.", os, arch));
@@ -188,7 +308,7 @@ public class StableDiffusionLoader {
 	 * Exactly once per {@link ClassLoader}, attempt to load the native library (via
 	 * {@link System#loadLibrary(String)} with {@link #NATIVE_LIBRARY_NAME}). If the
 	 * first attempt fails, the native binary will be extracted from the classpath
-	 * to a temporary location (which gets cleaned up on shutdown), that location is
+	 * to the cache directory (see {@link #getCacheDirectory()}), that location is
 	 * added to the {@code java.library.path} system property and
 	 * {@link ClassLoader#usr_paths}, and then another call to load the library is
 	 * made. Note this method uses reflection to gain access to private memory in
@@ -225,9 +345,7 @@ public class StableDiffusionLoader {
 				}
 
 				/* Retain this path for cleaning up the library path later. */
-				this.libraryPath = extractNativeBinary();
-
-				System.load(libraryPath.toString());
+				this.libraryPath = loadNativeBinary();
 
 				logger.log(Level.FINEST, "sd-jni library \"{0}\" loaded from extracted copy at \"{1}\".",
 						new Object[] { NATIVE_LIBRARY_NAME, System.mapLibraryName(NATIVE_LIBRARY_NAME) });
@@ -253,7 +371,7 @@ public class StableDiffusionLoader {
 
 	/**
 	 * Exactly once per {@link ClassLoader}, extract the native binary from the
-	 * classpath to a temporary location (which gets cleaned up on shutdown), and
+	 * classpath to the cache directory (see {@link #getCacheDirectory()}), and
 	 * load that binary (via {@link System#load(String)}). Spurious calls are safe.
 	 */
 	public static void loadLocally() {
@@ -263,8 +381,7 @@ public class StableDiffusionLoader {
 	private static class LocalLoader {
 		private LocalLoader() {
 			/* Retain this path for cleaning up later. */
-			final Path libraryPath = extractNativeBinary();
-			System.load(libraryPath.normalize().toString());
+			final Path libraryPath = loadNativeBinary();
 
 			logger.log(Level.FINEST, "sd-jni library \"{0}\" loaded from extracted copy at \"{1}\".",
 					new Object[] { NATIVE_LIBRARY_NAME, System.mapLibraryName(NATIVE_LIBRARY_NAME) });
@@ -280,22 +397,48 @@ public class StableDiffusionLoader {
 	}
 
 	/**
-	 * Selects the appropriate packaged binary, extracts it to a temporary location
-	 * (which gets deleted when the JVM shuts down), and returns a {@link Path} to
-	 * that file.
+	 * Selects the packaged binaries matching the current platform and CPU, best
+	 * variant first, extracts and loads (via {@link System#load(String)}) the
+	 * first one which loads, and returns a {@link Path} to that file.
 	 */
-	private static Path extractNativeBinary() {
+	private static Path loadNativeBinary() {
 		final OS os = OS.getCurrent();
 		final Arch arch = Arch.getCurrent();
-		return extractNativeBinary(os, arch);
+		final String genericLocation = getPackagedLocation(os, arch);
+
+		UnsatisfiedLinkError error = null;
+		for (final VariantCandidate candidate : CpuVariant.getCandidates(os, arch)) {
+			final String location = candidate.variant.locate(genericLocation);
+			if (StableDiffusionLoader.class.getResource(location) == null) {
+				logger.log(Level.FINE, "Native binary variant {0} is not packaged.", candidate.variant);
+				continue;
+			}
+
+			final Path libraryPath = extractNativeBinary(os, location);
+			try {
+				System.load(libraryPath.normalize().toString());
+			} catch (final UnsatisfiedLinkError ule) {
+				logger.log(Level.WARNING, "Failed to load native binary variant " + candidate.variant
+						+ ".", ule);
+				error = ule;
+				continue;
+			}
+
+			logger.log(Level.INFO, "Loaded sd-jni native binary variant {0}: {1}.",
+					new Object[] { candidate.variant, candidate.reason });
+			return libraryPath;
+		}
+
+		if (error != null) {
+			throw error;
+		}
+		throw new UnsatisfiedLinkError(String.format("Native binary \"%s\" not found on classpath.", genericLocation));
 	}
 
 	/**
-	 * Extracts the packaged binary for the specified platform to a temporary
-	 * location (which gets deleted when the JVM shuts down), and returns a
-	 * {@link Path} to that file.
+	 * @return classpath location of the generic binary of the specified platform.
 	 */
-	private static Path extractNativeBinary(final OS os, final Arch arch) {
+	private static String getPackagedLocation(final OS os, final Arch arch) {
 		final String location;
 
 		switch (os) {
@@ -342,9 +485,120 @@ public class StableDiffusionLoader {
 			throw new UnsupportedPlatformException(os, arch);
 		}
 
+		return location;
+	}
+
+	/**
+	 * Extracts the packaged binary to the cache directory, falls back to a
+	 * temporary location (which gets deleted when the JVM shuts down) if the cache
+	 * directory is not usable, and returns a {@link Path} to that file.
+	 */
+	private static Path extractNativeBinary(final OS os, final String location) {
 		logger.log(Level.FINEST, "Selected native binary \"{0}\".", location);
 
+		try {
+			return extractToCache(location);
+		} catch (final IOException | RuntimeException e) {
+			logger.log(Level.WARNING, "Can not use native library cache directory \"" + getCacheDirectory()
+					+ "\", extracting to a temporary directory.", e);
+		}
+
+		return extractToTemporaryDirectory(os, location);
+	}
+
+	/**
+	 * @return directory of the extracted binaries, system property {@value #CACHE_DIR_PROPERTY}, default is
+	 *         {@code ${user.home}/.cache/sd-jni}.
+	 */
+	public static Path getCacheDirectory() {
+		String directory = System.getProperty(CACHE_DIR_PROPERTY);
+		if (directory != null && !directory.isEmpty()) {
+			return Paths.get(directory);
+		}
+		return Paths.get(System.getProperty("user.home"), ".cache", "sd-jni");
+	}
+
+	/**
+	 * Extracts the binary into {@code <cache directory>/<sha256 of binary>/}, unless an intact copy is already
+	 * there. A file lock in that directory serializes JVMs extracting the same binary, a copy is verified against
+	 * the hash before it is reused and written through an atomic move, so a JVM never sees a partial file.
+	 */
+	private static Path extractToCache(final String location) throws IOException {
+		final String hash;
+		try (InputStream binary = openBinary(location)) {
+			hash = DigestBuilder.sha256(binary);
+		}
+
+		final Path directory = getCacheDirectory().resolve(hash);
+		final Path destination = directory.resolve(Paths.get(location).getFileName().toString());
+		Files.createDirectories(directory);
+
+		try (FileChannel lockChannel = FileChannel.open(directory.resolve(".lock"), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE)) {
+			final FileLock lock = lock(lockChannel);
+			try {
+				if (Files.isRegularFile(destination)) {
+					if (hash.equals(DigestBuilder.sha256(destination))) {
+						logger.log(Level.FINEST, "Reusing cached native binary \"{0}\".", destination);
+						return destination;
+					}
+					logger.log(Level.WARNING, "Cached native binary \"{0}\" is corrupted, extracting it again.",
+							destination);
+				}
+
+				final Path tmp = Files.createTempFile(directory, NATIVE_LIBRARY_NAME, ".tmp");
+				try {
+					try (InputStream binary = openBinary(location)) {
+						Files.copy(binary, tmp, StandardCopyOption.REPLACE_EXISTING);
+					}
+					if (!hash.equals(DigestBuilder.sha256(tmp))) {
+						throw new IOException(String.format("Extracted native binary \"%s\" does not match its hash.", tmp));
+					}
+					Files.move(tmp, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} finally {
+					Files.deleteIfExists(tmp);
+				}
+			} finally {
+				lock.release();
+			}
+		}
+
+		logger.log(Level.FINEST, "Extracted native binary to \"{0}\".", destination);
+
+		return destination;
+	}
+
+	/**
+	 * Blocks until the lock is acquired, also waits for other class loaders of this JVM holding the lock.
+	 */
+	private static FileLock lock(final FileChannel channel) throws IOException {
+		while (true) {
+			try {
+				return channel.lock();
+			} catch (final OverlappingFileLockException e) {
+				try {
+					Thread.sleep(50);
+				} catch (final InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for native library cache lock.", ie);
+				}
+			}
+		}
+	}
+
+	private static InputStream openBinary(final String location) throws IOException {
 		final InputStream binary = StableDiffusionLoader.class.getResourceAsStream(location);
+		if (binary == null) {
+			throw new IOException(String.format("Native binary \"%s\" not found on classpath.", location));
+		}
+		return binary;
+	}
+
+	/**
+	 * Extracts the binary to a new temporary directory, which gets deleted when the JVM shuts down, used when the
+	 * cache directory is not writable.
+	 */
+	private static Path extractToTemporaryDirectory(final OS os, final String location) {
 		final Path destination;
 
 		// Do not try to delete the temporary directory on the close if Windows
@@ -358,11 +612,10 @@ public class StableDiffusionLoader {
 			destination = new TemporaryDirectory().markDeleteOnExit().getPath().resolve("./" + location).normalize();
 		}
 
-		try {
+		try (InputStream binary = openBinary(location)) {
 			logger.log(Level.FINEST, "Copying native binary to \"{0}\".", destination);
 			Files.createDirectories(destination.getParent());
 			Files.copy(binary, destination);
-			binary.close();
 		} catch (final IOException ioe) {
 			throw new IllegalStateException(String.format("Error writing native library to \"%s\".", destination), ioe);
 		}
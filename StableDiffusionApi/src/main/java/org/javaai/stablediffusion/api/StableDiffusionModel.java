@@ -0,0 +1,175 @@
+package org.javaai.stablediffusion.api;
+
+import org.apache.commons.lang3.StringUtils;
+import org.javaai.stablediffusion.api.enums.GGML_type;
+
+/**
+ * Read-only weights loaded once and shared by many {@link StableDiffusion} contexts of this JVM,
+ * each context only allocates its own compute buffers. <br>
+ * The native weights are reference counted, they are freed once this model and every context created
+ * from it are closed. Thread safe. <br>
+ *
+ * <pre>
+ * try (StableDiffusionModel model = StableDiffusionModel.load("/opt/models/v1-5-pruned-emaonly.safetensors", null, null)) {
+ * 	StableDiffusionPool pool = new StableDiffusionPool(StableDiffusionFactory.of(model), 4);
+ * 	...
+ * }
+ * </pre>
+ */
+public class StableDiffusionModel implements AutoCloseable {
+
+
+	private final String model_path;
+
+	private final String vae_path;
+
+	private final int ggml_type;
+
+	/**
+	 * Nullable, null if the loaded sd-jni library can not share weights.
+	 */
+	private Long pointer;
+
+	/**
+	 * One reference of this handle, one per context.
+	 */
+	private int references = 1;
+
+	private boolean closed = false;
+
+
+	private StableDiffusionModel(String model_path, String vae_path, int ggml_type, Long pointer) {
+		this.model_path = model_path;
+		this.vae_path = vae_path;
+		this.ggml_type = ggml_type;
+		this.pointer = pointer;
+	}
+
+
+	/**
+	 * Load weights to share, see {@link StableDiffusion#loadFromFile(String, String, Integer, Integer)} for the arguments. <br>
+	 * Needs an sd-jni library which exports loadModel0, otherwise nothing is loaded here, and every context
+	 * loads a private copy of the weights, memory mapped where possible.
+	 *
+	 * @param model_path NotNull, path to local model path.
+	 * @param vae_path Nullable, default is empty string.
+	 * @param ggml_type Nullable, default is {@link GGML_type#GGML_TYPE_COUNT}
+	 * @return
+	 */
+	public static StableDiffusionModel load(String model_path, String vae_path, Integer ggml_type) {
+
+		if (StringUtils.isBlank(model_path)) {
+			throw new IllegalArgumentException("Argument model_path can not be empty/blank. ");
+		}
+
+		if (vae_path == null) {
+			vae_path = "";
+		}
+
+		if (ggml_type == null) {
+			ggml_type = GGML_type.GGML_TYPE_COUNT;
+		}
+
+		Long pointer = null;
+		if (NativeSupport.isAvailable("loadModel0")) {
+			try {
+				pointer = loadModel0(model_path, vae_path, ggml_type);
+			} catch (UnsatisfiedLinkError e) {
+				NativeSupport.markUnavailable("loadModel0", e);
+			}
+		}
+
+		if (pointer != null && pointer == 0L) {
+			throw new StableDiffusionException("Load model failed! "
+					+ "model_path: [" + model_path + "]"
+					+ "vae_path: [" + vae_path + "]"
+					+ "ggml_type_value: [" + ggml_type + "]");
+		}
+
+		return new StableDiffusionModel(model_path, vae_path, ggml_type, pointer);
+	}
+
+
+	protected static native long loadModel0(String model_path, String vae_path, int ggml_type_value);
+
+
+	protected static native void deleteModel0(long pointer);
+
+
+	/**
+	 * Context with default arguments, see
+	 * {@link StableDiffusion#fromModel(StableDiffusionModel, Integer, Boolean, String, String, Boolean, String, Integer, Integer)}.
+	 *
+	 * @return
+	 */
+	public StableDiffusion newContext() {
+		return StableDiffusion.fromModel(this, null, null, null, null, null, null, null, null);
+	}
+
+
+	/**
+	 *
+	 * @return Nullable, native weights, null if the loaded sd-jni library can not share weights.
+	 * @throws StableDiffusionException if already closed.
+	 */
+	synchronized Long retain() {
+		if (closed) {
+			throw new StableDiffusionException("StableDiffusionModel already closed. ");
+		}
+		references ++;
+		return pointer;
+	}
+
+
+	synchronized void release() {
+		references --;
+		if (references == 0 && pointer != null) {
+			deleteModel0(pointer);
+			pointer = null;
+		}
+	}
+
+
+	/**
+	 * Release the reference of this handle, contexts created from it keep working.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		release();
+	}
+
+
+	/**
+	 *
+	 * @return true if contexts share the native weights, false if every context loads a private copy.
+	 */
+	public synchronized boolean isShared() {
+		return pointer != null;
+	}
+
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+
+	public String getModel_path() {
+		return model_path;
+	}
+
+
+	public String getVae_path() {
+		return vae_path;
+	}
+
+
+	public int getGgml_type() {
+		return ggml_type;
+	}
+
+
+}
@@ -1,5 +1,8 @@
 package org.javaai.stablediffusion.api;
 
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import org.javaai.stablediffusion.api.enums.SDLogLevel;
 
 public class Util {
@@ -49,6 +52,89 @@ public class Util {
 	
 	
 	
+	private static final ThreadLocal<SDRequestOptions> currentRequest = new ThreadLocal<>();
+	
+	private static volatile boolean progressCallbackEnabled = false;
+	
+	
+	protected static native void enableSDProgressCallback();
+	
+	
+	/**
+	 * Called by native after every sampling step, on the thread running the request. 
+	 * 
+	 * @return false to ask the native sampler to abort the request. 
+	 */
+	public static boolean onSDProgressCallback(int step, int steps, float time) {
+		
+		SDRequestOptions options = currentRequest.get();
+		if (options == null) {
+			return true;
+		}
+		
+		SDProgressCallback progressCallback = options.getProgressCallback();
+		if (progressCallback != null) {
+			try {
+				progressCallback.onSDProgress(step, steps, time);
+			} catch (RuntimeException e) {
+				// Never throw into the native sampler. 
+				Logger.getLogger(Util.class.getName()).log(Level.WARNING, "SDProgressCallback failed. ", e);
+			}
+		}
+		
+		SDCancellationToken cancellationToken = options.getCancellationToken();
+		return cancellationToken == null || !cancellationToken.isCancelled();
+	}
+	
+	
+	/**
+	 * Bind the options to the current thread for the following native call. 
+	 * 
+	 * @param options Nullable
+	 * @return previous options of the current thread, give it back to {@link #exitRequest(SDRequestOptions)}. 
+	 */
+	static SDRequestOptions enterRequest(SDRequestOptions options) {
+		
+		if (options != null 
+				&& (options.getProgressCallback() != null || options.getCancellationToken() != null)) {
+			ensureProgressCallbackEnabled();
+		}
+		
+		SDRequestOptions previous = currentRequest.get();
+		currentRequest.set(options);
+		return previous;
+	}
+	
+	
+	static void exitRequest(SDRequestOptions previous) {
+		if (previous == null) {
+			currentRequest.remove();
+		} else {
+			currentRequest.set(previous);
+		}
+	}
+	
+	
+	private static void ensureProgressCallbackEnabled() {
+		if (progressCallbackEnabled || !NativeSupport.isAvailable("enableSDProgressCallback")) {
+			return;
+		}
+		synchronized (Util.class) {
+			if (progressCallbackEnabled) {
+				return;
+			}
+			try {
+				enableSDProgressCallback();
+				progressCallbackEnabled = true;
+			} catch (UnsatisfiedLinkError e) {
+				// Without the native hook, cancellation is only checked before and after native calls. 
+				NativeSupport.markUnavailable("enableSDProgressCallback", e);
+			}
+		}
+	}
+	
+	
+	
 	
 	
 	
@@ -0,0 +1,209 @@
+package org.javaai.stablediffusion.api.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.javaai.stablediffusion.api.SDRequestOptions;
+import org.javaai.stablediffusion.api.StableDiffusion;
+import org.javaai.stablediffusion.api.StableDiffusionException;
+import org.javaai.stablediffusion.api.result.Img2ImgParams;
+import org.javaai.stablediffusion.api.result.Latent;
+import org.javaai.stablediffusion.api.result.StableResult;
+import org.javaai.stablediffusion.api.utils.DigestBuilder;
+
+/**
+ * Cache of encoded init images, so repeated img2img of the same source skip the VAE encoder. <br>
+ * <br>
+ * Latents are keyed by a hash of the pixels, width, height and {@link StableDiffusion#getModelFingerprint()},
+ * and kept off heap up to a byte budget, least recently used latents are dropped first. <br>
+ * If the loaded sd-jni library has no latent API, {@link #img2img(StableDiffusion, Img2ImgParams, SDRequestOptions)}
+ * falls back to a plain img2img. Thread safe.
+ *
+ * <pre>
+ * LatentCache latents = new LatentCache(256L * 1024 * 1024);
+ * StableResult&lt;Img2ImgParams, byte[]&gt; result = latents.img2img(sd, params, null);
+ * </pre>
+ */
+public class LatentCache {
+
+	private final long maxBytes;
+
+	private final LinkedHashMap<String, Latent> latents = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long bytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+
+	/**
+	 *
+	 * @param maxBytes budget of cached latents, off heap.
+	 */
+	public LatentCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+
+	/**
+	 *
+	 * @param modelFingerprint NotNull, see {@link StableDiffusion#getModelFingerprint()}.
+	 * @param img              NotNull, RGB color mode image.
+	 * @param width
+	 * @param height
+	 * @return key of the latent of img.
+	 */
+	public static String key(String modelFingerprint, byte[] img, int width, int height) {
+		return new DigestBuilder()
+				.add("latent")
+				.add(modelFingerprint)
+				.add(img)
+				.add(width)
+				.add(height)
+				.build();
+	}
+
+
+	/**
+	 * Encode the init image once, then sample from the cached latent.
+	 *
+	 * @param sd      NotNull, instance with model loaded.
+	 * @param params  NotNull, RGBImage is NotNull, width and height must be multiples of 8.
+	 * @param options Nullable
+	 * @return RGB color mode images.
+	 */
+	public StableResult<Img2ImgParams, byte[]> img2img(StableDiffusion sd, Img2ImgParams params,
+			SDRequestOptions options) {
+
+		if (params.getRGBImage() == null) {
+			throw new IllegalArgumentException("Argument params.RGBImage can not be null. ");
+		}
+
+		Img2ImgParams p = StableDiffusion.withDefaults(params);
+		Latent latent;
+		try {
+			latent = getOrEncode(sd, p.getRGBImage(), p.getWidth(), p.getHeight());
+			return sd.img2img(latent, p.getPrompt(), p.getNegative_prompt(), p.getCfg_scale(),
+					p.getSample_method(), p.getSample_steps(), p.getStrength(), p.getSeed(), options);
+		} catch (UnsupportedOperationException e) {
+			return sd.img2img(params, options);
+		}
+	}
+
+
+	/**
+	 *
+	 * @param sd     NotNull, instance with model loaded.
+	 * @param img    NotNull, RGB color mode image.
+	 * @param width  multiple of 8.
+	 * @param height multiple of 8.
+	 * @return NotNull, the cached latent, or the latent encoded by sd and cached.
+	 * @throws UnsupportedOperationException if the loaded sd-jni library has no latent API.
+	 */
+	public Latent getOrEncode(StableDiffusion sd, byte[] img, int width, int height) {
+
+		String fingerprint = sd.getModelFingerprint();
+		if (fingerprint == null) {
+			throw new StableDiffusionException("StableDiffusion instance has no model loaded. ");
+		}
+
+		String key = key(fingerprint, img, width, height);
+		Latent latent = get(key);
+		if (latent != null) {
+			return latent;
+		}
+
+		latent = sd.encodeLatent(img, width, height);
+		put(key, latent);
+		return latent;
+	}
+
+
+	/**
+	 *
+	 * @param key NotNull
+	 * @return Nullable, null on miss.
+	 */
+	public Latent get(String key) {
+		Latent latent;
+		synchronized (latents) {
+			latent = latents.get(key);
+		}
+		if (latent == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return latent;
+	}
+
+
+	/**
+	 *
+	 * @param key    NotNull
+	 * @param latent NotNull
+	 */
+	public void put(String key, Latent latent) {
+		long size = latent.getByteSize();
+		if (size > maxBytes) {
+			return;
+		}
+
+		synchronized (latents) {
+			Latent previous = latents.put(key, latent);
+			if (previous != null) {
+				bytes -= previous.getByteSize();
+			}
+			bytes += size;
+
+			Iterator<Latent> eldest = latents.values().iterator();
+			while (bytes > maxBytes && eldest.hasNext()) {
+				bytes -= eldest.next().getByteSize();
+				eldest.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+
+	public void clear() {
+		synchronized (latents) {
+			latents.clear();
+			bytes = 0;
+		}
+	}
+
+
+	public long getHits() {
+		return hits.get();
+	}
+
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+
+	public long getBytes() {
+		synchronized (latents) {
+			return bytes;
+		}
+	}
+
+
+	public int getCount() {
+		synchronized (latents) {
+			return latents.size();
+		}
+	}
+
+}
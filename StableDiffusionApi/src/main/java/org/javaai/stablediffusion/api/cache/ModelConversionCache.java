@@ -0,0 +1,204 @@
+package org.javaai.stablediffusion.api.cache;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.javaai.stablediffusion.api.StableDiffusion;
+import org.javaai.stablediffusion.api.StableDiffusionException;
+import org.javaai.stablediffusion.api.enums.GGML_type;
+import org.javaai.stablediffusion.api.utils.DigestBuilder;
+
+/**
+ * On disk cache of converted and quantized weights. <br>
+ * <br>
+ * {@link StableDiffusion#loadFromFile(String, String, Integer, Integer)} converts .ckpt/.safetensors weights
+ * on every load. This cache converts them once with {@link StableDiffusion#convert(String, String, Integer, String)}
+ * into {@code <directory>/<key>.gguf}, the key is a hash of the model file content, the vae file content and
+ * ggml_type, later loads read the gguf file directly. <br>
+ * Content hashes are remembered by file identity (path, size, last modified time), so unchanged weights are
+ * hashed once. Conversions are serialized by a file lock, JVMs sharing the directory convert a model once. <br>
+ * Converted weights are memory mapped, processes loading the same converted file share its pages. <br>
+ *
+ * <pre>
+ * ModelConversionCache cache = new ModelConversionCache(Paths.get("/var/cache/sd-models"));
+ * StableDiffusionPool pool = new StableDiffusionPool(
+ * 		StableDiffusionFactory.of("/opt/models/v1-5-pruned-emaonly.safetensors", null, GGML_type.GGML_TYPE_Q8_0, null, cache), 4);
+ * </pre>
+ */
+public class ModelConversionCache {
+
+	private final static Logger logger = Logger.getLogger(ModelConversionCache.class.getName());
+
+	private static final Map<Path, Object> jvmLocks = new ConcurrentHashMap<>();
+
+	private final Path directory;
+
+
+	/**
+	 *
+	 * @param directory NotNull, created if missing.
+	 */
+	public ModelConversionCache(Path directory) {
+		if (directory == null) {
+			throw new IllegalArgumentException("Argument directory can not be null. ");
+		}
+		this.directory = directory.toAbsolutePath();
+	}
+
+
+	/**
+	 * Load converted weights, convert them first if they are not cached yet. Falls back to loading the
+	 * original weights if the loaded sd-jni library can not convert or the cache directory is not usable. <br>
+	 * See {@link StableDiffusion#loadFromFile(String, String, Integer, Integer)} for the arguments.
+	 *
+	 * @param sd         NotNull
+	 * @param model_path NotNull
+	 * @param vae_path   Nullable
+	 * @param ggml_type  Nullable
+	 * @param schedule   Nullable
+	 * @return
+	 */
+	public boolean loadFromFile(StableDiffusion sd, String model_path, String vae_path, Integer ggml_type,
+			Integer schedule) {
+
+		Path converted;
+		try {
+			converted = getConverted(model_path, vae_path, ggml_type);
+		} catch (IOException | StableDiffusionException e) {
+			logger.log(Level.WARNING, "Model conversion cache failed for \"" + model_path
+					+ "\", loading the original weights.", e);
+			converted = null;
+		}
+
+		if (converted == null) {
+			return sd.loadFromFile(model_path, vae_path, ggml_type, schedule);
+		}
+
+		try {
+			// Tensors are already quantized and the vae is merged, so every tensor can stay mapped.
+			return sd.loadFromFile(converted.toString(), null, GGML_type.GGML_TYPE_COUNT, schedule, true);
+		} catch (StableDiffusionException e) {
+			logger.log(Level.WARNING, "Failed to load converted weights \"" + converted
+					+ "\", deleting them and loading the original weights.", e);
+			try {
+				Files.deleteIfExists(converted);
+			} catch (IOException deleteError) {
+				e.addSuppressed(deleteError);
+			}
+			return sd.loadFromFile(model_path, vae_path, ggml_type, schedule);
+		}
+	}
+
+
+	/**
+	 *
+	 * @param model_path NotNull
+	 * @param vae_path   Nullable
+	 * @param ggml_type  Nullable, default is {@link GGML_type#GGML_TYPE_COUNT}
+	 * @return Nullable, path of the converted weights, null if the loaded sd-jni library can not convert.
+	 * @throws IOException
+	 * @throws StableDiffusionException if conversion failed.
+	 */
+	public Path getConverted(String model_path, String vae_path, Integer ggml_type) throws IOException {
+
+		if (StringUtils.isBlank(model_path)) {
+			throw new IllegalArgumentException("Argument model_path can not be empty/blank. ");
+		}
+
+		if (ggml_type == null) {
+			ggml_type = GGML_type.GGML_TYPE_COUNT;
+		}
+
+		Files.createDirectories(directory);
+
+		String key = new DigestBuilder()
+				.add(contentHash(Paths.get(model_path)))
+				.add(StringUtils.isEmpty(vae_path) ? null : contentHash(Paths.get(vae_path)))
+				.add(ggml_type)
+				.build();
+		Path converted = directory.resolve(key + ".gguf");
+
+		if (Files.isRegularFile(converted)) {
+			logger.log(Level.FINE, "Using converted weights \"{0}\" of \"{1}\".", new Object[] { converted, model_path });
+			return converted;
+		}
+
+		Path lockFile = directory.resolve(key + ".lock");
+		synchronized (jvmLocks.computeIfAbsent(lockFile, k -> new Object())) {
+			try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				FileLock lock = channel.lock();
+				try {
+					// Another JVM may have converted while this one waited for the lock.
+					if (Files.isRegularFile(converted)) {
+						return converted;
+					}
+
+					Path tmp = Files.createTempFile(directory, key, ".tmp");
+					try {
+						long start = System.nanoTime();
+						if (!StableDiffusion.convert(model_path, vae_path, ggml_type, tmp.toString())) {
+							return null;
+						}
+						Files.move(tmp, converted, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+						logger.log(Level.INFO, "Converted \"{0}\" to \"{1}\" in {2} ms.", new Object[] { model_path,
+								converted, (System.nanoTime() - start) / 1_000_000 });
+					} finally {
+						Files.deleteIfExists(tmp);
+					}
+				} finally {
+					lock.release();
+				}
+			}
+		}
+
+		return converted;
+	}
+
+
+	/**
+	 * SHA-256 of the file content, remembered in {@code <directory>/hashes/} by file identity.
+	 */
+	private String contentHash(Path file) throws IOException {
+
+		Path index = directory.resolve("hashes").resolve(new DigestBuilder().addFileIdentity(file.toString()).build());
+		if (Files.isRegularFile(index)) {
+			String hash = new String(Files.readAllBytes(index), StandardCharsets.US_ASCII).trim();
+			if (hash.length() == 64) {
+				return hash;
+			}
+		}
+
+		long start = System.nanoTime();
+		String hash = DigestBuilder.sha256(file);
+		logger.log(Level.FINE, "Hashed \"{0}\" in {1} ms.", new Object[] { file, (System.nanoTime() - start) / 1_000_000 });
+
+		Files.createDirectories(index.getParent());
+		Path tmp = Files.createTempFile(index.getParent(), "hash", ".tmp");
+		try {
+			Files.write(tmp, hash.getBytes(StandardCharsets.US_ASCII));
+			Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+
+		return hash;
+	}
+
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+}
@@ -0,0 +1,471 @@
+package org.javaai.stablediffusion.api.cache;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.javaai.stablediffusion.api.SDRequestOptions;
+import org.javaai.stablediffusion.api.SDVaeTiling;
+import org.javaai.stablediffusion.api.StableDiffusion;
+import org.javaai.stablediffusion.api.StableDiffusionException;
+import org.javaai.stablediffusion.api.result.Img2ImgParams;
+import org.javaai.stablediffusion.api.result.StableResult;
+import org.javaai.stablediffusion.api.result.Txt2ImgParams;
+import org.javaai.stablediffusion.api.utils.DigestBuilder;
+
+/**
+ * Content addressed cache of generated pixels. <br>
+ * <br>
+ * Generation is deterministic for a model and a full set of params, so results are keyed by a canonical
+ * hash of {@link StableDiffusion#getModelFingerprint()} and the params with defaults applied. <br>
+ * A memory tier keeps the most recently used results up to a byte budget, an optional disk tier keeps
+ * results in one file per key and serves hits through memory mapped files, read once into the returned arrays,
+ * disk hits are not copied into the memory tier. <br>
+ * Returned pixels are copies, callers may convert them in place. Thread safe.
+ */
+public class StableResultCache {
+
+	private final static Logger logger = Logger.getLogger(StableResultCache.class.getName());
+
+	private static final int FILE_MAGIC = 0x53444331;
+
+	private static final String FILE_SUFFIX = ".sdc";
+
+	private final long maxMemoryBytes;
+
+	private final LinkedHashMap<String, List<byte[]>> memory = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long memoryBytes = 0;
+
+	private final Path diskDirectory;
+
+	private final long maxDiskBytes;
+
+	private final Map<String, Long> diskSizes = new ConcurrentHashMap<>();
+
+	private final AtomicLong diskBytes = new AtomicLong();
+
+	private final AtomicLong memoryHits = new AtomicLong();
+
+	private final AtomicLong diskHits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+
+	/**
+	 * Memory tier only.
+	 *
+	 * @param maxMemoryBytes budget of cached pixels in memory.
+	 */
+	public StableResultCache(long maxMemoryBytes) {
+		this(maxMemoryBytes, null, 0L);
+	}
+
+
+	/**
+	 *
+	 * @param maxMemoryBytes budget of cached pixels in memory.
+	 * @param diskDirectory  Nullable, directory of the disk tier, created if missing.
+	 * @param maxDiskBytes   budget of cached files, least recently used files are deleted first.
+	 */
+	public StableResultCache(long maxMemoryBytes, Path diskDirectory, long maxDiskBytes) {
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.diskDirectory = diskDirectory;
+		this.maxDiskBytes = maxDiskBytes;
+
+		if (diskDirectory != null) {
+			try {
+				Files.createDirectories(diskDirectory);
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(diskDirectory, "*" + FILE_SUFFIX)) {
+					for (Path file : files) {
+						long size = Files.size(file);
+						diskSizes.put(keyOf(file), size);
+						diskBytes.addAndGet(size);
+					}
+				}
+			} catch (IOException e) {
+				throw new StableDiffusionException("Can not open result cache directory \"" + diskDirectory + "\". ", e);
+			}
+		}
+	}
+
+
+	/**
+	 *
+	 * @param modelFingerprint NotNull, see {@link StableDiffusion#getModelFingerprint()}.
+	 * @param params           NotNull
+	 * @param vaeTiling        NotNull, see {@link StableDiffusion#getVaeTiling(SDRequestOptions, int, int)}.
+	 * @return canonical key of a txt2img request.
+	 */
+	public static String txt2imgKey(String modelFingerprint, Txt2ImgParams params, SDVaeTiling vaeTiling) {
+		Txt2ImgParams p = StableDiffusion.withDefaults(params);
+		return new DigestBuilder()
+				.add("txt2img")
+				.add(modelFingerprint)
+				.add(vaeTiling.isEnabled())
+				.add(vaeTiling.getTileSize())
+				.add(vaeTiling.getOverlap())
+				.add(p.getPrompt())
+				.add(p.getNegative_prompt())
+				.add(p.getCfg_scale())
+				.add(p.getWidth())
+				.add(p.getHeight())
+				.add(p.getSample_method())
+				.add(p.getSample_steps())
+				.add(p.getSeed())
+				.add(p.getBatch_count())
+				.build();
+	}
+
+
+	/**
+	 *
+	 * @param modelFingerprint NotNull, see {@link StableDiffusion#getModelFingerprint()}.
+	 * @param params           NotNull, RGBImage is part of the key.
+	 * @param vaeTiling        NotNull, see {@link StableDiffusion#getVaeTiling(SDRequestOptions, int, int)}.
+	 * @return canonical key of an img2img request.
+	 */
+	public static String img2imgKey(String modelFingerprint, Img2ImgParams params, SDVaeTiling vaeTiling) {
+		Img2ImgParams p = StableDiffusion.withDefaults(params);
+		return new DigestBuilder()
+				.add("img2img")
+				.add(modelFingerprint)
+				.add(vaeTiling.isEnabled())
+				.add(vaeTiling.getTileSize())
+				.add(vaeTiling.getOverlap())
+				.add(p.getRGBImage())
+				.add(p.getPrompt())
+				.add(p.getNegative_prompt())
+				.add(p.getCfg_scale())
+				.add(p.getWidth())
+				.add(p.getHeight())
+				.add(p.getSample_method())
+				.add(p.getSample_steps())
+				.add(p.getStrength())
+				.add(p.getSeed())
+				.build();
+	}
+
+
+	/**
+	 * Return cached pixels, or generate and cache them.
+	 *
+	 * @param sd      NotNull, instance with model loaded.
+	 * @param params  NotNull
+	 * @param options Nullable
+	 * @return RGB color mode images.
+	 */
+	public StableResult<Txt2ImgParams, byte[]> txt2PixelsImg(StableDiffusion sd, Txt2ImgParams params,
+			SDRequestOptions options) {
+
+		String fingerprint = requireFingerprint(sd);
+		Txt2ImgParams p = StableDiffusion.withDefaults(params);
+		String key = txt2imgKey(fingerprint, p, sd.getVaeTiling(options, p.getWidth(), p.getHeight()));
+
+		List<byte[]> images = get(key);
+		if (images == null) {
+			StableResult<Txt2ImgParams, byte[]> result = sd.txt2PixelsImg(params, options);
+			// The tiling falls back to the default if the native side turned out unable to change it.
+			key = txt2imgKey(fingerprint, p, sd.getVaeTiling(options, p.getWidth(), p.getHeight()));
+			put(key, result.getResultImages());
+			return result;
+		}
+
+		StableResult<Txt2ImgParams, byte[]> result = new StableResult<>();
+		result.setParams(StableDiffusion.withDefaults(params));
+		result.setResultImages(images);
+		return result;
+	}
+
+
+	/**
+	 * Return cached pixels, or generate and cache them.
+	 *
+	 * @param sd      NotNull, instance with model loaded.
+	 * @param params  NotNull, RGBImage is NotNull.
+	 * @param options Nullable
+	 * @return RGB color mode images.
+	 */
+	public StableResult<Img2ImgParams, byte[]> img2img(StableDiffusion sd, Img2ImgParams params,
+			SDRequestOptions options) {
+
+		String fingerprint = requireFingerprint(sd);
+		Img2ImgParams p = StableDiffusion.withDefaults(params);
+		String key = img2imgKey(fingerprint, p, sd.getVaeTiling(options, p.getWidth(), p.getHeight()));
+
+		List<byte[]> images = get(key);
+		if (images == null) {
+			StableResult<Img2ImgParams, byte[]> result = sd.img2img(params, options);
+			// The tiling falls back to the default if the native side turned out unable to change it.
+			key = img2imgKey(fingerprint, p, sd.getVaeTiling(options, p.getWidth(), p.getHeight()));
+			put(key, result.getResultImages());
+			return result;
+		}
+
+		Img2ImgParams resultParams = StableDiffusion.withDefaults(params);
+		resultParams.setRGBImage(null);
+
+		StableResult<Img2ImgParams, byte[]> result = new StableResult<>();
+		result.setParams(resultParams);
+		result.setResultImages(images);
+		return result;
+	}
+
+
+	private static String requireFingerprint(StableDiffusion sd) {
+		String fingerprint = sd.getModelFingerprint();
+		if (fingerprint == null) {
+			throw new StableDiffusionException("StableDiffusion instance has no model loaded. ");
+		}
+		return fingerprint;
+	}
+
+
+	/**
+	 *
+	 * @param key NotNull
+	 * @return Nullable, copies of the cached pixels, null on miss.
+	 */
+	public List<byte[]> get(String key) {
+
+		List<byte[]> images;
+		synchronized (memory) {
+			images = memory.get(key);
+		}
+		if (images != null) {
+			memoryHits.incrementAndGet();
+			return copy(images);
+		}
+
+		images = readDisk(key);
+		if (images != null) {
+			diskHits.incrementAndGet();
+			// Freshly read, owned by the caller.
+			return images;
+		}
+
+		misses.incrementAndGet();
+		return null;
+	}
+
+
+	/**
+	 *
+	 * @param key    NotNull
+	 * @param images NotNull, copied before caching.
+	 */
+	public void put(String key, List<byte[]> images) {
+		List<byte[]> copies = copy(images);
+		putMemory(key, copies);
+		writeDisk(key, copies);
+	}
+
+
+	private static List<byte[]> copy(List<byte[]> images) {
+		List<byte[]> copies = new ArrayList<>(images.size());
+		for (byte[] image : images) {
+			copies.add(Arrays.copyOf(image, image.length));
+		}
+		return copies;
+	}
+
+
+	private static long sizeOf(List<byte[]> images) {
+		long size = 0;
+		for (byte[] image : images) {
+			size += image.length;
+		}
+		return size;
+	}
+
+
+	private void putMemory(String key, List<byte[]> images) {
+		long size = sizeOf(images);
+		if (size > maxMemoryBytes) {
+			return;
+		}
+
+		synchronized (memory) {
+			List<byte[]> previous = memory.put(key, images);
+			if (previous != null) {
+				memoryBytes -= sizeOf(previous);
+			}
+			memoryBytes += size;
+
+			Iterator<List<byte[]>> eldest = memory.values().iterator();
+			while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+				memoryBytes -= sizeOf(eldest.next());
+				eldest.remove();
+			}
+		}
+	}
+
+
+	private Path fileOf(String key) {
+		return diskDirectory.resolve(key + FILE_SUFFIX);
+	}
+
+
+	private static String keyOf(Path file) {
+		String name = file.getFileName().toString();
+		return name.substring(0, name.length() - FILE_SUFFIX.length());
+	}
+
+
+	private List<byte[]> readDisk(String key) {
+		if (diskDirectory == null || !diskSizes.containsKey(key)) {
+			return null;
+		}
+
+		Path file = fileOf(key);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (mapped.getInt() != FILE_MAGIC) {
+				throw new IOException("Bad magic number. ");
+			}
+
+			int count = mapped.getInt();
+			List<byte[]> images = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				byte[] image = new byte[mapped.getInt()];
+				mapped.get(image);
+				images.add(image);
+			}
+
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			return images;
+		} catch (NoSuchFileException e) {
+			forgetDisk(key);
+			return null;
+		} catch (IOException | BufferUnderflowException | NegativeArraySizeException e) {
+			logger.log(Level.WARNING, "Dropping unreadable result cache file \"" + file + "\".", e);
+			deleteDisk(key);
+			return null;
+		}
+	}
+
+
+	private void writeDisk(String key, List<byte[]> images) {
+		if (diskDirectory == null || diskSizes.containsKey(key)) {
+			return;
+		}
+
+		Path file = fileOf(key);
+		Path tmp = null;
+		try {
+			// Unique across JVMs sharing the directory, moved into place atomically.
+			tmp = Files.createTempFile(diskDirectory, key, ".tmp");
+			try (OutputStream os = Files.newOutputStream(tmp);
+					DataOutputStream out = new DataOutputStream(os)) {
+				out.writeInt(FILE_MAGIC);
+				out.writeInt(images.size());
+				for (byte[] image : images) {
+					out.writeInt(image.length);
+					out.write(image);
+				}
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			long size = Files.size(file);
+			Long previous = diskSizes.put(key, size);
+			diskBytes.addAndGet(size - (previous == null ? 0 : previous));
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to write result cache file \"" + file + "\".", e);
+			try {
+				if (tmp != null) {
+					Files.deleteIfExists(tmp);
+				}
+			} catch (IOException ignored) {
+				// Nothing else to do.
+			}
+			return;
+		}
+
+		if (diskBytes.get() > maxDiskBytes) {
+			evictDisk();
+		}
+	}
+
+
+	private synchronized void evictDisk() {
+		List<Path> files = new ArrayList<>();
+		for (String key : diskSizes.keySet()) {
+			files.add(fileOf(key));
+		}
+
+		files.sort((a, b) -> Long.compare(a.toFile().lastModified(), b.toFile().lastModified()));
+
+		for (Path file : files) {
+			if (diskBytes.get() <= maxDiskBytes) {
+				break;
+			}
+			deleteDisk(keyOf(file));
+		}
+	}
+
+
+	private void deleteDisk(String key) {
+		try {
+			Files.deleteIfExists(fileOf(key));
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Failed to delete result cache file of key " + key + ".", e);
+		}
+		forgetDisk(key);
+	}
+
+
+	private void forgetDisk(String key) {
+		Long size = diskSizes.remove(key);
+		if (size != null) {
+			diskBytes.addAndGet(-size);
+		}
+	}
+
+
+	public long getMemoryHits() {
+		return memoryHits.get();
+	}
+
+
+	public long getDiskHits() {
+		return diskHits.get();
+	}
+
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+
+	public long getMemoryBytes() {
+		synchronized (memory) {
+			return memoryBytes;
+		}
+	}
+
+
+	public long getDiskBytes() {
+		return diskBytes.get();
+	}
+
+}
@@ -0,0 +1,226 @@
+package org.javaai.stablediffusion.api.concurrent;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.javaai.stablediffusion.api.StableDiffusionException;
+
+/**
+ * A native component loaded on first use and closed after an idle period, loaded again on demand. <br>
+ * Uses of a component run concurrently with each other, the component is never closed while in use.
+ * Thread safe.
+ *
+ * <pre>
+ * LazyComponent&lt;Upscaler&gt; upscaler = new LazyComponent&lt;&gt;("esrgan",
+ * 		() -&gt; new Upscaler("/opt/models/RealESRGAN_x4plus_anime_6B.pth", null), 5, TimeUnit.MINUTES);
+ * byte[] upscaled = upscaler.use(u -&gt; u.upscale(pixels, width, height, 4));
+ * </pre>
+ */
+public class LazyComponent<T extends AutoCloseable> implements AutoCloseable {
+
+	private final static Logger logger = Logger.getLogger(LazyComponent.class.getName());
+
+	private static final ScheduledExecutorService idleChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "sd-lazy-component-idle");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final String name;
+
+	private final Supplier<T> loader;
+
+	private final long idleNanos;
+
+	private T component;
+
+	private int inUse = 0;
+
+	private long lastUsedNanos;
+
+	/**
+	 * At most one pending idle check per component, it reschedules itself while the component is used.
+	 */
+	private ScheduledFuture<?> idleCheck;
+
+	private boolean closed = false;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+
+	/**
+	 *
+	 * @param name        NotNull, for logs.
+	 * @param loader      NotNull, loads the component, called on first use and after every eviction.
+	 * @param idleTimeout idle time before the component is closed, 0 or less keeps it until {@link #close()}.
+	 * @param unit
+	 */
+	public LazyComponent(String name, Supplier<T> loader, long idleTimeout, TimeUnit unit) {
+		if (name == null || loader == null) {
+			throw new IllegalArgumentException("Arguments name and loader can not be null. ");
+		}
+		this.name = name;
+		this.loader = loader;
+		this.idleNanos = unit.toNanos(idleTimeout);
+	}
+
+
+	/**
+	 * Run task with the component, load it first if it is not loaded.
+	 *
+	 * @param task NotNull
+	 * @return result of task.
+	 */
+	public <R> R use(Function<T, R> task) {
+		T loaded = acquire();
+		try {
+			return task.apply(loaded);
+		} finally {
+			release();
+		}
+	}
+
+
+	private synchronized T acquire() {
+		if (closed) {
+			throw new StableDiffusionException("LazyComponent " + name + " already closed. ");
+		}
+
+		if (component != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			long start = System.nanoTime();
+			T loaded = loader.get();
+			if (loaded == null) {
+				throw new StableDiffusionException("Loader of " + name + " returned null. ");
+			}
+			component = loaded;
+			logger.log(Level.INFO, "Loaded {0} in {1} ms.", new Object[] { name, (System.nanoTime() - start) / 1_000_000 });
+		}
+
+		inUse ++;
+		return component;
+	}
+
+
+	private synchronized void release() {
+		inUse --;
+		lastUsedNanos = System.nanoTime();
+		if (closed) {
+			if (inUse == 0 && component != null) {
+				closeComponent();
+			}
+			return;
+		}
+		if (inUse == 0 && idleNanos > 0 && idleCheck == null) {
+			scheduleIdleCheck(idleNanos);
+		}
+	}
+
+
+	/**
+	 * Guarded by this.
+	 */
+	private void scheduleIdleCheck(long delayNanos) {
+		idleCheck = idleChecker.schedule(this::closeIfIdle, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+
+	private synchronized void closeIfIdle() {
+		idleCheck = null;
+		if (closed || component == null || inUse > 0) {
+			// The last release schedules the next check.
+			return;
+		}
+		long remaining = idleNanos - (System.nanoTime() - lastUsedNanos);
+		if (remaining > 0) {
+			scheduleIdleCheck(remaining);
+			return;
+		}
+		evictions.incrementAndGet();
+		logger.log(Level.INFO, "Closing {0}, idle for {1} ms.", new Object[] { name, idleNanos / 1_000_000 });
+		closeComponent();
+	}
+
+
+	private void closeComponent() {
+		try {
+			component.close();
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Failed to close " + name + ".", e);
+		}
+		component = null;
+	}
+
+
+	public synchronized boolean isLoaded() {
+		return component != null;
+	}
+
+
+	/**
+	 *
+	 * @return uses which found the component loaded.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+
+	/**
+	 *
+	 * @return uses which loaded the component.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+
+	/**
+	 *
+	 * @return times the component was closed after the idle timeout.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+
+	/**
+	 *
+	 * @return hits / (hits + misses), 0 if never used.
+	 */
+	public double getHitRate() {
+		long hit = hits.get();
+		long total = hit + misses.get();
+		return total == 0 ? 0 : (double) hit / total;
+	}
+
+
+	/**
+	 * Close the component, it is closed by the last running use if in use.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (idleCheck != null) {
+			idleCheck.cancel(false);
+			idleCheck = null;
+		}
+		if (component != null && inUse == 0) {
+			closeComponent();
+		}
+	}
+
+}
@@ -0,0 +1,410 @@
+package org.javaai.stablediffusion.api.concurrent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.javaai.stablediffusion.api.SDRequestOptions;
+import org.javaai.stablediffusion.api.SDVaeTiling;
+import org.javaai.stablediffusion.api.StableDiffusion;
+import org.javaai.stablediffusion.api.StableDiffusionException;
+import org.javaai.stablediffusion.api.result.Latent;
+import org.javaai.stablediffusion.api.result.StableResult;
+import org.javaai.stablediffusion.api.result.Txt2ImgParams;
+
+/**
+ * Runs txt2img as two pipelined stages, so VAE decoding of one request overlaps sampling of the next. <br>
+ * <br>
+ * The sample stage produces latents, see {@link StableDiffusion#txt2Latent(Txt2ImgParams, SDRequestOptions)},
+ * and hands them to the decode stage through a bounded queue. When the queue is full the sample stage blocks,
+ * so a slow decoder throttles sampling instead of piling up latents. The decode stage decodes every latent
+ * waiting in the queue in one call, up to maxDecodeBatch requests, requests asking for different VAE tilings are
+ * decoded in separate calls. <br>
+ * Each stage runs on its own daemon thread with its own instance, typically two contexts sharing the weights of
+ * one {@link org.javaai.stablediffusion.api.StableDiffusionModel}. {@link #getSampleStage()} and
+ * {@link #getDecodeStage()} tell which stage is the bottleneck. <br>
+ * If the loaded sd-jni library has no latent API, the sample stage runs the whole txt2img and the decode stage
+ * passes the pixels through.
+ *
+ * <pre>
+ * StableDiffusionModel model = StableDiffusionModel.load(modelPath, null, null);
+ * SampleDecodePipeline pipeline = new SampleDecodePipeline(model.newContext(), model.newContext(), 4, 8);
+ * CompletableFuture&lt;StableResult&lt;Txt2ImgParams, byte[]&gt;&gt; result = pipeline.submit(params, null);
+ * </pre>
+ */
+public class SampleDecodePipeline implements AutoCloseable {
+
+	private final static Logger logger = Logger.getLogger(SampleDecodePipeline.class.getName());
+
+	private final BiFunction<Txt2ImgParams, SDRequestOptions, StableResult<Txt2ImgParams, Latent>> sampler;
+
+	private final BiFunction<List<Latent>, SDRequestOptions, List<byte[]>> decoder;
+
+	private final BiFunction<Txt2ImgParams, SDRequestOptions, StableResult<Txt2ImgParams, byte[]>> fallback;
+
+	private final BlockingQueue<Job> submitted = new LinkedBlockingQueue<>();
+
+	private final BlockingQueue<Job> sampled;
+
+	private final int maxDecodeBatch;
+
+	private final StageMetrics sampleStage = new StageMetrics("sample");
+
+	private final StageMetrics decodeStage = new StageMetrics("decode");
+
+	private final Thread sampleThread;
+
+	private final Thread decodeThread;
+
+	private volatile boolean closed = false;
+
+
+	/**
+	 *
+	 * @param sampler        NotNull, instance of the sample stage.
+	 * @param decoder        NotNull, instance of the decode stage, loaded with the same model.
+	 * @param queueCapacity  max count of sampled requests waiting for the decode stage.
+	 * @param maxDecodeBatch max count of requests decoded in one call.
+	 */
+	public SampleDecodePipeline(StableDiffusion sampler, StableDiffusion decoder, int queueCapacity, int maxDecodeBatch) {
+		this(sampler::txt2Latent, decoder::decode, sampler::txt2PixelsImg, queueCapacity, maxDecodeBatch);
+	}
+
+
+	/**
+	 *
+	 * @param sampler        NotNull, produces the latents of a request.
+	 * @param decoder        NotNull, decodes latents in order, with the VAE tiling of the options.
+	 * @param fallback       Nullable, runs a whole request when sampler throws {@link UnsupportedOperationException}.
+	 * @param queueCapacity  max count of sampled requests waiting for the decode stage.
+	 * @param maxDecodeBatch max count of requests decoded in one call.
+	 */
+	public SampleDecodePipeline(BiFunction<Txt2ImgParams, SDRequestOptions, StableResult<Txt2ImgParams, Latent>> sampler,
+			BiFunction<List<Latent>, SDRequestOptions, List<byte[]>> decoder,
+			BiFunction<Txt2ImgParams, SDRequestOptions, StableResult<Txt2ImgParams, byte[]>> fallback,
+			int queueCapacity, int maxDecodeBatch) {
+
+		if (sampler == null || decoder == null) {
+			throw new IllegalArgumentException("Arguments sampler and decoder can not be null. ");
+		}
+
+		if (queueCapacity < 1 || maxDecodeBatch < 1) {
+			throw new IllegalArgumentException("Arguments queueCapacity and maxDecodeBatch must be at least 1. ");
+		}
+
+		this.sampler = sampler;
+		this.decoder = decoder;
+		this.fallback = fallback;
+		this.sampled = new ArrayBlockingQueue<>(queueCapacity);
+		this.maxDecodeBatch = maxDecodeBatch;
+
+		this.sampleThread = new Thread(this::runSampleStage, "sd-pipeline-sample");
+		this.sampleThread.setDaemon(true);
+		this.decodeThread = new Thread(this::runDecodeStage, "sd-pipeline-decode");
+		this.decodeThread.setDaemon(true);
+		this.sampleThread.start();
+		this.decodeThread.start();
+	}
+
+
+	/**
+	 *
+	 * @param params  NotNull, null fields take their default value.
+	 * @param options Nullable, progress callback and cancellation of the sampling.
+	 * @return future of RGB color mode images, cancelling it skips the request if it has not started sampling.
+	 */
+	public CompletableFuture<StableResult<Txt2ImgParams, byte[]>> submit(Txt2ImgParams params, SDRequestOptions options) {
+
+		if (closed) {
+			throw new StableDiffusionException("SampleDecodePipeline already closed. ");
+		}
+
+		Job job = new Job(StableDiffusion.withDefaults(params), options);
+		submitted.add(job);
+		if (closed && submitted.remove(job)) {
+			throw new StableDiffusionException("SampleDecodePipeline already closed. ");
+		}
+		return job.future;
+	}
+
+
+	private void runSampleStage() {
+		try {
+			while (!closed) {
+				long waitStart = System.nanoTime();
+				Job job = submitted.take();
+				sampleStage.idleNanos.addAndGet(System.nanoTime() - waitStart);
+
+				if (job.future.isDone()) {
+					continue;
+				}
+
+				long start = System.nanoTime();
+				try {
+					sample(job);
+				} catch (RuntimeException | Error e) {
+					job.future.completeExceptionally(e);
+					continue;
+				} finally {
+					sampleStage.busyNanos.addAndGet(System.nanoTime() - start);
+				}
+				sampleStage.processed.incrementAndGet();
+
+				long blockStart = System.nanoTime();
+				try {
+					sampled.put(job);
+				} catch (InterruptedException e) {
+					job.future.completeExceptionally(new StableDiffusionException("SampleDecodePipeline closed. "));
+					return;
+				}
+				sampleStage.blockedNanos.addAndGet(System.nanoTime() - blockStart);
+			}
+		} catch (InterruptedException e) {
+			// Closed.
+		}
+	}
+
+
+	private void sample(Job job) {
+		if (fallback == null) {
+			job.latents = sampler.apply(job.params, job.options);
+			return;
+		}
+
+		try {
+			job.latents = sampler.apply(job.params, job.options);
+		} catch (UnsupportedOperationException e) {
+			logger.log(Level.FINE, "No latent API, sampling and decoding in the sample stage.", e);
+			job.pixels = fallback.apply(job.params, job.options);
+		}
+	}
+
+
+	private void runDecodeStage() {
+		List<Job> batch = new ArrayList<>(maxDecodeBatch);
+		try {
+			while (!closed) {
+				long waitStart = System.nanoTime();
+				batch.add(sampled.take());
+				decodeStage.idleNanos.addAndGet(System.nanoTime() - waitStart);
+				sampled.drainTo(batch, maxDecodeBatch - 1);
+
+				long start = System.nanoTime();
+				try {
+					decode(batch);
+				} finally {
+					decodeStage.busyNanos.addAndGet(System.nanoTime() - start);
+				}
+				decodeStage.processed.addAndGet(batch.size());
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			// Closed.
+		}
+	}
+
+
+	private void decode(List<Job> batch) {
+		Map<SDVaeTiling, List<Job>> groups = new LinkedHashMap<>();
+		for (Job job : batch) {
+			SDVaeTiling tiling = job.options == null ? null : job.options.getVaeTiling();
+			groups.computeIfAbsent(tiling, k -> new ArrayList<>()).add(job);
+		}
+
+		for (List<Job> group : groups.values()) {
+			decodeGroup(group, group.get(0).options);
+		}
+	}
+
+
+	private void decodeGroup(List<Job> batch, SDRequestOptions options) {
+
+		List<Latent> latents = new ArrayList<>();
+		for (Job job : batch) {
+			if (job.latents != null) {
+				latents.addAll(job.latents.getResultImages());
+			}
+		}
+
+		List<byte[]> images;
+		try {
+			images = latents.isEmpty() ? new ArrayList<>() : decoder.apply(latents, options);
+			if (images.size() != latents.size()) {
+				throw new StableDiffusionException("Decoder returned " + images.size() + " images for "
+						+ latents.size() + " latents. ");
+			}
+		} catch (RuntimeException | Error e) {
+			for (Job job : batch) {
+				if (job.pixels != null) {
+					job.future.complete(job.pixels);
+				} else {
+					job.future.completeExceptionally(e);
+				}
+			}
+			return;
+		}
+
+		int next = 0;
+		for (Job job : batch) {
+			if (job.pixels != null) {
+				job.future.complete(job.pixels);
+				continue;
+			}
+			int count = job.latents.getResultImages().size();
+			StableResult<Txt2ImgParams, byte[]> result = new StableResult<>();
+			result.setParams(job.latents.getParams());
+			result.setResultImages(new ArrayList<>(images.subList(next, next + count)));
+			next += count;
+			job.future.complete(result);
+		}
+	}
+
+
+	public StageMetrics getSampleStage() {
+		return sampleStage;
+	}
+
+
+	public StageMetrics getDecodeStage() {
+		return decodeStage;
+	}
+
+
+	/**
+	 *
+	 * @return count of sampled requests waiting for the decode stage.
+	 */
+	public int getQueueDepth() {
+		return sampled.size();
+	}
+
+
+	/**
+	 *
+	 * @return count of requests waiting for the sample stage.
+	 */
+	public int getPendingCount() {
+		return submitted.size();
+	}
+
+
+	/**
+	 * Stop both stages, requests not finished yet fail, the instances are not closed.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		sampleThread.interrupt();
+		decodeThread.interrupt();
+		try {
+			sampleThread.join();
+			decodeThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		StableDiffusionException error = new StableDiffusionException("SampleDecodePipeline closed. ");
+		List<Job> left = new ArrayList<>();
+		submitted.drainTo(left);
+		sampled.drainTo(left);
+		for (Job job : left) {
+			job.future.completeExceptionally(error);
+		}
+	}
+
+
+	/**
+	 * Time spent by one stage since the pipeline started: working, waiting for input, and blocked on a full
+	 * queue. Thread safe.
+	 */
+	public static class StageMetrics {
+
+		private final String name;
+
+		private final long startNanos = System.nanoTime();
+
+		private final AtomicLong busyNanos = new AtomicLong();
+
+		private final AtomicLong idleNanos = new AtomicLong();
+
+		private final AtomicLong blockedNanos = new AtomicLong();
+
+		private final AtomicLong processed = new AtomicLong();
+
+		private StageMetrics(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getBusyNanos() {
+			return busyNanos.get();
+		}
+
+		public long getIdleNanos() {
+			return idleNanos.get();
+		}
+
+		/**
+		 *
+		 * @return time the sample stage waited for room in the queue, always 0 for the decode stage.
+		 */
+		public long getBlockedNanos() {
+			return blockedNanos.get();
+		}
+
+		/**
+		 *
+		 * @return count of requests this stage finished.
+		 */
+		public long getProcessed() {
+			return processed.get();
+		}
+
+		/**
+		 *
+		 * @return busy time / time since the pipeline started, the bottleneck stage is close to 1.
+		 */
+		public double getUtilization() {
+			long elapsed = System.nanoTime() - startNanos;
+			return elapsed <= 0 ? 0 : Math.min(1, (double) busyNanos.get() / elapsed);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d processed, %.0f%% busy, %d ms idle, %d ms blocked", name, getProcessed(),
+					getUtilization() * 100, getIdleNanos() / 1_000_000, getBlockedNanos() / 1_000_000);
+		}
+	}
+
+
+	private static class Job {
+
+		private final Txt2ImgParams params;
+
+		private final SDRequestOptions options;
+
+		private final CompletableFuture<StableResult<Txt2ImgParams, byte[]>> future = new CompletableFuture<>();
+
+		private StableResult<Txt2ImgParams, Latent> latents;
+
+		private StableResult<Txt2ImgParams, byte[]> pixels;
+
+		private Job(Txt2ImgParams params, SDRequestOptions options) {
+			this.params = params;
+			this.options = options;
+		}
+	}
+
+}
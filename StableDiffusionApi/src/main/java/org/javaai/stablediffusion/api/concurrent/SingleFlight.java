@@ -0,0 +1,196 @@
+package org.javaai.stablediffusion.api.concurrent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.javaai.stablediffusion.api.SDCancellationToken;
+import org.javaai.stablediffusion.api.StableDiffusionCancelledException;
+import org.javaai.stablediffusion.api.result.StableResult;
+
+/**
+ * De-duplicates identical in-flight computations. <br>
+ * <br>
+ * The first {@link #submit(Object, Function)} of a key starts the computation, later submits of the same key
+ * attach to it while it is running, and every waiter receives the result. Once the computation completes the
+ * key is forgotten, this is not a cache of finished results. <br>
+ * Cancelling the future of a waiter detaches only that waiter, the computation is cancelled through its
+ * {@link SDCancellationToken} when the last waiter has gone. <br>
+ *
+ * <pre>
+ * SingleFlight&lt;String, StableResult&lt;Txt2ImgParams, byte[]&gt;&gt; flights =
+ * 		new SingleFlight&lt;&gt;(StableResult::copyPixels);
+ * String key = StableResultCache.txt2imgKey(fingerprint, params, vaeTiling);
+ * CompletableFuture&lt;StableResult&lt;Txt2ImgParams, byte[]&gt;&gt; result = flights.submit(key,
+ * 		token -&gt; pool.executeAsync(sd -&gt; sd.txt2PixelsImg(params, new SDRequestOptions(null, token)), 60, TimeUnit.SECONDS));
+ * </pre>
+ *
+ * Thread safe.
+ */
+public class SingleFlight<K, V> {
+
+	private final static Logger logger = Logger.getLogger(SingleFlight.class.getName());
+
+	private final UnaryOperator<V> copier;
+
+	private final Map<K, Flight<V>> flights = new HashMap<>();
+
+
+	/**
+	 * Every waiter receives the same result object.
+	 */
+	public SingleFlight() {
+		this(null);
+	}
+
+
+	/**
+	 *
+	 * @param copier Nullable, applied to the result for every waiter but the first, so results with mutable
+	 *               content like pixels are never shared, see {@link StableResult#copyPixels(StableResult)}.
+	 */
+	public SingleFlight(UnaryOperator<V> copier) {
+		this.copier = copier;
+	}
+
+
+	/**
+	 *
+	 * @param key         NotNull, must identify the full set of params of the computation.
+	 * @param computation NotNull, called only if no computation of key is running, the token is cancelled when
+	 *                    every waiter has cancelled.
+	 * @return future of this waiter, cancelling it detaches this waiter only.
+	 */
+	public CompletableFuture<V> submit(K key, Function<SDCancellationToken, CompletableFuture<V>> computation) {
+
+		if (key == null || computation == null) {
+			throw new IllegalArgumentException("Arguments key and computation can not be null. ");
+		}
+
+		Flight<V> flight;
+		boolean start = false;
+		CompletableFuture<V> waiter = new CompletableFuture<>();
+		synchronized (flights) {
+			flight = flights.get(key);
+			if (flight == null) {
+				flight = new Flight<>();
+				flights.put(key, flight);
+				start = true;
+			} else {
+				logger.log(Level.FINE, "Attached to in-flight computation of key {0}.", key);
+			}
+			flight.waiters ++;
+		}
+
+		Flight<V> attached = flight;
+		waiter.whenComplete((result, error) -> {
+			if (error instanceof CancellationException) {
+				detach(key, attached);
+			}
+		});
+
+		attached.source.whenComplete((result, error) -> {
+			if (error != null) {
+				waiter.completeExceptionally(error);
+			} else if (copier != null && !attached.firstDelivered.compareAndSet(false, true)) {
+				waiter.complete(copier.apply(result));
+			} else {
+				waiter.complete(result);
+			}
+		});
+
+		if (start) {
+			run(key, attached, computation);
+		}
+
+		return waiter;
+	}
+
+
+	private void run(K key, Flight<V> flight, Function<SDCancellationToken, CompletableFuture<V>> computation) {
+
+		flight.source.whenComplete((result, error) -> {
+			synchronized (flights) {
+				flights.remove(key, flight);
+			}
+		});
+
+		CompletableFuture<V> future;
+		try {
+			future = computation.apply(flight.token);
+		} catch (RuntimeException | Error e) {
+			flight.source.completeExceptionally(e);
+			return;
+		}
+
+		future.whenComplete((result, error) -> {
+			if (error != null) {
+				flight.source.completeExceptionally(error);
+			} else {
+				flight.source.complete(result);
+			}
+		});
+	}
+
+
+	private void detach(K key, Flight<V> flight) {
+		synchronized (flights) {
+			flight.waiters --;
+			if (flight.waiters > 0 || flight.source.isDone()) {
+				return;
+			}
+
+			// Later submits of the key start a new computation instead of attaching to a cancelled one.
+			flights.remove(key, flight);
+		}
+
+		flight.token.cancel();
+		flight.source.completeExceptionally(new StableDiffusionCancelledException("Every waiter cancelled. "));
+	}
+
+
+	/**
+	 *
+	 * @return number of keys with a running computation.
+	 */
+	public int getInFlightCount() {
+		synchronized (flights) {
+			return flights.size();
+		}
+	}
+
+
+	/**
+	 *
+	 * @param key NotNull
+	 * @return number of waiters attached to the running computation of key, 0 if none.
+	 */
+	public int getWaiterCount(K key) {
+		synchronized (flights) {
+			Flight<V> flight = flights.get(key);
+			return flight == null ? 0 : flight.waiters;
+		}
+	}
+
+
+	private static class Flight<V> {
+
+		private final CompletableFuture<V> source = new CompletableFuture<>();
+
+		private final SDCancellationToken token = new SDCancellationToken();
+
+		private final AtomicBoolean firstDelivered = new AtomicBoolean();
+
+		/**
+		 * Guarded by flights.
+		 */
+		private int waiters;
+	}
+
+}
@@ -0,0 +1,204 @@
+package org.javaai.stablediffusion.api.concurrent;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Executors used by the asynchronous API. <br>
+ * <br>
+ * Inference executor runs the native sampling of the async methods of a single {@link org.javaai.stablediffusion.api.StableDiffusion}, 
+ * it is bounded by thread count and queue size, since every native call already uses all n_threads of its context. 
+ * Components which block on several instances, like {@link org.javaai.stablediffusion.api.pool.StableDiffusionPool}, 
+ * own an executor of {@link #newInferenceExecutor(String, int)} sized to their capacity instead, so they neither 
+ * cap each other nor starve each other. 
+ * Conversion executor runs pixel conversion and encoding, sized by CPU count. <br>
+ * <br>
+ * Sizes are read once from system properties: <br>
+ * sd.inference.threads, default is 2. <br>
+ * sd.inference.queue, default is 256. <br>
+ * sd.conversion.threads, default is count of available processors. <br>
+ * All threads are daemon threads. 
+ */
+public class StableDiffusionExecutors {
+	
+	
+	private static volatile ExecutorService inferenceExecutor;
+	
+	private static volatile ExecutorService conversionExecutor;
+	
+	
+	/**
+	 * 
+	 * @return shared bounded executor for native sampling. 
+	 */
+	public static ExecutorService getInferenceExecutor() {
+		ExecutorService executor = inferenceExecutor;
+		if (executor == null) {
+			synchronized (StableDiffusionExecutors.class) {
+				executor = inferenceExecutor;
+				if (executor == null) {
+					int threads = Integer.getInteger("sd.inference.threads", 2);
+					int queue = Integer.getInteger("sd.inference.queue", 256);
+					executor = newExecutor("sd-inference", threads, queue);
+					inferenceExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+	
+	
+	/**
+	 * 
+	 * @return shared executor for pixel conversion and image encoding. 
+	 */
+	public static ExecutorService getConversionExecutor() {
+		ExecutorService executor = conversionExecutor;
+		if (executor == null) {
+			synchronized (StableDiffusionExecutors.class) {
+				executor = conversionExecutor;
+				if (executor == null) {
+					int threads = Integer.getInteger("sd.conversion.threads", 
+							Runtime.getRuntime().availableProcessors());
+					executor = newExecutor("sd-conversion", threads, Integer.MAX_VALUE);
+					conversionExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+	
+	
+	/**
+	 * New bounded executor of daemon threads, for a component which owns it, idle threads time out. 
+	 * 
+	 * @param name prefix of thread names. 
+	 * @param threads max count of tasks running at once, at least 1, can be changed later by 
+	 * {@link #resize(ThreadPoolExecutor, int)}. 
+	 * @return queue size is sd.inference.queue. 
+	 */
+	public static ThreadPoolExecutor newInferenceExecutor(String name, int threads) {
+		return newExecutor(name, threads, Integer.getInteger("sd.inference.queue", 256));
+	}
+	
+	
+	/**
+	 * Change the thread count of an executor of {@link #newInferenceExecutor(String, int)}. 
+	 * 
+	 * @param executor NotNull
+	 * @param threads at least 1. 
+	 */
+	public static void resize(ThreadPoolExecutor executor, int threads) {
+		synchronized (executor) {
+			threads = Math.max(1, threads);
+			// Core size can never exceed max size. 
+			if (threads > executor.getMaximumPoolSize()) {
+				executor.setMaximumPoolSize(threads);
+				executor.setCorePoolSize(threads);
+			} else {
+				executor.setCorePoolSize(threads);
+				executor.setMaximumPoolSize(threads);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Replace the shared inference executor, the previous one is not shut down. 
+	 * 
+	 * @param executor NotNull
+	 */
+	public static synchronized void setInferenceExecutor(ExecutorService executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("Argument executor can not be null. ");
+		}
+		inferenceExecutor = executor;
+	}
+	
+	
+	/**
+	 * Replace the shared conversion executor, the previous one is not shut down. 
+	 * 
+	 * @param executor NotNull
+	 */
+	public static synchronized void setConversionExecutor(ExecutorService executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("Argument executor can not be null. ");
+		}
+		conversionExecutor = executor;
+	}
+	
+	
+	/**
+	 * Shut down the shared executors, they are created again on next use. 
+	 */
+	public static synchronized void shutdown() {
+		if (inferenceExecutor != null) {
+			inferenceExecutor.shutdown();
+			inferenceExecutor = null;
+		}
+		if (conversionExecutor != null) {
+			conversionExecutor.shutdown();
+			conversionExecutor = null;
+		}
+	}
+	
+	
+	/**
+	 * Same as {@link CompletableFuture#supplyAsync(Supplier, java.util.concurrent.Executor)}, 
+	 * but a full queue fails the returned future instead of throwing {@link RejectedExecutionException}. 
+	 */
+	public static <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier, ExecutorService executor) {
+		try {
+			return CompletableFuture.supplyAsync(supplier, executor);
+		} catch (RejectedExecutionException e) {
+			CompletableFuture<T> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+	
+	
+	private static ThreadPoolExecutor newExecutor(String name, int threads, int queueSize) {
+		
+		if (threads < 1) {
+			throw new IllegalArgumentException("Thread count of " + name + " must be at least 1. ");
+		}
+		
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 
+				60L, TimeUnit.SECONDS, 
+				new LinkedBlockingQueue<>(queueSize), 
+				new DaemonThreadFactory(name));
+		executor.allowCoreThreadTimeOut(true);
+		
+		return executor;
+	}
+	
+	
+	static class DaemonThreadFactory implements ThreadFactory {
+		
+		private final String name;
+		
+		private final AtomicInteger count = new AtomicInteger();
+		
+		DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+
+}
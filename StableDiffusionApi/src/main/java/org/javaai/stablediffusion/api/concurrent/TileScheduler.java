@@ -0,0 +1,194 @@
+package org.javaai.stablediffusion.api.concurrent;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.javaai.stablediffusion.api.SDCancellationToken;
+import org.javaai.stablediffusion.api.SDProgressCallback;
+import org.javaai.stablediffusion.api.SDRequestOptions;
+import org.javaai.stablediffusion.api.StableDiffusionCancelledException;
+import org.javaai.stablediffusion.api.StableDiffusionException;
+import org.javaai.stablediffusion.api.utils.TileBlender;
+
+/**
+ * Processes the tiles of a {@link TileBlender} in parallel and blends them into one output buffer. <br>
+ * <br>
+ * One worker per processor takes tiles in order until none is left, every finished tile is blended into the
+ * output right away, so memory stays at one tile per worker besides the output. The calling thread runs the first
+ * worker, the others run on the executor, so a busy executor slows the job down but never blocks it: workers
+ * still queued when the calling thread runs out of tiles are skipped, not waited for, so a job started from a
+ * thread of the same executor can not starve.
+ */
+public class TileScheduler {
+
+
+	/**
+	 * Processes one tile.
+	 */
+	@FunctionalInterface
+	public static interface TileProcessor {
+
+		/**
+		 *
+		 * @param tileRGB NotNull, RGB pixels of the tile, width * height * 3 bytes.
+		 * @param width
+		 * @param height
+		 * @return RGB pixels of the processed tile, scaled by the scale of the blender.
+		 */
+		public byte[] process(byte[] tileRGB, int width, int height);
+	}
+
+
+	/**
+	 *
+	 * @param blender    NotNull, tiles of the image.
+	 * @param pixelsRGB  NotNull, RGB pixels of the whole image.
+	 * @param output     NotNull, receives {@link TileBlender#getOutputCapacity()} bytes from index 0, zero filled first.
+	 * @param processors NotNull, one worker per element.
+	 * @param executor   NotNull, runs the workers besides the calling thread.
+	 * @param options    Nullable, the cancellation token is checked before every tile, the progress callback is
+	 *                   called after every tile, with the count of finished tiles as step.
+	 * @throws StableDiffusionCancelledException if cancelled by options.
+	 */
+	public static void run(TileBlender blender, byte[] pixelsRGB, ByteBuffer output,
+			List<? extends TileProcessor> processors, ExecutorService executor, SDRequestOptions options) {
+
+		if (processors == null || processors.isEmpty()) {
+			throw new IllegalArgumentException("Argument processors can not be empty. ");
+		}
+
+		// Seam pixels are accumulated over the tiles covering them.
+		if (output.hasArray()) {
+			Arrays.fill(output.array(), output.arrayOffset(), output.arrayOffset() + blender.getOutputCapacity(), (byte) 0);
+		} else {
+			ByteBuffer target = output.duplicate();
+			target.clear();
+			target.limit(blender.getOutputCapacity());
+			byte[] zeros = new byte[Math.min(target.remaining(), 64 * 1024)];
+			while (target.hasRemaining()) {
+				target.put(zeros, 0, Math.min(zeros.length, target.remaining()));
+			}
+		}
+
+		Job job = new Job(blender, pixelsRGB, output, options);
+		int workers = Math.min(processors.size(), blender.getTileCount());
+
+		List<CompletableFuture<Void>> futures = new ArrayList<>(workers - 1);
+		List<AtomicBoolean> started = new ArrayList<>(workers - 1);
+		for (int i = 1; i < workers; i ++) {
+			TileProcessor processor = processors.get(i);
+			AtomicBoolean claimed = new AtomicBoolean();
+			try {
+				futures.add(CompletableFuture.runAsync(() -> {
+					if (claimed.compareAndSet(false, true)) {
+						job.work(processor);
+					}
+				}, executor));
+				started.add(claimed);
+			} catch (RejectedExecutionException e) {
+				// The calling thread takes the tiles of the rejected workers.
+				break;
+			}
+		}
+
+		RuntimeException failure = null;
+		try {
+			job.work(processors.get(0));
+		} catch (RuntimeException e) {
+			failure = e;
+		}
+
+		for (int i = 0; i < futures.size(); i ++) {
+			if (started.get(i).compareAndSet(false, true)) {
+				// Still queued, all tiles are taken, the worker will do nothing.
+				continue;
+			}
+			try {
+				futures.get(i).join();
+			} catch (CompletionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+				}
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+
+	/**
+	 * Tiles of one image, taken in order by the workers.
+	 */
+	private static class Job {
+
+		private final TileBlender blender;
+
+		private final byte[] pixelsRGB;
+
+		private final ByteBuffer output;
+
+		private final SDCancellationToken cancellationToken;
+
+		private final SDProgressCallback progressCallback;
+
+		private final AtomicInteger nextTile = new AtomicInteger();
+
+		private volatile boolean failed = false;
+
+		private int finishedTiles = 0;
+
+		private Job(TileBlender blender, byte[] pixelsRGB, ByteBuffer output, SDRequestOptions options) {
+			this.blender = blender;
+			this.pixelsRGB = pixelsRGB;
+			this.output = output;
+			this.cancellationToken = options == null ? null : options.getCancellationToken();
+			this.progressCallback = options == null ? null : options.getProgressCallback();
+		}
+
+		private void work(TileProcessor processor) {
+			int tiles = blender.getTileCount();
+			int tileWidth = blender.getTileWidth();
+			int tileHeight = blender.getTileHeight();
+			int scale = blender.getScale();
+
+			try {
+				int tile;
+				while (!failed && (tile = nextTile.getAndIncrement()) < tiles) {
+					if (cancellationToken != null && cancellationToken.isCancelled()) {
+						throw new StableDiffusionCancelledException("Request cancelled. ");
+					}
+
+					long start = System.nanoTime();
+					byte[] processed = processor.process(blender.crop(pixelsRGB, tile), tileWidth, tileHeight);
+					if (processed == null || processed.length != tileWidth * scale * tileHeight * scale * 3) {
+						throw new StableDiffusionException("Tile processor returned " + (processed == null ? "null"
+								: processed.length + " bytes") + " for tile " + tileWidth + "x" + tileHeight
+								+ ", scale: " + scale);
+					}
+
+					synchronized (this) {
+						blender.blend(processed, tile, output, 0);
+						finishedTiles ++;
+						if (progressCallback != null) {
+							progressCallback.onSDProgress(finishedTiles, tiles, (System.nanoTime() - start) / 1e9f);
+						}
+					}
+				}
+			} catch (RuntimeException | Error e) {
+				failed = true;
+				throw e;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,362 @@
+package org.javaai.stablediffusion.api.concurrent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.javaai.stablediffusion.api.StableDiffusion;
+import org.javaai.stablediffusion.api.StableDiffusionException;
+import org.javaai.stablediffusion.api.result.StableResult;
+import org.javaai.stablediffusion.api.result.Txt2ImgParams;
+
+/**
+ * Coalesces concurrent txt2img requests into batched native calls. <br>
+ * <br>
+ * Requests which match in prompt, negative prompt, cfg scale, size, sample method and sample steps are
+ * collected for a short window. A native batch samples seeds seed, seed + 1, ..., so requests whose seeds form
+ * a contiguous run are merged into one native call with batch_count set to the run length, and the images are
+ * fanned out to every request. Requests with the same seed share the sampling. <br>
+ *
+ * <pre>
+ * StableDiffusion sd = ...;
+ * Txt2ImgBatchScheduler scheduler = new Txt2ImgBatchScheduler(
+ * 		params -&gt; sd.txt2PixelsImg(params, null), 20, 8);
+ * CompletableFuture&lt;StableResult&lt;Txt2ImgParams, byte[]&gt;&gt; result = scheduler.submit(params);
+ * </pre>
+ */
+public class Txt2ImgBatchScheduler implements AutoCloseable {
+
+	private final static Logger logger = Logger.getLogger(Txt2ImgBatchScheduler.class.getName());
+
+	private final Function<Txt2ImgParams, StableResult<Txt2ImgParams, byte[]>> backend;
+
+	private final long windowMillis;
+
+	private final int maxBatch;
+
+	private final ExecutorService executor;
+
+	private final boolean ownsExecutor;
+
+	private final ScheduledExecutorService timer;
+
+	private final Map<BatchKey, Window> pending = new HashMap<>();
+
+	/**
+	 * Guarded by pending.
+	 */
+	private long nextGeneration = 0;
+
+	private volatile boolean closed = false;
+
+
+	/**
+	 * Batches run on an executor of this scheduler, up to the count of available processors batches at once.
+	 *
+	 * @param backend      NotNull, runs one native batch, like
+	 *                     {@link StableDiffusion#txt2PixelsImg(Txt2ImgParams, org.javaai.stablediffusion.api.SDRequestOptions)}.
+	 * @param windowMillis time to wait for matching requests after the first one.
+	 * @param maxBatch     max batch_count of a merged native call.
+	 */
+	public Txt2ImgBatchScheduler(Function<Txt2ImgParams, StableResult<Txt2ImgParams, byte[]>> backend,
+			long windowMillis, int maxBatch) {
+		this(backend, windowMillis, maxBatch, null);
+	}
+
+
+	/**
+	 *
+	 * @param backend      NotNull, runs one native batch.
+	 * @param windowMillis time to wait for matching requests after the first one.
+	 * @param maxBatch     max batch_count of a merged native call.
+	 * @param executor     Nullable, runs the batches, default is an executor of this scheduler, shut down by
+	 *                     {@link #close()}.
+	 */
+	public Txt2ImgBatchScheduler(Function<Txt2ImgParams, StableResult<Txt2ImgParams, byte[]>> backend,
+			long windowMillis, int maxBatch, ExecutorService executor) {
+
+		if (backend == null) {
+			throw new IllegalArgumentException("Argument backend can not be null. ");
+		}
+
+		if (maxBatch < 1) {
+			throw new IllegalArgumentException("Argument maxBatch must be at least 1. ");
+		}
+
+		this.backend = backend;
+		this.windowMillis = windowMillis;
+		this.maxBatch = maxBatch;
+		this.ownsExecutor = executor == null;
+		this.executor = executor != null ? executor : StableDiffusionExecutors.newInferenceExecutor("sd-batch",
+				Runtime.getRuntime().availableProcessors());
+		this.timer = Executors.newSingleThreadScheduledExecutor(
+				new StableDiffusionExecutors.DaemonThreadFactory("sd-batch-timer"));
+	}
+
+
+	/**
+	 *
+	 * @param params NotNull, null fields take their default value.
+	 * @return future of the images of this request, pixels are not shared with other requests.
+	 */
+	public CompletableFuture<StableResult<Txt2ImgParams, byte[]>> submit(Txt2ImgParams params) {
+
+		Pending request = new Pending(StableDiffusion.withDefaults(params));
+		BatchKey key = new BatchKey(request.params);
+
+		boolean flushNow = false;
+		boolean schedule = false;
+		long generation;
+		synchronized (pending) {
+			if (closed) {
+				throw new StableDiffusionException("Txt2ImgBatchScheduler already closed. ");
+			}
+
+			Window window = pending.get(key);
+			if (window == null) {
+				window = new Window(nextGeneration ++);
+				pending.put(key, window);
+				schedule = true;
+			}
+			window.requests.add(request);
+			window.images += request.params.getBatch_count();
+			generation = window.generation;
+			flushNow = window.images >= maxBatch;
+		}
+
+		if (flushNow) {
+			flush(key, generation);
+		} else if (schedule) {
+			try {
+				timer.schedule(() -> flush(key, generation), windowMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				flush(key, generation);
+			}
+		}
+
+		return request.future;
+	}
+
+
+	/**
+	 *
+	 * @param generation generation of the window to flush, a timer of an older window of key is ignored.
+	 */
+	private void flush(BatchKey key, long generation) {
+
+		List<Pending> requests;
+		synchronized (pending) {
+			Window window = pending.get(key);
+			if (window == null || window.generation != generation) {
+				return;
+			}
+			pending.remove(key);
+			requests = window.requests;
+		}
+
+		for (List<Pending> run : toRuns(requests)) {
+			try {
+				executor.execute(() -> runBatch(run));
+			} catch (RejectedExecutionException e) {
+				for (Pending request : run) {
+					request.future.completeExceptionally(e);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Split requests sorted by seed into runs of contiguous seeds, each run at most maxBatch images,
+	 * a request is never split.
+	 */
+	private List<List<Pending>> toRuns(List<Pending> requests) {
+
+		requests.sort((a, b) -> Long.compare(a.params.getSeed(), b.params.getSeed()));
+
+		List<List<Pending>> runs = new ArrayList<>();
+		List<Pending> run = null;
+		long runStart = 0;
+		long runEnd = 0;
+		for (Pending request : requests) {
+			long start = request.params.getSeed();
+			long end = start + request.params.getBatch_count();
+
+			if (run == null || start > runEnd || Math.max(runEnd, end) - runStart > maxBatch) {
+				run = new ArrayList<>();
+				runs.add(run);
+				runStart = start;
+				runEnd = end;
+			}
+
+			run.add(request);
+			runEnd = Math.max(runEnd, end);
+		}
+
+		return runs;
+	}
+
+
+	private void runBatch(List<Pending> run) {
+
+		long runStart = run.get(0).params.getSeed();
+		long runEnd = runStart;
+		for (Pending request : run) {
+			runEnd = Math.max(runEnd, request.params.getSeed() + request.params.getBatch_count());
+		}
+
+		Txt2ImgParams batchParams = run.get(0).params.copy();
+		batchParams.setSeed(runStart);
+		batchParams.setBatch_count((int) (runEnd - runStart));
+
+		List<byte[]> images;
+		try {
+			images = backend.apply(batchParams).getResultImages();
+		} catch (RuntimeException | Error e) {
+			for (Pending request : run) {
+				request.future.completeExceptionally(e);
+			}
+			return;
+		}
+
+		if (run.size() > 1) {
+			logger.log(Level.FINE, "Merged {0} txt2img requests into one batch of {1} images.",
+					new Object[] { run.size(), batchParams.getBatch_count() });
+		}
+
+		boolean[] delivered = new boolean[images.size()];
+		for (Pending request : run) {
+			int offset = (int) (request.params.getSeed() - runStart);
+			int count = request.params.getBatch_count();
+			if (offset + count > images.size()) {
+				request.future.completeExceptionally(new StableDiffusionException("Native batch returned "
+						+ images.size() + " images, expected " + batchParams.getBatch_count()));
+				continue;
+			}
+
+			List<byte[]> requestImages = new ArrayList<>(count);
+			for (int i = offset; i < offset + count; i++) {
+				// Callers may convert pixels in place, never hand out the same array twice.
+				requestImages.add(delivered[i] ? Arrays.copyOf(images.get(i), images.get(i).length) : images.get(i));
+				delivered[i] = true;
+			}
+
+			StableResult<Txt2ImgParams, byte[]> result = new StableResult<>();
+			result.setParams(request.params);
+			result.setResultImages(requestImages);
+			request.future.complete(result);
+		}
+	}
+
+
+	/**
+	 * Flush all pending requests and stop accepting new ones.
+	 */
+	@Override
+	public void close() {
+		Map<BatchKey, Long> windows = new HashMap<>();
+		synchronized (pending) {
+			closed = true;
+			for (Map.Entry<BatchKey, Window> window : pending.entrySet()) {
+				windows.put(window.getKey(), window.getValue().generation);
+			}
+		}
+
+		for (Map.Entry<BatchKey, Long> window : windows.entrySet()) {
+			flush(window.getKey(), window.getValue());
+		}
+
+		timer.shutdownNow();
+		if (ownsExecutor) {
+			// Batches already flushed still run.
+			executor.shutdown();
+		}
+	}
+
+
+	/**
+	 * Requests of one key collected since the first one, a new window of the same key gets a new generation.
+	 */
+	private static class Window {
+
+		private final long generation;
+
+		private final List<Pending> requests = new ArrayList<>();
+
+		private int images;
+
+		private Window(long generation) {
+			this.generation = generation;
+		}
+	}
+
+
+	private static class Pending {
+
+		private final Txt2ImgParams params;
+
+		private final CompletableFuture<StableResult<Txt2ImgParams, byte[]>> future = new CompletableFuture<>();
+
+		private Pending(Txt2ImgParams params) {
+			this.params = params;
+		}
+	}
+
+
+	/**
+	 * All fields of {@link Txt2ImgParams} except seed and batch_count.
+	 */
+	private static class BatchKey {
+
+		private final String prompt;
+		private final String negative_prompt;
+		private final Float cfg_scale;
+		private final Integer width;
+		private final Integer height;
+		private final Integer sample_method;
+		private final Integer sample_steps;
+
+		private BatchKey(Txt2ImgParams params) {
+			this.prompt = params.getPrompt();
+			this.negative_prompt = params.getNegative_prompt();
+			this.cfg_scale = params.getCfg_scale();
+			this.width = params.getWidth();
+			this.height = params.getHeight();
+			this.sample_method = params.getSample_method();
+			this.sample_steps = params.getSample_steps();
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(prompt, negative_prompt, cfg_scale, width, height, sample_method, sample_steps);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof BatchKey)) {
+				return false;
+			}
+			BatchKey other = (BatchKey) obj;
+			return Objects.equals(prompt, other.prompt) && Objects.equals(negative_prompt, other.negative_prompt)
+					&& Objects.equals(cfg_scale, other.cfg_scale) && Objects.equals(width, other.width)
+					&& Objects.equals(height, other.height) && Objects.equals(sample_method, other.sample_method)
+					&& Objects.equals(sample_steps, other.sample_steps);
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.javaai.stablediffusion.api.pool;
+
+/**
+ * Snapshot of the utilization of one pooled instance. 
+ */
+public class InstanceStats {
+	
+	private final int id;
+	private final long createdAtMillis;
+	private final long borrowCount;
+	private final long failureCount;
+	private final long busyNanos;
+	private final long aliveNanos;
+	private final boolean borrowed;
+	
+	
+	public InstanceStats(int id, long createdAtMillis, long borrowCount, long failureCount, 
+			long busyNanos, long aliveNanos, boolean borrowed) {
+		super();
+		this.id = id;
+		this.createdAtMillis = createdAtMillis;
+		this.borrowCount = borrowCount;
+		this.failureCount = failureCount;
+		this.busyNanos = busyNanos;
+		this.aliveNanos = aliveNanos;
+		this.borrowed = borrowed;
+	}
+	
+	public int getId() {
+		return id;
+	}
+	public long getCreatedAtMillis() {
+		return createdAtMillis;
+	}
+	public long getBorrowCount() {
+		return borrowCount;
+	}
+	public long getFailureCount() {
+		return failureCount;
+	}
+	public long getBusyNanos() {
+		return busyNanos;
+	}
+	public long getAliveNanos() {
+		return aliveNanos;
+	}
+	public boolean isBorrowed() {
+		return borrowed;
+	}
+	
+	/**
+	 * 
+	 * @return share of the instance lifetime spent borrowed, 0 to 1. 
+	 */
+	public double getUtilization() {
+		if (aliveNanos <= 0) {
+			return 0;
+		}
+		return Math.min(1.0, (double) busyNanos / aliveNanos);
+	}
+
+	@Override
+	public String toString() {
+		return "InstanceStats [id=" + id + ", borrowCount=" + borrowCount + ", failureCount=" + failureCount
+				+ ", utilization=" + String.format("%.3f", getUtilization()) + ", borrowed=" + borrowed + "]";
+	}
+	
+
+}
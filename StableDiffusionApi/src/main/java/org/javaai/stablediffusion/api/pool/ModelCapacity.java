@@ -0,0 +1,55 @@
+package org.javaai.stablediffusion.api.pool;
+
+/**
+ * Warm capacity of one model, as seen by {@link PoolRebalancer}. Implemented by {@link StableDiffusionPool},
+ * simulations implement it to drive a rebalancer with synthetic traffic.
+ */
+public interface ModelCapacity {
+
+
+	/**
+	 *
+	 * @return count of live instances, idle or busy.
+	 */
+	public int getSize();
+
+
+	public int getIdleCount();
+
+
+	/**
+	 *
+	 * @return count of requests queued for an idle instance.
+	 */
+	public int getWaitingCount();
+
+
+	/**
+	 *
+	 * @return cumulative time requests waited for an instance.
+	 */
+	public long getTotalWaitNanos();
+
+
+	/**
+	 *
+	 * @return cumulative count of requests which got an instance.
+	 */
+	public long getTotalBorrowCount();
+
+
+	/**
+	 * Load one more instance, may block for the whole load.
+	 */
+	public void grow();
+
+
+	/**
+	 * Retire one idle instance.
+	 *
+	 * @return false if no instance could be retired.
+	 */
+	public boolean shrink();
+
+
+}
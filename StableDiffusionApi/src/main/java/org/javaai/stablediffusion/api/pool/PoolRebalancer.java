@@ -0,0 +1,391 @@
+package org.javaai.stablediffusion.api.pool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.javaai.stablediffusion.api.StableDiffusionException;
+
+/**
+ * Moves warm instances between the pools of several models following demand. <br>
+ * <br>
+ * Every {@link #rebalance()} round samples queue depth and average wait of every model. A model is hot when
+ * requests queue and either wait longer than hotWaitMillis or outnumber its instances, and cold when it has
+ * idle instances and nothing queued. <br>
+ * A model hot for hotRounds consecutive rounds grows by one instance, within maxTotalSize, or takes the
+ * instance of a cold model when the total is reached. A model cold for coldRounds consecutive rounds retires
+ * one instance, down to minSize. A model is not changed again within cooldownMillis of its last change. <br>
+ * <br>
+ * The clock and the executor which loads new instances are injectable, so a simulation can call
+ * {@link #rebalance()} directly with {@link ModelCapacity} fakes and a synthetic traffic trace.
+ *
+ * <pre>
+ * Map&lt;String, StableDiffusionPool&gt; pools = ...;
+ * PoolRebalancer&lt;String&gt; rebalancer = new PoolRebalancer&lt;&gt;(pools, 8);
+ * rebalancer.start(5, TimeUnit.SECONDS);
+ * </pre>
+ */
+public class PoolRebalancer<K> implements AutoCloseable {
+
+	private final static Logger logger = Logger.getLogger(PoolRebalancer.class.getName());
+
+	private final Map<K, ModelState> models = new LinkedHashMap<>();
+
+	private final int maxTotalSize;
+
+	private final Executor growExecutor;
+
+	private final boolean ownsGrowExecutor;
+
+	private final LongSupplier clockMillis;
+
+	private ScheduledExecutorService scheduler;
+
+	private int minSize = 1;
+
+	private long hotWaitMillis = 500L;
+
+	private int hotRounds = 3;
+
+	private int coldRounds = 12;
+
+	private long cooldownMillis = 60_000L;
+
+
+	/**
+	 * New instances are loaded on a daemon thread, clock is {@link System#currentTimeMillis()}.
+	 *
+	 * @param models       NotNull, capacity of every model.
+	 * @param maxTotalSize max count of instances of all models.
+	 */
+	public PoolRebalancer(Map<K, ? extends ModelCapacity> models, int maxTotalSize) {
+		this(models, maxTotalSize, Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "sd-pool-grower");
+			thread.setDaemon(true);
+			return thread;
+		}), System::currentTimeMillis, true);
+	}
+
+
+	/**
+	 *
+	 * @param models       NotNull, capacity of every model.
+	 * @param maxTotalSize max count of instances of all models.
+	 * @param growExecutor NotNull, runs {@link ModelCapacity#grow()}.
+	 * @param clockMillis  NotNull, current time in milliseconds.
+	 */
+	public PoolRebalancer(Map<K, ? extends ModelCapacity> models, int maxTotalSize, Executor growExecutor,
+			LongSupplier clockMillis) {
+		this(models, maxTotalSize, growExecutor, clockMillis, false);
+	}
+
+
+	private PoolRebalancer(Map<K, ? extends ModelCapacity> models, int maxTotalSize, Executor growExecutor,
+			LongSupplier clockMillis, boolean ownsGrowExecutor) {
+
+		if (models == null || growExecutor == null || clockMillis == null) {
+			throw new IllegalArgumentException("Arguments models, growExecutor and clockMillis can not be null. ");
+		}
+
+		if (maxTotalSize < models.size()) {
+			throw new IllegalArgumentException("Argument maxTotalSize must be at least the count of models. ");
+		}
+
+		this.maxTotalSize = maxTotalSize;
+		this.growExecutor = growExecutor;
+		this.ownsGrowExecutor = ownsGrowExecutor;
+		this.clockMillis = clockMillis;
+
+		for (Map.Entry<K, ? extends ModelCapacity> model : models.entrySet()) {
+			this.models.put(model.getKey(), new ModelState(model.getValue()));
+		}
+	}
+
+
+	/**
+	 * Run {@link #rebalance()} periodically on a daemon thread.
+	 *
+	 * @param period
+	 * @param unit
+	 */
+	public synchronized void start(long period, TimeUnit unit) {
+		if (scheduler != null) {
+			throw new StableDiffusionException("PoolRebalancer already started. ");
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "sd-pool-rebalancer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				rebalance();
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Rebalance round failed.", e);
+			}
+		}, period, period, unit);
+	}
+
+
+	/**
+	 * One control round: sample every model, then grow at most one model and retire at most one instance.
+	 *
+	 * @return NotNull, actions taken in this round, grows are still loading when this returns.
+	 */
+	public synchronized List<RebalanceAction<K>> rebalance() {
+
+		long now = clockMillis.getAsLong();
+		int total = 0;
+		for (ModelState state : models.values()) {
+			state.sample(hotWaitMillis);
+			total += state.capacity.getSize() + state.growing.get();
+		}
+
+		List<RebalanceAction<K>> actions = new ArrayList<>();
+
+		K hottest = null;
+		double hottestPressure = 0;
+		for (Map.Entry<K, ModelState> model : models.entrySet()) {
+			ModelState state = model.getValue();
+			if (state.hotStreak >= hotRounds && state.growing.get() == 0 && state.isCooledDown(now, cooldownMillis)
+					&& state.pressure > hottestPressure) {
+				hottest = model.getKey();
+				hottestPressure = state.pressure;
+			}
+		}
+
+		K donor = null;
+		if (hottest != null && total >= maxTotalSize) {
+			donor = findDonor(hottest, now, hotRounds);
+			if (donor == null) {
+				logger.log(Level.FINE, "Model {0} is hot but no capacity is free to move.", hottest);
+				hottest = null;
+			} else if (shrink(donor, now, "donated to " + hottest, actions)) {
+				total --;
+			} else {
+				hottest = null;
+			}
+		}
+
+		if (hottest != null) {
+			grow(hottest, now, actions);
+		}
+
+		if (donor == null) {
+			K cold = findDonor(null, now, coldRounds);
+			if (cold != null) {
+				shrink(cold, now, "idle for " + coldRounds + " rounds", actions);
+			}
+		}
+
+		return actions;
+	}
+
+
+	/**
+	 *
+	 * @param exclude Nullable
+	 * @return Nullable, the coldest model which can retire an instance.
+	 */
+	private K findDonor(K exclude, long now, int minColdStreak) {
+		K donor = null;
+		int donorStreak = 0;
+		for (Map.Entry<K, ModelState> model : models.entrySet()) {
+			ModelState state = model.getValue();
+			if (model.getKey().equals(exclude) || state.coldStreak < minColdStreak || state.coldStreak <= donorStreak
+					|| state.capacity.getSize() <= minSize || !state.isCooledDown(now, cooldownMillis)) {
+				continue;
+			}
+			donor = model.getKey();
+			donorStreak = state.coldStreak;
+		}
+		return donor;
+	}
+
+
+	private boolean shrink(K key, long now, String reason, List<RebalanceAction<K>> actions) {
+		ModelState state = models.get(key);
+		if (!state.capacity.shrink()) {
+			return false;
+		}
+		state.changed(now);
+		actions.add(new RebalanceAction<>(key, RebalanceAction.Type.SHRINK, reason));
+		logger.log(Level.INFO, "Retired an instance of model {0}, {1}.", new Object[] { key, reason });
+		return true;
+	}
+
+
+	private void grow(K key, long now, List<RebalanceAction<K>> actions) {
+		ModelState state = models.get(key);
+		String reason = String.format("%d queued, %.0f ms average wait", state.waiting, state.averageWaitMillis);
+
+		state.growing.incrementAndGet();
+		try {
+			growExecutor.execute(() -> {
+				try {
+					state.capacity.grow();
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Failed to grow model " + key + ".", e);
+				} finally {
+					state.growing.decrementAndGet();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			state.growing.decrementAndGet();
+			logger.log(Level.WARNING, "Failed to schedule growing model " + key + ".", e);
+			return;
+		}
+
+		state.changed(now);
+		actions.add(new RebalanceAction<>(key, RebalanceAction.Type.GROW, reason));
+		logger.log(Level.INFO, "Growing model {0}, {1}.", new Object[] { key, reason });
+	}
+
+
+	/**
+	 *
+	 * @param minSize min count of instances of every model, default is 1.
+	 */
+	public synchronized void setMinSize(int minSize) {
+		if (minSize < 1) {
+			throw new IllegalArgumentException("Argument minSize must be at least 1. ");
+		}
+		this.minSize = minSize;
+	}
+
+
+	/**
+	 *
+	 * @param hotWaitMillis average wait which makes a model with queued requests hot, default is 500.
+	 */
+	public synchronized void setHotWaitMillis(long hotWaitMillis) {
+		this.hotWaitMillis = hotWaitMillis;
+	}
+
+
+	/**
+	 *
+	 * @param hotRounds consecutive hot rounds before a model grows, default is 3.
+	 */
+	public synchronized void setHotRounds(int hotRounds) {
+		this.hotRounds = Math.max(1, hotRounds);
+	}
+
+
+	/**
+	 *
+	 * @param coldRounds consecutive cold rounds before a model retires an instance, default is 12.
+	 */
+	public synchronized void setColdRounds(int coldRounds) {
+		this.coldRounds = Math.max(1, coldRounds);
+	}
+
+
+	/**
+	 *
+	 * @param cooldownMillis min time between two changes of a model, default is 60000.
+	 */
+	public synchronized void setCooldownMillis(long cooldownMillis) {
+		this.cooldownMillis = cooldownMillis;
+	}
+
+
+	/**
+	 *
+	 * @return instances loading per model.
+	 */
+	public synchronized Map<K, Integer> getGrowingCounts() {
+		Map<K, Integer> counts = new LinkedHashMap<>();
+		for (Map.Entry<K, ModelState> model : models.entrySet()) {
+			counts.put(model.getKey(), model.getValue().growing.get());
+		}
+		return Collections.unmodifiableMap(counts);
+	}
+
+
+	/**
+	 * Stop periodic rounds, pools are not closed, grows already started still finish.
+	 */
+	@Override
+	public synchronized void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		if (ownsGrowExecutor) {
+			((ExecutorService) growExecutor).shutdown();
+		}
+	}
+
+
+	private static class ModelState {
+
+		private final ModelCapacity capacity;
+
+		private final AtomicInteger growing = new AtomicInteger();
+
+		private long lastChangeMillis;
+
+		private long lastWaitNanos;
+
+		private long lastBorrowCount;
+
+		private int waiting;
+
+		private double averageWaitMillis;
+
+		private double pressure;
+
+		private int hotStreak;
+
+		private int coldStreak;
+
+		private ModelState(ModelCapacity capacity) {
+			this.capacity = capacity;
+			// A new rebalancer may change every model right away.
+			this.lastChangeMillis = Long.MIN_VALUE / 2;
+			this.lastWaitNanos = capacity.getTotalWaitNanos();
+			this.lastBorrowCount = capacity.getTotalBorrowCount();
+		}
+
+		private void sample(long hotWaitMillis) {
+			long waitNanos = capacity.getTotalWaitNanos();
+			long borrowCount = capacity.getTotalBorrowCount();
+			long borrows = borrowCount - lastBorrowCount;
+			averageWaitMillis = borrows > 0 ? (waitNanos - lastWaitNanos) / 1e6 / borrows : 0;
+			lastWaitNanos = waitNanos;
+			lastBorrowCount = borrowCount;
+
+			int size = capacity.getSize() + growing.get();
+			waiting = capacity.getWaitingCount();
+			pressure = (double) waiting / Math.max(1, size);
+
+			boolean hot = waiting > 0 && (averageWaitMillis >= hotWaitMillis || waiting >= size);
+			boolean cold = waiting == 0 && capacity.getIdleCount() > 0;
+			hotStreak = hot ? hotStreak + 1 : 0;
+			coldStreak = cold ? coldStreak + 1 : 0;
+		}
+
+		private boolean isCooledDown(long now, long cooldownMillis) {
+			return now - lastChangeMillis >= cooldownMillis;
+		}
+
+		private void changed(long now) {
+			lastChangeMillis = now;
+			hotStreak = 0;
+			coldStreak = 0;
+		}
+	}
+
+}
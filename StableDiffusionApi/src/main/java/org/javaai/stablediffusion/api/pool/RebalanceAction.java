@@ -0,0 +1,46 @@
+package org.javaai.stablediffusion.api.pool;
+
+/**
+ * One change made by a {@link PoolRebalancer} round.
+ */
+public class RebalanceAction<K> {
+
+	public static enum Type {
+		GROW, SHRINK
+	}
+
+	private final K model;
+
+	private final Type type;
+
+	private final String reason;
+
+
+	RebalanceAction(K model, Type type, String reason) {
+		this.model = model;
+		this.type = type;
+		this.reason = reason;
+	}
+
+
+	public K getModel() {
+		return model;
+	}
+
+
+	public Type getType() {
+		return type;
+	}
+
+
+	public String getReason() {
+		return reason;
+	}
+
+
+	@Override
+	public String toString() {
+		return "RebalanceAction [model=" + model + ", type=" + type + ", reason=" + reason + "]";
+	}
+
+}
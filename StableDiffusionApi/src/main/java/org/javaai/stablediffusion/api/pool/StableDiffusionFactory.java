@@ -0,0 +1,83 @@
+package org.javaai.stablediffusion.api.pool;
+
+import org.javaai.stablediffusion.api.StableDiffusion;
+import org.javaai.stablediffusion.api.StableDiffusionModel;
+import org.javaai.stablediffusion.api.cache.ModelConversionCache;
+
+/**
+ * Creates {@link StableDiffusion} instances with the model already loaded. 
+ */
+@FunctionalInterface
+public interface StableDiffusionFactory {
+	
+	
+	/**
+	 * 
+	 * @return NotNull, a new instance which already ran {@link StableDiffusion#loadFromFile(String, String, Integer, Integer)}. 
+	 */
+	public StableDiffusion create();
+	
+	
+	/**
+	 * Factory of default instances, see {@link StableDiffusion#loadFromFile(String, String, Integer, Integer)} for the arguments. 
+	 * 
+	 * @param model_path NotNull
+	 * @param vae_path Nullable
+	 * @param ggml_type Nullable
+	 * @param schedule Nullable
+	 * @return
+	 */
+	public static StableDiffusionFactory of(String model_path, String vae_path, Integer ggml_type, Integer schedule) {
+		return of(model_path, vae_path, ggml_type, schedule, null);
+	}
+	
+	
+	/**
+	 * Factory of contexts sharing the weights of model, see {@link StableDiffusionModel#newContext()}. 
+	 * 
+	 * @param model NotNull
+	 * @return
+	 */
+	public static StableDiffusionFactory of(StableDiffusionModel model) {
+		if (model == null) {
+			throw new IllegalArgumentException("Argument model can not be null. ");
+		}
+		return model::newContext;
+	}
+	
+	
+	/**
+	 * Factory of default instances which load converted weights from a conversion cache, 
+	 * see {@link ModelConversionCache#loadFromFile(StableDiffusion, String, String, Integer, Integer)}. 
+	 * 
+	 * @param model_path NotNull
+	 * @param vae_path Nullable
+	 * @param ggml_type Nullable
+	 * @param schedule Nullable
+	 * @param conversionCache Nullable, null loads the original weights. 
+	 * @return
+	 */
+	public static StableDiffusionFactory of(String model_path, String vae_path, Integer ggml_type, Integer schedule, 
+			ModelConversionCache conversionCache) {
+		return () -> {
+			StableDiffusion sd = new StableDiffusion();
+			try {
+				if (conversionCache == null) {
+					sd.loadFromFile(model_path, vae_path, ggml_type, schedule);
+				} else {
+					conversionCache.loadFromFile(sd, model_path, vae_path, ggml_type, schedule);
+				}
+			} catch (RuntimeException e) {
+				try {
+					sd.close();
+				} catch (Exception closeError) {
+					e.addSuppressed(closeError);
+				}
+				throw e;
+			}
+			return sd;
+		};
+	}
+	
+
+}
@@ -0,0 +1,557 @@
+package org.javaai.stablediffusion.api.pool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.javaai.stablediffusion.api.StableDiffusion;
+import org.javaai.stablediffusion.api.StableDiffusionCancelledException;
+import org.javaai.stablediffusion.api.StableDiffusionException;
+import org.javaai.stablediffusion.api.concurrent.StableDiffusionExecutors;
+
+/**
+ * Thread safe pool of {@link StableDiffusion} instances with the model already loaded. <br>
+ * <br>
+ * Instances are borrowed with a bounded wait and must be given back by {@link #release(StableDiffusion)},
+ * or by {@link #invalidate(StableDiffusion)} if the instance is broken. Invalidated instances, and instances
+ * failing the health check on borrow, are closed and replaced in background. <br>
+ *
+ * <pre>
+ * try (StableDiffusionPool pool = new StableDiffusionPool(
+ * 		StableDiffusionFactory.of(modelPath, null, null, null), 4)) {
+ * 	StableResult&lt;Txt2ImgParams, BufferedImage&gt; imgs = pool.execute(
+ * 			sd -&gt; sd.txt2img("a lovely cat"), 30, TimeUnit.SECONDS);
+ * }
+ * </pre>
+ */
+public class StableDiffusionPool implements ModelCapacity, AutoCloseable {
+
+	private final static Logger logger = Logger.getLogger(StableDiffusionPool.class.getName());
+
+	private final StableDiffusionFactory factory;
+
+	private final LinkedBlockingDeque<Entry> idle = new LinkedBlockingDeque<>();
+
+	private final Map<StableDiffusion, Entry> entries = new ConcurrentHashMap<>();
+
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	private final AtomicInteger pendingReplacements = new AtomicInteger();
+
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+
+	private final AtomicLong totalBorrowCount = new AtomicLong();
+
+	private final ScheduledExecutorService replacer;
+
+	/**
+	 * Runs async tasks, one thread per instance, since every task blocks on one instance.
+	 */
+	private final ThreadPoolExecutor executor;
+
+	private volatile Predicate<StableDiffusion> healthCheck = sd -> !sd.isClosed() && sd.isLoaded();
+
+	private volatile long replaceRetryDelayMillis = 10_000L;
+
+	/**
+	 * Guards closed against instances going back to idle, so close never misses one.
+	 */
+	private final Object closeLock = new Object();
+
+	private volatile boolean closed = false;
+
+
+	/**
+	 * Create and load all instances before returning.
+	 *
+	 * @param factory NotNull
+	 * @param size    count of instances, at least 1.
+	 */
+	public StableDiffusionPool(StableDiffusionFactory factory, int size) {
+
+		if (factory == null) {
+			throw new IllegalArgumentException("Argument factory can not be null. ");
+		}
+
+		if (size < 1) {
+			throw new IllegalArgumentException("Argument size must be at least 1. ");
+		}
+
+		this.factory = factory;
+		this.replacer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "sd-pool-replacer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.executor = StableDiffusionExecutors.newInferenceExecutor("sd-pool", size);
+
+		try {
+			for (int i = 0; i < size; i++) {
+				idle.offerLast(newEntry());
+			}
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+
+	private Entry newEntry() {
+		StableDiffusion sd = factory.create();
+		if (sd == null) {
+			throw new StableDiffusionException("StableDiffusionFactory created a null instance. ");
+		}
+
+		Entry entry = new Entry(nextId.incrementAndGet(), sd);
+		entries.put(sd, entry);
+
+		logger.log(Level.FINE, "Created pooled StableDiffusion instance #{0}.", entry.id);
+		return entry;
+	}
+
+
+	/**
+	 *
+	 * @param timeout max time to wait for an idle instance.
+	 * @param unit
+	 * @return NotNull, a healthy instance, give it back by {@link #release(StableDiffusion)}.
+	 * @throws InterruptedException
+	 * @throws StableDiffusionException if no instance was idle before timeout, or pool closed.
+	 */
+	public StableDiffusion borrow(long timeout, TimeUnit unit) throws InterruptedException {
+
+		long start = System.nanoTime();
+		long deadline = start + unit.toNanos(timeout);
+
+		waiting.incrementAndGet();
+		try {
+			while (true) {
+				checkOpen();
+
+				Entry entry = idle.pollFirst(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				if (entry == null) {
+					throw new StableDiffusionException("Timeout waiting for an idle StableDiffusion instance, "
+							+ "size: [" + entries.size() + "]"
+							+ "waiting: [" + waiting.get() + "]");
+				}
+
+				if (!isHealthy(entry)) {
+					logger.log(Level.WARNING, "Pooled StableDiffusion instance #{0} failed health check, replacing it.",
+							entry.id);
+					discard(entry);
+					continue;
+				}
+
+				entry.onBorrow();
+				totalWaitNanos.addAndGet(System.nanoTime() - start);
+				totalBorrowCount.incrementAndGet();
+				return entry.sd;
+			}
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+
+
+	private boolean isHealthy(Entry entry) {
+		try {
+			return healthCheck.test(entry.sd);
+		} catch (RuntimeException e) {
+			logger.log(Level.FINE, "Health check of pooled instance #" + entry.id + " failed.", e);
+			return false;
+		}
+	}
+
+
+	/**
+	 * Give back a healthy instance.
+	 *
+	 * @param sd NotNull, instance borrowed from this pool.
+	 */
+	public void release(StableDiffusion sd) {
+
+		Entry entry = getEntry(sd);
+		entry.onReturn(false);
+
+		// LIFO, keep the recently used instances hot.
+		if (!offerIdle(entry, true)) {
+			destroy(entry);
+		}
+	}
+
+
+	/**
+	 *
+	 * @return false if the pool is closed, the entry is not queued.
+	 */
+	private boolean offerIdle(Entry entry, boolean first) {
+		synchronized (closeLock) {
+			if (closed) {
+				return false;
+			}
+			if (first) {
+				idle.offerFirst(entry);
+			} else {
+				idle.offerLast(entry);
+			}
+			return true;
+		}
+	}
+
+
+	/**
+	 * Give back a broken instance, it is closed and replaced by a new one in background.
+	 *
+	 * @param sd NotNull, instance borrowed from this pool.
+	 */
+	public void invalidate(StableDiffusion sd) {
+
+		Entry entry = getEntry(sd);
+		entry.onReturn(true);
+
+		logger.log(Level.WARNING, "Pooled StableDiffusion instance #{0} invalidated, replacing it.", entry.id);
+		discard(entry);
+	}
+
+
+	private Entry getEntry(StableDiffusion sd) {
+		Entry entry = sd == null ? null : entries.get(sd);
+		if (entry == null) {
+			throw new IllegalArgumentException("StableDiffusion instance does not belong to this pool. ");
+		}
+		return entry;
+	}
+
+
+	/**
+	 * Borrow an instance, run the task, give it back. If the task throws
+	 * {@link StableDiffusionException}, other than {@link StableDiffusionCancelledException},
+	 * the instance is invalidated and replaced.
+	 *
+	 * @param task    NotNull
+	 * @param timeout max time to wait for an idle instance.
+	 * @param unit
+	 * @return result of task.
+	 * @throws InterruptedException
+	 */
+	public <T> T execute(Function<StableDiffusion, T> task, long timeout, TimeUnit unit) throws InterruptedException {
+
+		StableDiffusion sd = borrow(timeout, unit);
+
+		T result;
+		try {
+			result = task.apply(sd);
+		} catch (StableDiffusionCancelledException e) {
+			release(sd);
+			throw e;
+		} catch (StableDiffusionException e) {
+			invalidate(sd);
+			throw e;
+		} catch (RuntimeException | Error e) {
+			release(sd);
+			throw e;
+		}
+
+		release(sd);
+		return result;
+	}
+
+
+	/**
+	 * Asynchronous version of {@link #execute(Function, long, TimeUnit)}, runs on {@link #getExecutor()}. 
+	 *
+	 * @param task    NotNull
+	 * @param timeout max time to wait for an idle instance.
+	 * @param unit
+	 * @return future of task result.
+	 */
+	public <T> CompletableFuture<T> executeAsync(Function<StableDiffusion, T> task, long timeout, TimeUnit unit) {
+		return StableDiffusionExecutors.supplyAsync(() -> {
+			try {
+				return execute(task, timeout, unit);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StableDiffusionException("Interrupted waiting for an idle StableDiffusion instance. ", e);
+			}
+		}, executor);
+	}
+
+
+	/**
+	 *
+	 * @return executor of this pool, with as many threads as instances, for tasks which borrow one instance each.
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+
+	private void discard(Entry entry) {
+		destroy(entry);
+		scheduleReplacement(0L);
+	}
+
+
+	private void destroy(Entry entry) {
+		entries.remove(entry.sd);
+		try {
+			entry.sd.close();
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Failed to close pooled StableDiffusion instance #" + entry.id + ".", e);
+		}
+	}
+
+
+	private void scheduleReplacement(long delayMillis) {
+		if (closed) {
+			return;
+		}
+
+		pendingReplacements.incrementAndGet();
+		try {
+			replacer.schedule(this::replace, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			pendingReplacements.decrementAndGet();
+		}
+	}
+
+
+	private void replace() {
+		pendingReplacements.decrementAndGet();
+		if (closed) {
+			return;
+		}
+
+		Entry entry;
+		try {
+			entry = newEntry();
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Failed to create a replacement StableDiffusion instance, retry in "
+					+ replaceRetryDelayMillis + "ms.", e);
+			scheduleReplacement(replaceRetryDelayMillis);
+			return;
+		}
+
+		if (!offerIdle(entry, false)) {
+			destroy(entry);
+		}
+	}
+
+
+	/**
+	 * Create and load one more instance, blocks until it is loaded.
+	 *
+	 * @throws StableDiffusionException if the instance can not be created, or pool closed.
+	 */
+	@Override
+	public void grow() {
+		checkOpen();
+
+		Entry entry = newEntry();
+		if (!offerIdle(entry, true)) {
+			destroy(entry);
+			checkOpen();
+		}
+
+		StableDiffusionExecutors.resize(executor, entries.size());
+		logger.log(Level.INFO, "Pool grew to {0} instances.", entries.size());
+	}
+
+
+	/**
+	 * Close the least recently used idle instance, the pool keeps at least one instance.
+	 *
+	 * @return false if no instance was idle.
+	 */
+	@Override
+	public boolean shrink() {
+		if (entries.size() <= 1) {
+			return false;
+		}
+
+		Entry entry = idle.pollLast();
+		if (entry == null) {
+			return false;
+		}
+
+		destroy(entry);
+		StableDiffusionExecutors.resize(executor, entries.size());
+		logger.log(Level.INFO, "Pool shrank to {0} instances.", entries.size());
+		return true;
+	}
+
+
+	private void checkOpen() {
+		if (closed) {
+			throw new StableDiffusionException("StableDiffusionPool already closed. ");
+		}
+	}
+
+
+	/**
+	 *
+	 * @param healthCheck NotNull, tested on every borrow, default checks the instance is open and loaded.
+	 */
+	public void setHealthCheck(Predicate<StableDiffusion> healthCheck) {
+		if (healthCheck == null) {
+			throw new IllegalArgumentException("Argument healthCheck can not be null. ");
+		}
+		this.healthCheck = healthCheck;
+	}
+
+
+	/**
+	 *
+	 * @param replaceRetryDelayMillis delay before retrying a failed replacement, default is 10000.
+	 */
+	public void setReplaceRetryDelayMillis(long replaceRetryDelayMillis) {
+		this.replaceRetryDelayMillis = replaceRetryDelayMillis;
+	}
+
+
+	/**
+	 *
+	 * @return count of live instances, idle or borrowed.
+	 */
+	@Override
+	public int getSize() {
+		return entries.size();
+	}
+
+
+	@Override
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+
+	/**
+	 *
+	 * @return count of threads blocked in {@link #borrow(long, TimeUnit)}.
+	 */
+	@Override
+	public int getWaitingCount() {
+		return waiting.get();
+	}
+
+
+	/**
+	 *
+	 * @return time spent in successful {@link #borrow(long, TimeUnit)} calls since the pool was created.
+	 */
+	@Override
+	public long getTotalWaitNanos() {
+		return totalWaitNanos.get();
+	}
+
+
+	/**
+	 *
+	 * @return count of successful {@link #borrow(long, TimeUnit)} calls since the pool was created.
+	 */
+	@Override
+	public long getTotalBorrowCount() {
+		return totalBorrowCount.get();
+	}
+
+
+	public int getPendingReplacements() {
+		return pendingReplacements.get();
+	}
+
+
+	/**
+	 *
+	 * @return utilization of every live instance.
+	 */
+	public List<InstanceStats> getStats() {
+		List<InstanceStats> stats = new ArrayList<>(entries.size());
+		for (Entry entry : entries.values()) {
+			stats.add(entry.snapshot());
+		}
+		stats.sort((a, b) -> Integer.compare(a.getId(), b.getId()));
+		return stats;
+	}
+
+
+	/**
+	 * Close idle instances now, borrowed instances are closed when given back.
+	 */
+	@Override
+	public void close() {
+		List<Entry> toClose = new ArrayList<>();
+		synchronized (closeLock) {
+			closed = true;
+			idle.drainTo(toClose);
+		}
+		replacer.shutdownNow();
+		executor.shutdown();
+
+		for (Entry entry : toClose) {
+			destroy(entry);
+		}
+	}
+
+
+	private static class Entry {
+
+		private final int id;
+		private final StableDiffusion sd;
+		private final long createdAtMillis = System.currentTimeMillis();
+		private final long createdAtNanos = System.nanoTime();
+
+		private long borrowCount;
+		private long failureCount;
+		private long busyNanos;
+		private long borrowedAtNanos = -1;
+
+		private Entry(int id, StableDiffusion sd) {
+			this.id = id;
+			this.sd = sd;
+		}
+
+		private synchronized void onBorrow() {
+			borrowCount++;
+			borrowedAtNanos = System.nanoTime();
+		}
+
+		private synchronized void onReturn(boolean failed) {
+			if (borrowedAtNanos < 0) {
+				throw new IllegalStateException("Pooled StableDiffusion instance #" + id + " is not borrowed. ");
+			}
+			busyNanos += System.nanoTime() - borrowedAtNanos;
+			borrowedAtNanos = -1;
+			if (failed) {
+				failureCount++;
+			}
+		}
+
+		private synchronized InstanceStats snapshot() {
+			long now = System.nanoTime();
+			long busy = busyNanos;
+			if (borrowedAtNanos >= 0) {
+				busy += now - borrowedAtNanos;
+			}
+			return new InstanceStats(id, createdAtMillis, borrowCount, failureCount, busy, now - createdAtNanos,
+					borrowedAtNanos >= 0);
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+package org.javaai.stablediffusion.api.pool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.javaai.stablediffusion.api.SDRequestOptions;
+import org.javaai.stablediffusion.api.StableDiffusion;
+import org.javaai.stablediffusion.api.StableDiffusionCancelledException;
+import org.javaai.stablediffusion.api.concurrent.TileScheduler;
+import org.javaai.stablediffusion.api.result.Img2ImgParams;
+import org.javaai.stablediffusion.api.utils.TileBlender;
+
+/**
+ * img2img of canvases larger than the model can take in one pass. <br>
+ * <br>
+ * The canvas is split into overlapping tiles of tileSize pixels, see {@link TileBlender}, every tile runs as one
+ * img2img on an instance borrowed from the pool, up to parallelism tiles at a time, and every finished tile is
+ * blended into the output right away, seams are feathered across overlap pixels. Every tile uses the same prompt
+ * and seed. <br>
+ * Latency drops roughly with the count of tiles running at once, so parallelism is best set to the pool size.
+ * Thread safe.
+ *
+ * <pre>
+ * TiledImg2Img tiled = new TiledImg2Img(pool, 512, 64, pool.getSize());
+ * byte[] refined = tiled.img2img(canvas, 4096, 4096, params, null);
+ * </pre>
+ */
+public class TiledImg2Img {
+
+	private final StableDiffusionPool pool;
+
+	private final int tileSize;
+
+	private final int overlap;
+
+	private final int parallelism;
+
+	private volatile ExecutorService executor;
+
+	private volatile long borrowTimeoutMillis = TimeUnit.MINUTES.toMillis(10);
+
+
+	/**
+	 *
+	 * @param pool        NotNull, instances with the model loaded.
+	 * @param tileSize    width and height of a tile, multiple of 8.
+	 * @param overlap     width of the blended seams, at most tileSize / 4.
+	 * @param parallelism max count of tiles running at once.
+	 */
+	public TiledImg2Img(StableDiffusionPool pool, int tileSize, int overlap, int parallelism) {
+
+		if (pool == null) {
+			throw new IllegalArgumentException("Argument pool can not be null. ");
+		}
+
+		if (tileSize < 8 || tileSize % 8 != 0) {
+			throw new IllegalArgumentException("Argument tileSize must be a multiple of 8: " + tileSize);
+		}
+
+		if (overlap < 0 || overlap * 4 > tileSize) {
+			throw new IllegalArgumentException("Argument overlap must be between 0 and tileSize / 4, tileSize: "
+					+ tileSize + ", overlap: " + overlap);
+		}
+
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Argument parallelism must be at least 1. ");
+		}
+
+		this.pool = pool;
+		this.tileSize = tileSize;
+		this.overlap = overlap;
+		this.parallelism = parallelism;
+	}
+
+
+	/**
+	 *
+	 * @param executor Nullable, runs the tiles besides the calling thread, default is
+	 * {@link StableDiffusionPool#getExecutor()} of the pool.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+
+	/**
+	 *
+	 * @param timeout max time a tile waits for an idle instance, default is 10 minutes.
+	 * @param unit
+	 */
+	public void setBorrowTimeout(long timeout, TimeUnit unit) {
+		this.borrowTimeoutMillis = unit.toMillis(timeout);
+	}
+
+
+	/**
+	 *
+	 * @param img     NotNull, RGB color mode canvas, width * height * 3 bytes.
+	 * @param width   multiple of 8.
+	 * @param height  multiple of 8.
+	 * @param params  NotNull, prompt and sampling of every tile, RGBImage, width and height are ignored.
+	 * @param options Nullable, see {@link #img2img(byte[], int, int, Img2ImgParams, ByteBuffer, SDRequestOptions)}.
+	 * @return RGB color mode canvas, width * height * 3 bytes.
+	 */
+	public byte[] img2img(byte[] img, int width, int height, Img2ImgParams params, SDRequestOptions options) {
+		TileBlender blender = newBlender(img, width, height);
+		byte[] output = new byte[blender.getOutputCapacity()];
+		run(blender, img, params, ByteBuffer.wrap(output), options);
+		return output;
+	}
+
+
+	/**
+	 * img2img into a preallocated buffer, tiles are written as they finish.
+	 *
+	 * @param img     NotNull, RGB color mode canvas, width * height * 3 bytes.
+	 * @param width   multiple of 8.
+	 * @param height  multiple of 8.
+	 * @param params  NotNull, prompt and sampling of every tile, RGBImage, width and height are ignored.
+	 * @param output  NotNull, width * height * 3 bytes remaining from its position, position and limit are not
+	 *                changed.
+	 * @param options Nullable, the cancellation token is passed to every tile, the progress callback is called
+	 *                after every tile, with the count of finished tiles as step.
+	 * @return NotNull, slice of output holding the canvas.
+	 * @throws StableDiffusionCancelledException if cancelled by options.
+	 */
+	public ByteBuffer img2img(byte[] img, int width, int height, Img2ImgParams params, ByteBuffer output,
+			SDRequestOptions options) {
+
+		TileBlender blender = newBlender(img, width, height);
+		int capacity = blender.getOutputCapacity();
+
+		if (output == null || output.isReadOnly()) {
+			throw new IllegalArgumentException("Argument output can not be null or read only. ");
+		}
+
+		if (output.remaining() < capacity) {
+			throw new IllegalArgumentException("Argument output too small, remaining: " + output.remaining()
+					+ ", required: " + capacity);
+		}
+
+		ByteBuffer target = output.duplicate();
+		target.limit(target.position() + capacity);
+		target = target.slice();
+		run(blender, img, params, target, options);
+		return target;
+	}
+
+
+	private TileBlender newBlender(byte[] img, int width, int height) {
+
+		if (width < 8 || height < 8 || width % 8 != 0 || height % 8 != 0) {
+			throw new IllegalArgumentException("Canvas size must be multiples of 8: " + width + "x" + height);
+		}
+
+		if (img == null || img.length < width * height * 3) {
+			throw new IllegalArgumentException("Argument img can not be null or shorter than width * height * 3. ");
+		}
+
+		return new TileBlender(width, height, tileSize, overlap, 1);
+	}
+
+
+	private void run(TileBlender blender, byte[] img, Img2ImgParams params, ByteBuffer output,
+			SDRequestOptions options) {
+
+		if (params == null) {
+			throw new IllegalArgumentException("Argument params can not be null. ");
+		}
+
+		Img2ImgParams p = StableDiffusion.withDefaults(params);
+		SDRequestOptions tileOptions = new SDRequestOptions(null, options == null ? null : options.getCancellationToken());
+		long timeout = borrowTimeoutMillis;
+
+		TileScheduler.TileProcessor processor = (tileRGB, width, height) -> {
+			try {
+				return pool.execute(sd -> sd.img2img(tileRGB, p.getPrompt(), p.getNegative_prompt(),
+						p.getCfg_scale(), width, height, p.getSample_method(), p.getSample_steps(),
+						p.getStrength(), p.getSeed(), tileOptions).getResultImages().get(0),
+						timeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StableDiffusionCancelledException("Interrupted while waiting for an instance. ");
+			}
+		};
+
+		List<TileScheduler.TileProcessor> processors = new ArrayList<>(parallelism);
+		for (int i = 0; i < parallelism; i ++) {
+			processors.add(processor);
+		}
+
+		ExecutorService executor = this.executor;
+		if (executor == null) {
+			executor = pool.getExecutor();
+		}
+
+		TileScheduler.run(blender, img, output, processors, executor, options);
+	}
+
+}
@@ -0,0 +1,96 @@
+package org.javaai.stablediffusion.api.registry;
+
+import java.util.Objects;
+
+import org.apache.commons.lang3.StringUtils;
+import org.javaai.stablediffusion.api.StableDiffusion;
+import org.javaai.stablediffusion.api.enums.GGML_type;
+import org.javaai.stablediffusion.api.enums.Schedule;
+
+/**
+ * Arguments of {@link StableDiffusion#loadFromFile(String, String, Integer, Integer)} identifying a loaded model,
+ * null arguments take their default value.
+ */
+public class ModelKey {
+
+	private final String model_path;
+
+	private final String vae_path;
+
+	private final int ggml_type;
+
+	private final int schedule;
+
+
+	/**
+	 *
+	 * @param model_path NotNull
+	 * @param vae_path   Nullable, default is empty string.
+	 * @param ggml_type  Nullable, default is {@link GGML_type#GGML_TYPE_COUNT}
+	 * @param schedule   Nullable, default is {@link Schedule#DEFAULT}
+	 */
+	public ModelKey(String model_path, String vae_path, Integer ggml_type, Integer schedule) {
+
+		if (StringUtils.isBlank(model_path)) {
+			throw new IllegalArgumentException("Argument model_path can not be empty/blank. ");
+		}
+
+		this.model_path = model_path;
+		this.vae_path = vae_path == null ? "" : vae_path;
+		this.ggml_type = ggml_type == null ? GGML_type.GGML_TYPE_COUNT : ggml_type;
+		this.schedule = schedule == null ? Schedule.DEFAULT : schedule;
+	}
+
+
+	public static ModelKey of(String model_path) {
+		return new ModelKey(model_path, null, null, null);
+	}
+
+
+	public String getModel_path() {
+		return model_path;
+	}
+
+
+	public String getVae_path() {
+		return vae_path;
+	}
+
+
+	public int getGgml_type() {
+		return ggml_type;
+	}
+
+
+	public int getSchedule() {
+		return schedule;
+	}
+
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(model_path, vae_path, ggml_type, schedule);
+	}
+
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ModelKey)) {
+			return false;
+		}
+		ModelKey other = (ModelKey) obj;
+		return model_path.equals(other.model_path) && vae_path.equals(other.vae_path)
+				&& ggml_type == other.ggml_type && schedule == other.schedule;
+	}
+
+
+	@Override
+	public String toString() {
+		return "ModelKey [model_path=" + model_path + ", vae_path=" + vae_path + ", ggml_type=" + ggml_type
+				+ ", schedule=" + schedule + "]";
+	}
+
+}
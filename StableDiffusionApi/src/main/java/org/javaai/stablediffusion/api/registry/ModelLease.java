@@ -0,0 +1,53 @@
+package org.javaai.stablediffusion.api.registry;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.javaai.stablediffusion.api.StableDiffusion;
+import org.javaai.stablediffusion.api.StableDiffusionException;
+
+/**
+ * A loaded model borrowed from a {@link ModelRegistry}, the model is not evicted before the lease is closed.
+ */
+public class ModelLease implements AutoCloseable {
+
+	private final ModelRegistry registry;
+
+	private final ModelRegistry.Entry entry;
+
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+
+	ModelLease(ModelRegistry registry, ModelRegistry.Entry entry) {
+		this.registry = registry;
+		this.entry = entry;
+	}
+
+
+	/**
+	 *
+	 * @return NotNull, instance with the model loaded, do not close it.
+	 */
+	public StableDiffusion get() {
+		if (closed.get()) {
+			throw new StableDiffusionException("ModelLease already closed. ");
+		}
+		return entry.sd;
+	}
+
+
+	public ModelKey getKey() {
+		return entry.key;
+	}
+
+
+	/**
+	 * Give the model back to the registry, spurious calls are safe.
+	 */
+	@Override
+	public void close() {
+		if (closed.compareAndSet(false, true)) {
+			registry.release(entry);
+		}
+	}
+
+}
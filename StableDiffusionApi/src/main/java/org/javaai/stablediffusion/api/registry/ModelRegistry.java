@@ -0,0 +1,476 @@
+package org.javaai.stablediffusion.api.registry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.javaai.stablediffusion.api.StableDiffusion;
+import org.javaai.stablediffusion.api.StableDiffusionException;
+import org.javaai.stablediffusion.api.concurrent.SingleFlight;
+import org.javaai.stablediffusion.api.concurrent.StableDiffusionExecutors;
+import org.javaai.stablediffusion.api.pool.StableDiffusionFactory;
+
+/**
+ * Loaded models keyed by {@link ModelKey}, within a memory budget. <br>
+ * <br>
+ * Missing models are loaded in the background, concurrent requests of a model share one load. Before a load,
+ * least recently used models which are not leased are closed until the estimated size of the new model fits in
+ * the budget, so memory does not peak over the budget by a whole model. Once loaded, every model is measured by
+ * {@link StableDiffusion#getMemoryUsage()}. <br>
+ *
+ * <pre>
+ * ModelRegistry registry = new ModelRegistry(24L &lt;&lt; 30);
+ * CompletableFuture&lt;StableResult&lt;Txt2ImgParams, byte[]&gt;&gt; result = registry.execute(
+ * 		ModelKey.of("/opt/models/v1-5-pruned-emaonly.safetensors"), sd -&gt; sd.txt2PixelsImg(params, null));
+ * </pre>
+ *
+ * Thread safe.
+ */
+public class ModelRegistry implements AutoCloseable {
+
+	private final static Logger logger = Logger.getLogger(ModelRegistry.class.getName());
+
+	private final long memoryBudgetBytes;
+
+	private final Function<ModelKey, StableDiffusion> loader;
+
+	private final ToLongFunction<ModelKey> estimator;
+
+	private final ExecutorService loadExecutor;
+
+	private final boolean ownsLoadExecutor;
+
+	/**
+	 * Runs the tasks of {@link #execute(ModelKey, Function)}, tasks of one model serialize on its instance.
+	 */
+	private final ExecutorService taskExecutor = StableDiffusionExecutors.newInferenceExecutor("sd-registry",
+			Runtime.getRuntime().availableProcessors());
+
+	private final SingleFlight<ModelKey, Entry> loads = new SingleFlight<>();
+
+	/**
+	 * Access ordered, eldest is least recently used.
+	 */
+	private final LinkedHashMap<ModelKey, Entry> loaded = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long usedBytes = 0;
+
+	/**
+	 * Estimated bytes of the models being loaded, guarded by loaded.
+	 */
+	private long reservedBytes = 0;
+
+	private boolean closed = false;
+
+
+	/**
+	 * Models are loaded with {@link StableDiffusionFactory#of(String, String, Integer, Integer)}, one at a time.
+	 *
+	 * @param memoryBudgetBytes budget of all loaded models.
+	 */
+	public ModelRegistry(long memoryBudgetBytes) {
+		this(memoryBudgetBytes, key -> StableDiffusionFactory.of(key.getModel_path(), key.getVae_path(),
+				key.getGgml_type(), key.getSchedule()).create(), null);
+	}
+
+
+	/**
+	 *
+	 * @param memoryBudgetBytes budget of all loaded models.
+	 * @param loader            NotNull, creates an instance with the model of key loaded.
+	 * @param loadExecutor      Nullable, runs the loader, default is a single daemon thread owned by this registry.
+	 */
+	public ModelRegistry(long memoryBudgetBytes, Function<ModelKey, StableDiffusion> loader,
+			ExecutorService loadExecutor) {
+		this(memoryBudgetBytes, loader, ModelRegistry::estimateFileBytes, loadExecutor);
+	}
+
+
+	/**
+	 *
+	 * @param memoryBudgetBytes budget of all loaded models.
+	 * @param loader            NotNull, creates an instance with the model of key loaded.
+	 * @param estimator         NotNull, bytes a model of key will use once loaded, to make room before loading it.
+	 * @param loadExecutor      Nullable, runs the loader, default is a single daemon thread owned by this registry.
+	 */
+	public ModelRegistry(long memoryBudgetBytes, Function<ModelKey, StableDiffusion> loader,
+			ToLongFunction<ModelKey> estimator, ExecutorService loadExecutor) {
+
+		if (loader == null) {
+			throw new IllegalArgumentException("Argument loader can not be null. ");
+		}
+
+		if (estimator == null) {
+			throw new IllegalArgumentException("Argument estimator can not be null. ");
+		}
+
+		if (memoryBudgetBytes < 0) {
+			throw new IllegalArgumentException("Argument memoryBudgetBytes can not be negative. ");
+		}
+
+		this.memoryBudgetBytes = memoryBudgetBytes;
+		this.loader = loader;
+		this.estimator = estimator;
+		this.ownsLoadExecutor = loadExecutor == null;
+		this.loadExecutor = loadExecutor != null ? loadExecutor : Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "sd-model-loader");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+
+	/**
+	 * Lease the model of key, load it in the background if it is not loaded.
+	 *
+	 * @param key NotNull
+	 * @return future of the lease, close the lease when done.
+	 */
+	public CompletableFuture<ModelLease> acquire(ModelKey key) {
+
+		if (key == null) {
+			throw new IllegalArgumentException("Argument key can not be null. ");
+		}
+
+		synchronized (loaded) {
+			checkOpen();
+			Entry entry = loaded.get(key);
+			if (entry != null) {
+				entry.leases ++;
+				return CompletableFuture.completedFuture(new ModelLease(this, entry));
+			}
+		}
+
+		CompletableFuture<ModelLease> result = new CompletableFuture<>();
+		loads.submit(key, token -> StableDiffusionExecutors.supplyAsync(() -> load(key), loadExecutor))
+				.whenComplete((entry, error) -> {
+					if (error != null) {
+						result.completeExceptionally(error);
+						return;
+					}
+
+					ModelLease lease = tryLease(entry);
+					if (lease == null) {
+						// Evicted by another load before this waiter got it.
+						forward(acquire(key), result);
+						return;
+					}
+
+					if (!result.complete(lease)) {
+						lease.close();
+					}
+				});
+		return result;
+	}
+
+
+	private static void forward(CompletableFuture<ModelLease> from, CompletableFuture<ModelLease> to) {
+		from.whenComplete((lease, error) -> {
+			if (error != null) {
+				to.completeExceptionally(error);
+			} else if (!to.complete(lease)) {
+				lease.close();
+			}
+		});
+	}
+
+
+	private ModelLease tryLease(Entry entry) {
+		synchronized (loaded) {
+			if (entry.evicted) {
+				return null;
+			}
+			loaded.get(entry.key);
+			entry.leases ++;
+			return new ModelLease(this, entry);
+		}
+	}
+
+
+	/**
+	 * Run task with the model of key, on an executor of this registry, up to the count of available processors
+	 * tasks at once.
+	 *
+	 * @param key  NotNull
+	 * @param task NotNull
+	 * @return future of task result.
+	 */
+	public <T> CompletableFuture<T> execute(ModelKey key, Function<StableDiffusion, T> task) {
+		return acquire(key).thenCompose(lease -> StableDiffusionExecutors
+				.supplyAsync(() -> task.apply(lease.get()), taskExecutor)
+				.whenComplete((result, error) -> lease.close()));
+	}
+
+
+	/**
+	 * Load the model of key in the background, if it is not loaded.
+	 *
+	 * @param key NotNull
+	 * @return future completed once the model is loaded.
+	 */
+	public CompletableFuture<Void> preload(ModelKey key) {
+		return acquire(key).thenAccept(ModelLease::close);
+	}
+
+
+	/**
+	 * Default estimator: the size of the weight files of key, 0 for files which can not be read.
+	 *
+	 * @param key NotNull
+	 * @return estimated bytes of the model once loaded.
+	 */
+	public static long estimateFileBytes(ModelKey key) {
+		long bytes = new File(key.getModel_path()).length();
+		if (key.getVae_path() != null) {
+			bytes += new File(key.getVae_path()).length();
+		}
+		return bytes;
+	}
+
+
+	private Entry load(ModelKey key) {
+
+		long estimate = Math.max(0, estimator.applyAsLong(key));
+		List<Entry> evicted;
+		synchronized (loaded) {
+			checkOpen();
+			Entry existing = loaded.get(key);
+			if (existing != null) {
+				return existing;
+			}
+			reservedBytes += estimate;
+			evicted = evictOverBudget(null);
+		}
+		// Make room before loading, not after.
+		closeAll(evicted);
+
+		long start = System.nanoTime();
+		StableDiffusion sd;
+		try {
+			sd = loader.apply(key);
+		} catch (RuntimeException | Error e) {
+			unreserve(estimate);
+			throw e;
+		}
+		if (sd == null) {
+			unreserve(estimate);
+			throw new StableDiffusionException("Loader returned null for " + key + ". ");
+		}
+
+		Entry entry = new Entry(key, sd, sd.getMemoryUsage());
+		synchronized (loaded) {
+			reservedBytes -= estimate;
+			if (closed) {
+				closeQuietly(entry);
+				throw new StableDiffusionException("ModelRegistry already closed. ");
+			}
+			loaded.put(key, entry);
+			usedBytes += entry.bytes;
+			evicted = evictOverBudget(entry);
+		}
+
+		logger.log(Level.INFO, "Loaded {0} in {1} ms, {2} bytes, registry uses {3} of {4} bytes.",
+				new Object[] { key, (System.nanoTime() - start) / 1_000_000, entry.bytes, getUsedBytes(),
+						memoryBudgetBytes });
+
+		closeAll(evicted);
+		return entry;
+	}
+
+
+	private void unreserve(long estimate) {
+		synchronized (loaded) {
+			reservedBytes -= estimate;
+		}
+	}
+
+
+	/**
+	 * Guarded by loaded. Bytes reserved by loads in progress count against the budget.
+	 *
+	 * @param keep Nullable, entry not to evict.
+	 * @return evicted entries which are not leased, to close outside the lock.
+	 */
+	private List<Entry> evictOverBudget(Entry keep) {
+		List<Entry> toClose = new ArrayList<>();
+		Iterator<Entry> eldest = loaded.values().iterator();
+		while (usedBytes + reservedBytes > memoryBudgetBytes && eldest.hasNext()) {
+			Entry entry = eldest.next();
+			if (entry == keep || entry.leases > 0) {
+				continue;
+			}
+			eldest.remove();
+			usedBytes -= entry.bytes;
+			entry.evicted = true;
+			toClose.add(entry);
+			logger.log(Level.INFO, "Evicting least recently used {0}.", entry.key);
+		}
+
+		if (usedBytes + reservedBytes > memoryBudgetBytes) {
+			logger.log(Level.FINE, "Registry uses {0} bytes and reserves {1} bytes over budget {2}, "
+					+ "remaining models are in use.", new Object[] { usedBytes, reservedBytes, memoryBudgetBytes });
+		}
+		return toClose;
+	}
+
+
+	void release(Entry entry) {
+		List<Entry> toClose;
+		synchronized (loaded) {
+			entry.leases --;
+			if (entry.evicted) {
+				toClose = new ArrayList<>();
+				if (entry.leases == 0) {
+					toClose.add(entry);
+				}
+			} else {
+				toClose = evictOverBudget(null);
+			}
+		}
+		closeAll(toClose);
+	}
+
+
+	/**
+	 * Unload the model of key, once its leases are closed.
+	 *
+	 * @param key NotNull
+	 * @return true if the model was loaded.
+	 */
+	public boolean evict(ModelKey key) {
+		Entry entry;
+		synchronized (loaded) {
+			entry = loaded.remove(key);
+			if (entry == null) {
+				return false;
+			}
+			usedBytes -= entry.bytes;
+			entry.evicted = true;
+			if (entry.leases > 0) {
+				return true;
+			}
+		}
+		closeQuietly(entry);
+		return true;
+	}
+
+
+	private static void closeAll(List<Entry> entries) {
+		for (Entry entry : entries) {
+			closeQuietly(entry);
+		}
+	}
+
+
+	private static void closeQuietly(Entry entry) {
+		try {
+			entry.sd.close();
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Failed to close " + entry.key + ".", e);
+		}
+	}
+
+
+	private void checkOpen() {
+		if (closed) {
+			throw new StableDiffusionException("ModelRegistry already closed. ");
+		}
+	}
+
+
+	public long getMemoryBudgetBytes() {
+		return memoryBudgetBytes;
+	}
+
+
+	public long getUsedBytes() {
+		synchronized (loaded) {
+			return usedBytes;
+		}
+	}
+
+
+	/**
+	 *
+	 * @return keys of loaded models, least recently used first.
+	 */
+	public List<ModelKey> getLoadedKeys() {
+		synchronized (loaded) {
+			return new ArrayList<>(loaded.keySet());
+		}
+	}
+
+
+	/**
+	 *
+	 * @return count of models being loaded.
+	 */
+	public int getLoadingCount() {
+		return loads.getInFlightCount();
+	}
+
+
+	/**
+	 * Unload every model, leased models once their leases are closed.
+	 */
+	@Override
+	public void close() {
+		List<Entry> toClose = new ArrayList<>();
+		synchronized (loaded) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			for (Entry entry : loaded.values()) {
+				entry.evicted = true;
+				if (entry.leases == 0) {
+					toClose.add(entry);
+				}
+			}
+			loaded.clear();
+			usedBytes = 0;
+		}
+		closeAll(toClose);
+
+		if (ownsLoadExecutor) {
+			loadExecutor.shutdown();
+		}
+		taskExecutor.shutdown();
+	}
+
+
+	static class Entry {
+
+		final ModelKey key;
+
+		final StableDiffusion sd;
+
+		final long bytes;
+
+		/**
+		 * Guarded by loaded.
+		 */
+		int leases;
+
+		/**
+		 * Guarded by loaded.
+		 */
+		boolean evicted;
+
+		private Entry(ModelKey key, StableDiffusion sd, long bytes) {
+			this.key = key;
+			this.sd = sd;
+			this.bytes = bytes;
+		}
+	}
+
+}
@@ -18,6 +18,26 @@ public class Img2ImgParams {
 	public Img2ImgParams() {
 		super();
 	}
+	
+	
+	/**
+	 * 
+	 * @return shallow copy, RGBImage is shared. 
+	 */
+	public Img2ImgParams copy() {
+		Img2ImgParams copy = new Img2ImgParams();
+		copy.RGBImage = RGBImage;
+		copy.prompt = prompt;
+		copy.negative_prompt = negative_prompt;
+		copy.cfg_scale = cfg_scale;
+		copy.width = width;
+		copy.height = height;
+		copy.sample_method = sample_method;
+		copy.sample_steps = sample_steps;
+		copy.strength = strength;
+		copy.seed = seed;
+		return copy;
+	}
 	public byte[] getRGBImage() {
 		return RGBImage;
 	}
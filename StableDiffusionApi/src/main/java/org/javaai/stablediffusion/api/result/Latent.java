@@ -0,0 +1,171 @@
+package org.javaai.stablediffusion.api.result;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * An image in the latent space of a model: channels x (height / 8) x (width / 8) float32 values, in native byte
+ * order, held off heap in a direct buffer. <br>
+ * Latents only make sense to the model which produced them, see {@link #getModelFingerprint()}. <br>
+ * Immutable, thread safe.
+ */
+public class Latent {
+
+	/**
+	 * Pixels per latent value along width and height.
+	 */
+	public static final int VAE_SCALE_FACTOR = 8;
+
+	private final ByteBuffer data;
+
+	private final int width;
+
+	private final int height;
+
+	private final int channels;
+
+	private final String modelFingerprint;
+
+
+	/**
+	 *
+	 * @param data             NotNull, direct buffer of exactly {@link #byteSize(int, int, int)} bytes,
+	 *                         owned by the latent afterwards.
+	 * @param width            width of the image, multiple of 8.
+	 * @param height           height of the image, multiple of 8.
+	 * @param channels         latent channels of the model.
+	 * @param modelFingerprint NotNull, see {@link org.javaai.stablediffusion.api.StableDiffusion#getModelFingerprint()}.
+	 */
+	public Latent(ByteBuffer data, int width, int height, int channels, String modelFingerprint) {
+
+		if (data == null || !data.isDirect()) {
+			throw new IllegalArgumentException("Argument data must be a direct buffer. ");
+		}
+
+		if (modelFingerprint == null) {
+			throw new IllegalArgumentException("Argument modelFingerprint can not be null. ");
+		}
+
+		int size = byteSize(width, height, channels);
+		if (data.capacity() != size) {
+			throw new IllegalArgumentException("Argument data must hold " + size + " bytes: " + data.capacity());
+		}
+
+		ByteBuffer readOnly = data.asReadOnlyBuffer();
+		readOnly.clear();
+		this.data = readOnly;
+		this.width = width;
+		this.height = height;
+		this.channels = channels;
+		this.modelFingerprint = modelFingerprint;
+	}
+
+
+	/**
+	 *
+	 * @param width    width of the image, multiple of 8.
+	 * @param height   height of the image, multiple of 8.
+	 * @param channels latent channels of the model.
+	 * @return bytes of the latent.
+	 */
+	public static int byteSize(int width, int height, int channels) {
+
+		if (width < VAE_SCALE_FACTOR || height < VAE_SCALE_FACTOR
+				|| width % VAE_SCALE_FACTOR != 0 || height % VAE_SCALE_FACTOR != 0) {
+			throw new IllegalArgumentException("Latent image size must be multiples of " + VAE_SCALE_FACTOR + ": "
+					+ width + "x" + height);
+		}
+
+		if (channels < 1) {
+			throw new IllegalArgumentException("Argument channels must be at least 1. ");
+		}
+
+		long size = (long) channels * (width / VAE_SCALE_FACTOR) * (height / VAE_SCALE_FACTOR) * Float.BYTES;
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Latent too large for one buffer: " + width + "x" + height
+					+ " x " + channels);
+		}
+		return (int) size;
+	}
+
+
+	/**
+	 * Bilinear resize in latent space, for upscaling between the passes of a hires fix.
+	 *
+	 * @param newWidth  width of the image, multiple of 8.
+	 * @param newHeight height of the image, multiple of 8.
+	 * @return new latent of the same model.
+	 */
+	public Latent resize(int newWidth, int newHeight) {
+
+		ByteBuffer target = ByteBuffer.allocateDirect(byteSize(newWidth, newHeight, channels))
+				.order(ByteOrder.nativeOrder());
+		FloatBuffer src = getData().asFloatBuffer();
+		FloatBuffer dst = target.asFloatBuffer();
+
+		int sw = width / VAE_SCALE_FACTOR;
+		int sh = height / VAE_SCALE_FACTOR;
+		int dw = newWidth / VAE_SCALE_FACTOR;
+		int dh = newHeight / VAE_SCALE_FACTOR;
+		float scaleX = (float) sw / dw;
+		float scaleY = (float) sh / dh;
+
+		for (int c = 0; c < channels; c ++) {
+			int plane = c * sw * sh;
+			for (int y = 0; y < dh; y ++) {
+				float fy = Math.max(0, (y + 0.5f) * scaleY - 0.5f);
+				int y0 = Math.min((int) fy, sh - 1);
+				int y1 = Math.min(y0 + 1, sh - 1);
+				float wy = fy - y0;
+				for (int x = 0; x < dw; x ++) {
+					float fx = Math.max(0, (x + 0.5f) * scaleX - 0.5f);
+					int x0 = Math.min((int) fx, sw - 1);
+					int x1 = Math.min(x0 + 1, sw - 1);
+					float wx = fx - x0;
+					float top = src.get(plane + y0 * sw + x0) * (1 - wx) + src.get(plane + y0 * sw + x1) * wx;
+					float bottom = src.get(plane + y1 * sw + x0) * (1 - wx) + src.get(plane + y1 * sw + x1) * wx;
+					dst.put((c * dh + y) * dw + x, top * (1 - wy) + bottom * wy);
+				}
+			}
+		}
+
+		return new Latent(target, newWidth, newHeight, channels, modelFingerprint);
+	}
+
+
+	/**
+	 *
+	 * @return read only view of the values in native byte order, from position 0.
+	 */
+	public ByteBuffer getData() {
+		return data.duplicate().order(ByteOrder.nativeOrder());
+	}
+
+
+	public int getByteSize() {
+		return data.capacity();
+	}
+
+
+	public int getWidth() {
+		return width;
+	}
+
+
+	public int getHeight() {
+		return height;
+	}
+
+
+	public int getChannels() {
+		return channels;
+	}
+
+
+	public String getModelFingerprint() {
+		return modelFingerprint;
+	}
+
+
+}
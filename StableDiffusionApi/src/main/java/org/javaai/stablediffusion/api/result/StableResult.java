@@ -1,6 +1,7 @@
 package org.javaai.stablediffusion.api.result;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class StableResult<P, I> {
@@ -25,6 +26,24 @@ public class StableResult<P, I> {
 	public void setResultImages(List<I> resultImages) {
 		this.resultImages = resultImages;
 	}
+	
+	
+	/**
+	 * 
+	 * @param result NotNull
+	 * @return new result with the same params and copies of the pixels. 
+	 */
+	public static <P> StableResult<P, byte[]> copyPixels(StableResult<P, byte[]> result) {
+		List<byte[]> images = new ArrayList<>(result.getResultImages().size());
+		for (byte[] image : result.getResultImages()) {
+			images.add(Arrays.copyOf(image, image.length));
+		}
+		
+		StableResult<P, byte[]> copy = new StableResult<>();
+		copy.setParams(result.getParams());
+		copy.setResultImages(images);
+		return copy;
+	}
 
 
 	
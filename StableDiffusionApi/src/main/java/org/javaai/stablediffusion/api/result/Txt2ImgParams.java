@@ -24,6 +24,21 @@ public class Txt2ImgParams {
 	}
 	
 	
+	public Txt2ImgParams copy() {
+		Txt2ImgParams copy = new Txt2ImgParams();
+		copy.prompt = prompt;
+		copy.negative_prompt = negative_prompt;
+		copy.cfg_scale = cfg_scale;
+		copy.width = width;
+		copy.height = height;
+		copy.sample_method = sample_method;
+		copy.sample_steps = sample_steps;
+		copy.seed = seed;
+		copy.batch_count = batch_count;
+		return copy;
+	}
+	
+	
 	public String getPrompt() {
 		return prompt;
 	}
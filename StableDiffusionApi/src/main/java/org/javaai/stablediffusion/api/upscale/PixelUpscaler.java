@@ -0,0 +1,65 @@
+package org.javaai.stablediffusion.api.upscale;
+
+import java.util.concurrent.TimeUnit;
+
+import org.javaai.stablediffusion.api.StableDiffusionCancelledException;
+import org.javaai.stablediffusion.api.concurrent.LazyComponent;
+import org.javaai.stablediffusion.api.pool.StableDiffusionPool;
+
+/**
+ * Upscales RGB pixels, the unit of work of {@link TiledUpscaler}. Implemented by {@link Upscaler},
+ * {@link #pooled(StableDiffusionPool, long, TimeUnit)} and {@link #lazy(LazyComponent)} adapt the other sources.
+ */
+@FunctionalInterface
+public interface PixelUpscaler {
+
+
+	/**
+	 *
+	 * @param pixelsRGB      NotNull, RGB pixels, width * height * 3 bytes.
+	 * @param width
+	 * @param height
+	 * @param upscale_factor at least 1.
+	 * @return RGB pixels, (width * upscale_factor) * (height * upscale_factor) * 3 bytes.
+	 */
+	public byte[] upscale(byte[] pixelsRGB, int width, int height, int upscale_factor);
+
+
+	/**
+	 * Upscale with an instance borrowed from pool, the instances must be created with an esrgan_path.
+	 *
+	 * @param pool    NotNull
+	 * @param timeout max time to wait for an idle instance.
+	 * @param unit
+	 * @return
+	 */
+	public static PixelUpscaler pooled(StableDiffusionPool pool, long timeout, TimeUnit unit) {
+		if (pool == null) {
+			throw new IllegalArgumentException("Argument pool can not be null. ");
+		}
+		return (pixelsRGB, width, height, upscale_factor) -> {
+			try {
+				return pool.execute(sd -> sd.upscale(pixelsRGB, width, height, upscale_factor), timeout, unit);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new StableDiffusionCancelledException("Interrupted while waiting for an instance. ");
+			}
+		};
+	}
+
+
+	/**
+	 *
+	 * @param upscaler NotNull, loaded on first use.
+	 * @return
+	 */
+	public static PixelUpscaler lazy(LazyComponent<Upscaler> upscaler) {
+		if (upscaler == null) {
+			throw new IllegalArgumentException("Argument upscaler can not be null. ");
+		}
+		return (pixelsRGB, width, height, upscale_factor) -> upscaler
+				.use(u -> u.upscale(pixelsRGB, width, height, upscale_factor));
+	}
+
+
+}
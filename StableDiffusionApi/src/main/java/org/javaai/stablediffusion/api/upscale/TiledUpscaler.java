@@ -0,0 +1,160 @@
+package org.javaai.stablediffusion.api.upscale;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.javaai.stablediffusion.api.SDRequestOptions;
+import org.javaai.stablediffusion.api.concurrent.StableDiffusionExecutors;
+import org.javaai.stablediffusion.api.concurrent.TileScheduler;
+import org.javaai.stablediffusion.api.utils.TileBlender;
+
+/**
+ * Upscales images of any size by tiles. <br>
+ * <br>
+ * The image is split into overlapping tiles of tileSize pixels, see {@link TileBlender}, tiles are upscaled in
+ * parallel by {@link TileScheduler}, one worker per upscaler, and every finished tile is blended into the output
+ * right away. Seams are feathered across overlap pixels. <br>
+ * Thread safe, concurrent calls share the upscalers.
+ *
+ * <pre>
+ * TiledUpscaler upscaler = new TiledUpscaler(Collections.nCopies(pool.getSize(),
+ * 		PixelUpscaler.pooled(pool, 1, TimeUnit.MINUTES)), 256, 32);
+ * byte[] upscaled = upscaler.upscale(pixels, width, height, 4);
+ * </pre>
+ */
+public class TiledUpscaler {
+
+	private final List<PixelUpscaler> upscalers;
+
+	private final int tileSize;
+
+	private final int overlap;
+
+	private volatile ExecutorService executor;
+
+	/**
+	 * One thread per worker besides the calling thread, idle threads time out.
+	 */
+	private final ExecutorService defaultExecutor;
+
+
+	/**
+	 *
+	 * @param upscalers NotNull, one worker per element, an element may repeat if it runs calls in parallel.
+	 * @param tileSize  max width and height of a tile, before upscaling.
+	 * @param overlap   width of the blended seams, at most tileSize / 4.
+	 */
+	public TiledUpscaler(List<? extends PixelUpscaler> upscalers, int tileSize, int overlap) {
+
+		if (upscalers == null || upscalers.isEmpty() || upscalers.contains(null)) {
+			throw new IllegalArgumentException("Argument upscalers can not be empty or contain null. ");
+		}
+
+		if (tileSize < 1 || overlap < 0 || overlap * 4 > tileSize) {
+			throw new IllegalArgumentException("Argument overlap must be between 0 and tileSize / 4, tileSize: "
+					+ tileSize + ", overlap: " + overlap);
+		}
+
+		this.upscalers = new ArrayList<>(upscalers);
+		this.tileSize = tileSize;
+		this.overlap = overlap;
+		this.defaultExecutor = StableDiffusionExecutors.newInferenceExecutor("sd-tiled-upscaler",
+				Math.max(1, upscalers.size() - 1));
+	}
+
+
+	/**
+	 *
+	 * @param executor Nullable, runs the workers besides the calling thread, default is an executor of this
+	 * upscaler with one thread per worker.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+
+	/**
+	 *
+	 * @param pixelsRGB      NotNull, RGB pixels, width * height * 3 bytes.
+	 * @param width
+	 * @param height
+	 * @param upscale_factor at least 1.
+	 * @return RGB pixels, (width * upscale_factor) * (height * upscale_factor) * 3 bytes.
+	 */
+	public byte[] upscale(byte[] pixelsRGB, int width, int height, int upscale_factor) {
+		TileBlender blender = newBlender(pixelsRGB, width, height, upscale_factor);
+		byte[] output = new byte[blender.getOutputCapacity()];
+		run(blender, pixelsRGB, ByteBuffer.wrap(output), null);
+		return output;
+	}
+
+
+	/**
+	 * Upscale into a preallocated buffer, tiles are written as they finish.
+	 *
+	 * @param pixelsRGB      NotNull, RGB pixels, width * height * 3 bytes.
+	 * @param width
+	 * @param height
+	 * @param upscale_factor at least 1.
+	 * @param output         NotNull, (width * upscale_factor) * (height * upscale_factor) * 3 bytes remaining
+	 *                       from its position, position and limit are not changed.
+	 * @param options        Nullable, the cancellation token is checked before every tile, the progress callback
+	 *                       is called after every tile, with the count of finished tiles as step.
+	 * @return NotNull, slice of output holding the upscaled image.
+	 */
+	public ByteBuffer upscale(byte[] pixelsRGB, int width, int height, int upscale_factor, ByteBuffer output,
+			SDRequestOptions options) {
+
+		TileBlender blender = newBlender(pixelsRGB, width, height, upscale_factor);
+		int capacity = blender.getOutputCapacity();
+
+		if (output == null || output.isReadOnly()) {
+			throw new IllegalArgumentException("Argument output can not be null or read only. ");
+		}
+
+		if (output.remaining() < capacity) {
+			throw new IllegalArgumentException("Argument output too small, remaining: " + output.remaining()
+					+ ", required: " + capacity);
+		}
+
+		ByteBuffer target = output.duplicate();
+		target.limit(target.position() + capacity);
+		target = target.slice();
+		run(blender, pixelsRGB, target, options);
+		return target;
+	}
+
+
+	private TileBlender newBlender(byte[] pixelsRGB, int width, int height, int upscale_factor) {
+
+		if (pixelsRGB == null || width < 1 || height < 1 || pixelsRGB.length < width * height * 3) {
+			throw new IllegalArgumentException("Argument pixelsRGB can not be null or shorter than width * height * 3. ");
+		}
+
+		if (upscale_factor < 1) {
+			throw new IllegalArgumentException("Argument upscale_factor must be at least 1. ");
+		}
+
+		return new TileBlender(width, height, tileSize, overlap, upscale_factor);
+	}
+
+
+	private void run(TileBlender blender, byte[] pixelsRGB, ByteBuffer output, SDRequestOptions options) {
+
+		ExecutorService executor = this.executor;
+		if (executor == null) {
+			executor = defaultExecutor;
+		}
+
+		int factor = blender.getScale();
+		List<TileScheduler.TileProcessor> processors = new ArrayList<>(upscalers.size());
+		for (PixelUpscaler upscaler : upscalers) {
+			processors.add((tileRGB, width, height) -> upscaler.upscale(tileRGB, width, height, factor));
+		}
+
+		TileScheduler.run(blender, pixelsRGB, output, processors, executor, options);
+	}
+
+}
@@ -0,0 +1,137 @@
+package org.javaai.stablediffusion.api.upscale;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.javaai.stablediffusion.api.StableDiffusionException;
+import org.javaai.stablediffusion.api.concurrent.LazyComponent;
+import org.javaai.stablediffusion.api.utils.ImageUtils;
+
+/**
+ * ESRGAN upscaler, a native context separate from {@link org.javaai.stablediffusion.api.StableDiffusion},
+ * so it can be loaded only when needed, see {@link #lazy(String, Integer, long, TimeUnit)}. <br>
+ * Thread safe, calls into the same instance are serialized.
+ */
+public class Upscaler implements PixelUpscaler, AutoCloseable {
+
+
+	private Long pointer;
+
+
+	/**
+	 *
+	 * @param esrgan_path NotNull, path to ESRGAN weights, like /opt/models/RealESRGAN_x4plus_anime_6B.pth
+	 * @param n_threads   Nullable, default is -1.
+	 * @throws StableDiffusionException if loading failed, or the loaded sd-jni library can not upscale.
+	 */
+	public Upscaler(String esrgan_path, Integer n_threads) {
+
+		if (StringUtils.isBlank(esrgan_path)) {
+			throw new IllegalArgumentException("Argument esrgan_path can not be empty/blank. ");
+		}
+
+		if (n_threads == null) {
+			n_threads = -1;
+		}
+
+		long ret;
+		try {
+			ret = newUpscaler0(esrgan_path, n_threads);
+		} catch (UnsatisfiedLinkError e) {
+			throw new StableDiffusionException("The loaded sd-jni library does not support ESRGAN upscaling. ", e);
+		}
+
+		if (ret == 0L) {
+			throw new StableDiffusionException("Load upscaler failed! esrgan_path: [" + esrgan_path + "]");
+		}
+
+		pointer = ret;
+	}
+
+
+	/**
+	 * Upscaler loaded on first use and closed after idleTimeout without use.
+	 *
+	 * @param esrgan_path NotNull
+	 * @param n_threads   Nullable, default is -1.
+	 * @param idleTimeout
+	 * @param unit
+	 * @return
+	 */
+	public static LazyComponent<Upscaler> lazy(String esrgan_path, Integer n_threads, long idleTimeout, TimeUnit unit) {
+		if (StringUtils.isBlank(esrgan_path)) {
+			throw new IllegalArgumentException("Argument esrgan_path can not be empty/blank. ");
+		}
+		return new LazyComponent<>("ESRGAN upscaler " + esrgan_path, () -> new Upscaler(esrgan_path, n_threads),
+				idleTimeout, unit);
+	}
+
+
+	protected static native long newUpscaler0(String esrgan_path, int n_threads);
+
+
+	protected static native void deleteUpscaler0(long pointer);
+
+
+	protected static native byte[] upscale0(long pointer, byte[] pixelsRGB, int width, int height, int upscale_factor);
+
+
+	/**
+	 *
+	 * @param pixelsRGB      NotNull, RGB pixels, width * height * 3 bytes.
+	 * @param width
+	 * @param height
+	 * @param upscale_factor at least 1.
+	 * @return RGB pixels, (width * upscale_factor) * (height * upscale_factor) * 3 bytes.
+	 */
+	@Override
+	public synchronized byte[] upscale(byte[] pixelsRGB, int width, int height, int upscale_factor) {
+
+		if (pixelsRGB == null || pixelsRGB.length < width * height * 3) {
+			throw new IllegalArgumentException("Argument pixelsRGB can not be null or shorter than width * height * 3. ");
+		}
+
+		if (upscale_factor < 1) {
+			throw new IllegalArgumentException("Argument upscale_factor must be at least 1. ");
+		}
+
+		byte[] result = upscale0(checkPointer(), pixelsRGB, width, height, upscale_factor);
+		if (result == null) {
+			throw new StableDiffusionException("Upscale failed! size: [" + width + "x" + height + "] "
+					+ "upscale_factor: [" + upscale_factor + "]");
+		}
+		return result;
+	}
+
+
+	/**
+	 *
+	 * @param img            NotNull
+	 * @param upscale_factor at least 1.
+	 * @return {@link BufferedImage#TYPE_3BYTE_BGR} image.
+	 */
+	public BufferedImage upscale(BufferedImage img, int upscale_factor) {
+		byte[] pixels = upscale(ImageUtils.imageToPixelsRGB(img, null), img.getWidth(), img.getHeight(), upscale_factor);
+		return ImageUtils.pixelsRGBToBGRImage(pixels, img.getWidth() * upscale_factor, img.getHeight() * upscale_factor);
+	}
+
+
+	private long checkPointer() {
+		if (pointer == null) {
+			throw new StableDiffusionException("Upscaler already closed. ");
+		}
+		return pointer;
+	}
+
+
+	@Override
+	public synchronized void close() {
+		if (pointer == null) {
+			return;
+		}
+		deleteUpscaler0(pointer);
+		pointer = null;
+	}
+
+}
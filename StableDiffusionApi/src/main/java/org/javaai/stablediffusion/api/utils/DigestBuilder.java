@@ -0,0 +1,150 @@
+package org.javaai.stablediffusion.api.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Canonical SHA-256 of a sequence of values, every value is written with its type and length, 
+ * so different sequences never collide by concatenation. 
+ */
+public class DigestBuilder {
+	
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	private final MessageDigest digest = newSha256();
+	
+	
+	
+	public DigestBuilder add(String value) {
+		if (value == null) {
+			digest.update((byte) 0);
+			return this;
+		}
+		digest.update((byte) 's');
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		addLength(bytes.length);
+		digest.update(bytes);
+		return this;
+	}
+	
+	
+	public DigestBuilder add(Number value) {
+		if (value == null) {
+			digest.update((byte) 0);
+			return this;
+		}
+		if (value instanceof Float || value instanceof Double) {
+			return add("f" + Double.doubleToLongBits(value.doubleValue()));
+		}
+		return add("n" + value.longValue());
+	}
+	
+	
+	public DigestBuilder add(Boolean value) {
+		return add(value == null ? null : value.toString());
+	}
+	
+	
+	public DigestBuilder add(byte[] value) {
+		if (value == null) {
+			digest.update((byte) 0);
+			return this;
+		}
+		digest.update((byte) 'b');
+		addLength(value.length);
+		digest.update(value);
+		return this;
+	}
+	
+	
+	/**
+	 * Identity of a file without reading it: absolute path, size and last modified time. 
+	 * 
+	 * @param path Nullable or empty for no file. 
+	 */
+	public DigestBuilder addFileIdentity(String path) {
+		if (path == null || path.isEmpty()) {
+			return add((String) null);
+		}
+		File file = new File(path).getAbsoluteFile();
+		add(file.getPath());
+		add(file.length());
+		add(file.lastModified());
+		return this;
+	}
+	
+	
+	private void addLength(int length) {
+		digest.update((byte) (length >>> 24));
+		digest.update((byte) (length >>> 16));
+		digest.update((byte) (length >>> 8));
+		digest.update((byte) length);
+	}
+	
+	
+	/**
+	 * 
+	 * @return lower case hex of the digest, this builder can not be used afterwards. 
+	 */
+	public String build() {
+		return toHex(digest.digest());
+	}
+	
+	
+	/**
+	 * 
+	 * @return lower case hex SHA-256 of the file content. 
+	 * @throws IOException
+	 */
+	public static String sha256(Path file) throws IOException {
+		try (InputStream in = Files.newInputStream(file)) {
+			return sha256(in);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * @param in NotNull, read to the end, not closed. 
+	 * @return lower case hex SHA-256 of the stream content. 
+	 * @throws IOException
+	 */
+	public static String sha256(InputStream in) throws IOException {
+		MessageDigest digest = newSha256();
+		byte[] buffer = new byte[1 << 16];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			digest.update(buffer, 0, read);
+		}
+		return toHex(digest.digest());
+	}
+	
+	
+	public static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i ++) {
+			chars[i * 2] = HEX[(bytes[i] >>> 4) & 0xF];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
+	
+	
+	static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every java platform must support SHA-256. 
+			throw new IllegalStateException(e);
+		}
+	}
+	
+
+}
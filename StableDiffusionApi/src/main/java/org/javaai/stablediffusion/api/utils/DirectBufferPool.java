@@ -0,0 +1,103 @@
+package org.javaai.stablediffusion.api.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small arena of reusable direct {@link ByteBuffer}s, to receive native
+ * pixels without allocating a new buffer for every request. <br>
+ * Thread safe.
+ */
+public class DirectBufferPool {
+
+	private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+
+	private final AtomicInteger pooledCount = new AtomicInteger();
+
+	private final int maxPooled;
+
+	/**
+	 * 
+	 * @param maxPooled max count of idle buffers kept by this pool, buffers
+	 *                  released over this count are dropped.
+	 */
+	public DirectBufferPool(int maxPooled) {
+		if (maxPooled < 0) {
+			throw new IllegalArgumentException("Argument maxPooled can not be negative. ");
+		}
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Bytes needed to hold batch_count RGB images.
+	 * 
+	 * @param width
+	 * @param height
+	 * @param batch_count
+	 * @return
+	 */
+	public static int rgbCapacity(int width, int height, int batch_count) {
+		long capacity = (long) width * height * 3 * batch_count;
+		if (capacity > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Images too large for one buffer: " + width + "x" + height
+					+ " x " + batch_count);
+		}
+		return (int) capacity;
+	}
+
+	/**
+	 * 
+	 * @param capacity min capacity in bytes.
+	 * @return a cleared direct buffer, its capacity may be larger than requested,
+	 *         limit is set to requested capacity.
+	 */
+	public ByteBuffer acquire(int capacity) {
+		synchronized (freeBuffers) {
+			Iterator<ByteBuffer> it = freeBuffers.iterator();
+			while (it.hasNext()) {
+				ByteBuffer buffer = it.next();
+				if (buffer.capacity() >= capacity) {
+					// Remove by identity, ByteBuffer.equals compares the remaining bytes.
+					it.remove();
+					pooledCount.decrementAndGet();
+					buffer.clear();
+					buffer.limit(capacity);
+					return buffer;
+				}
+			}
+		}
+
+		return ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * Give the buffer back to this pool, caller must not touch the buffer
+	 * afterwards.
+	 * 
+	 * @param buffer Nullable, direct buffer acquired from this pool.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+		synchronized (freeBuffers) {
+			if (freeBuffers.size() >= maxPooled) {
+				return;
+			}
+			for (ByteBuffer pooled : freeBuffers) {
+				if (pooled == buffer) {
+					return;
+				}
+			}
+			freeBuffers.addFirst(buffer);
+			pooledCount.incrementAndGet();
+		}
+	}
+
+	public int getPooledCount() {
+		return pooledCount.get();
+	}
+
+}
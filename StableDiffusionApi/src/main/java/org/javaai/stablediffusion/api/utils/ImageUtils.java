@@ -1,92 +1,304 @@
 package org.javaai.stablediffusion.api.utils;
 
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
 import java.util.Arrays;
 
 public class ImageUtils {
-	
-	
+
+
+	private static final int[] RGB_BAND_OFFSETS = { 0, 1, 2 };
+
+	private static final int[] BGR_BAND_OFFSETS = { 2, 1, 0 };
+
+
+	/**
+	 *
+	 * @param imgBytes NotNull, BGR pixels, copied into the new image.
+	 * @param width
+	 * @param height
+	 * @return {@link BufferedImage#TYPE_3BYTE_BGR} image.
+	 */
 	public static BufferedImage pixelsBGRToImage(byte[] imgBytes, int width, int height) {
 
-		BufferedImage img=new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-		
-		int countPixels = imgBytes.length / 3;
-		
-		int[] raw = new int[countPixels];
-		for (int index = 0; index < countPixels; index++) {
-		    raw[index] = 0xFF000000 | // alpha
-		        ((imgBytes[3 * index + 2] & 0xFF) << 16) | // red
-		        ((imgBytes[3 * index + 1] & 0xFF) << 8) | // green 
-		        ((imgBytes[3 * index + 0] & 0xFF)); // blue
-		}
-		img.setRGB(0, 0, width, height, raw, 0, width);
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+
+		byte[] data = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+		System.arraycopy(imgBytes, 0, data, 0, Math.min(data.length, imgBytes.length));
+
 		return img;
 	}
-	
 
-	
+
+	/**
+	 * Wrap native RGB pixels into an image without copying, the image is backed by imgBytes.
+	 *
+	 * @param imgBytes NotNull, RGB pixels, length must be width * height * 3.
+	 * @param width
+	 * @param height
+	 * @return {@link BufferedImage#TYPE_CUSTOM} image with RGB interleaved raster.
+	 */
+	public static BufferedImage pixelsRGBToImage(byte[] imgBytes, int width, int height) {
+		return wrapPixels(imgBytes, width, height, RGB_BAND_OFFSETS);
+	}
+
+
+	/**
+	 * Swap Red channel and Blue channel of native RGB pixels in place, then wrap them into an image without copying,
+	 * the image is backed by imgBytes.
+	 *
+	 * @param imgBytes NotNull, RGB pixels, length must be width * height * 3, content is changed to BGR.
+	 * @param width
+	 * @param height
+	 * @return {@link BufferedImage#TYPE_3BYTE_BGR} image.
+	 */
+	public static BufferedImage pixelsRGBToBGRImage(byte[] imgBytes, int width, int height) {
+		reverseRGBInPlace(imgBytes);
+		return wrapPixels(imgBytes, width, height, BGR_BAND_OFFSETS);
+	}
+
+
+	private static BufferedImage wrapPixels(byte[] imgBytes, int width, int height, int[] bandOffsets) {
+
+		if (imgBytes.length < width * height * 3) {
+			throw new IllegalArgumentException("Pixels too short for image " + width + "x" + height
+					+ ": " + imgBytes.length);
+		}
+
+		ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+				false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+
+		DataBufferByte dataBuffer = new DataBufferByte(imgBytes, imgBytes.length);
+		WritableRaster raster = Raster.createWritableRaster(
+				new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width, height, 3, width * 3, bandOffsets),
+				dataBuffer, null);
+
+		// BufferedImage detects TYPE_3BYTE_BGR from the band offsets, which keeps Java2D on its fast loops.
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+
+
+	/**
+	 *
+	 * @param image NotNull
+	 * @return BGR pixels, width * height * 3 bytes.
+	 */
 	public static byte[] imageToPixelsBGR(BufferedImage image) {
-		
-		DataBufferByte dataBufferByte = ((DataBufferByte) image.getRaster().getDataBuffer());
-	    byte[] pixelData = dataBufferByte.getData();
-		
-		WritableRaster alphaRaster = image.getAlphaRaster();
-		int countChannels = 3;
-		if (alphaRaster != null) {
-			countChannels = 4;
+		return imageToPixels(image, null, true);
+	}
+
+
+	/**
+	 *
+	 * @param image NotNull
+	 * @param reuse Nullable, returned if its length is at least width * height * 3, otherwise a new array is allocated.
+	 * @return BGR pixels.
+	 */
+	public static byte[] imageToPixelsBGR(BufferedImage image, byte[] reuse) {
+		return imageToPixels(image, reuse, true);
+	}
+
+
+	/**
+	 *
+	 * @param image NotNull
+	 * @param reuse Nullable, returned if its length is at least width * height * 3, otherwise a new array is allocated.
+	 * @return RGB pixels.
+	 */
+	public static byte[] imageToPixelsRGB(BufferedImage image, byte[] reuse) {
+		return imageToPixels(image, reuse, false);
+	}
+
+
+	/**
+	 * Single pass conversion, with fast paths for byte interleaved images ({@link BufferedImage#TYPE_3BYTE_BGR},
+	 * {@link BufferedImage#TYPE_4BYTE_ABGR}...) and int packed images ({@link BufferedImage#TYPE_INT_RGB},
+	 * {@link BufferedImage#TYPE_INT_ARGB}...), other images go through {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}
+	 * one row at a time. Alpha channel is dropped.
+	 */
+	private static byte[] imageToPixels(BufferedImage image, byte[] reuse, boolean bgr) {
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int length = width * height * 3;
+
+		byte[] results = reuse;
+		if (results == null || results.length < length) {
+			results = new byte[length];
 		}
-		
-		int rgbStartIndex = 0;
-		if (alphaRaster != null) {
-			rgbStartIndex = 1;
+
+		int first = bgr ? 2 : 0;
+		int third = bgr ? 0 : 2;
+
+		WritableRaster raster = image.getRaster();
+		ColorModel colorModel = image.getColorModel();
+		DataBuffer dataBuffer = raster.getDataBuffer();
+		int translateX = raster.getSampleModelTranslateX();
+		int translateY = raster.getSampleModelTranslateY();
+
+		if (dataBuffer instanceof DataBufferByte
+				&& raster.getSampleModel() instanceof ComponentSampleModel
+				&& colorModel instanceof ComponentColorModel
+				&& colorModel.getColorSpace().isCS_sRGB()
+				&& !colorModel.isAlphaPremultiplied()
+				&& raster.getNumBands() >= 3) {
+
+			ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+			byte[] data = ((DataBufferByte) dataBuffer).getData();
+			int[] bankIndices = sampleModel.getBankIndices();
+			if (bankIndices[0] == 0 && bankIndices[1] == 0 && bankIndices[2] == 0) {
+
+				int[] bandOffsets = sampleModel.getBandOffsets();
+				int pixelStride = sampleModel.getPixelStride();
+				int scanlineStride = sampleModel.getScanlineStride();
+				int rOffset = bandOffsets[0];
+				int gOffset = bandOffsets[1];
+				int bOffset = bandOffsets[2];
+
+				int pos = 0;
+				for (int row = 0; row < height; row ++) {
+					int src = dataBuffer.getOffset() + (row - translateY) * scanlineStride - translateX * pixelStride;
+					for (int col = 0; col < width; col ++, src += pixelStride, pos += 3) {
+						results[pos + first] = data[src + rOffset];
+						results[pos + 1] = data[src + gOffset];
+						results[pos + third] = data[src + bOffset];
+					}
+				}
+
+				return results;
+			}
+		}
+
+		if (dataBuffer instanceof DataBufferInt
+				&& raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+				&& colorModel instanceof DirectColorModel
+				&& colorModel.getColorSpace().isCS_sRGB()
+				&& !colorModel.isAlphaPremultiplied()) {
+
+			DirectColorModel directColorModel = (DirectColorModel) colorModel;
+			if (is8BitMask(directColorModel.getRedMask())
+					&& is8BitMask(directColorModel.getGreenMask())
+					&& is8BitMask(directColorModel.getBlueMask())) {
+
+				SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+				int[] data = ((DataBufferInt) dataBuffer).getData();
+				int scanlineStride = sampleModel.getScanlineStride();
+				int rShift = Integer.numberOfTrailingZeros(directColorModel.getRedMask());
+				int gShift = Integer.numberOfTrailingZeros(directColorModel.getGreenMask());
+				int bShift = Integer.numberOfTrailingZeros(directColorModel.getBlueMask());
+
+				int pos = 0;
+				for (int row = 0; row < height; row ++) {
+					int src = dataBuffer.getOffset() + (row - translateY) * scanlineStride - translateX;
+					for (int col = 0; col < width; col ++, src ++, pos += 3) {
+						int pixel = data[src];
+						results[pos + first] = (byte) (pixel >>> rShift);
+						results[pos + 1] = (byte) (pixel >>> gShift);
+						results[pos + third] = (byte) (pixel >>> bShift);
+					}
+				}
+
+				return results;
+			}
 		}
-		
-		byte[] results = new byte[image.getWidth() * image.getHeight() * countChannels];
-		
-		for (int row = 0; row < image.getHeight(); row ++) {
-			for (int col = 0; col < image.getWidth(); col ++) {
-				int resultPixelPos = row * image.getWidth() * 3 + col * 3;
-				
-				int rawPixelPos = row * image.getWidth() * countChannels + col * countChannels;
-				
-				byte b = pixelData[rawPixelPos + rgbStartIndex + 0];
-				byte g = pixelData[rawPixelPos + rgbStartIndex + 1];
-				byte r = pixelData[rawPixelPos + rgbStartIndex + 2];
-				
-				results[resultPixelPos + 0] = b;
-				results[resultPixelPos + 1] = g;
-				results[resultPixelPos + 2] = r;
-				
-				
+
+		int[] rowPixels = new int[width];
+		int pos = 0;
+		for (int row = 0; row < height; row ++) {
+			image.getRGB(0, row, width, 1, rowPixels, 0, width);
+			for (int col = 0; col < width; col ++, pos += 3) {
+				int pixel = rowPixels[col];
+				results[pos + first] = (byte) (pixel >>> 16);
+				results[pos + 1] = (byte) (pixel >>> 8);
+				results[pos + third] = (byte) pixel;
 			}
 		}
-		
-	    
-	    return results;
+
+		return results;
+	}
+
+
+	private static boolean is8BitMask(int mask) {
+		return mask != 0 && Integer.bitCount(mask) == 8
+				&& (mask >>> Integer.numberOfTrailingZeros(mask)) == 0xFF;
+	}
+
+
+	/**
+	 * Bicubic resize of RGB pixels.
+	 *
+	 * @param imgBytes NotNull, RGB pixels, width * height * 3 bytes.
+	 * @param width
+	 * @param height
+	 * @param newWidth
+	 * @param newHeight
+	 * @return RGB pixels, newWidth * newHeight * 3 bytes.
+	 */
+	public static byte[] resizeRGB(byte[] imgBytes, int width, int height, int newWidth, int newHeight) {
+
+		BufferedImage source = pixelsRGBToImage(imgBytes, width, height);
+		BufferedImage target = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_3BYTE_BGR);
+
+		Graphics2D g = target.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+			g.drawImage(source, 0, 0, newWidth, newHeight, null);
+		} finally {
+			g.dispose();
+		}
+
+		return imageToPixelsRGB(target, null);
 	}
-	
-	
+
+
 	/**
-	 * swap Red channel and Blue channel. 
+	 * swap Red channel and Blue channel.
 	 * @param data
 	 * @return
 	 */
 	public static byte[] reverseRGB(byte[] data) {
-		
+
 		byte[] results = Arrays.copyOf(data, data.length);
-		int pixels = data.length / 3;
-		for (int i = 0; i < pixels; i ++) {
-			results[i * 3 + 0] = data[i * 3 + 2];
-			results[i * 3 + 2] = data[i * 3 + 0];
-		}
-		
+		reverseRGBInPlace(results);
+
 		return results;
 	}
-	
-	
-	
-	
+
+
+	/**
+	 * swap Red channel and Blue channel in place, without copying.
+	 * @param data
+	 * @return data
+	 */
+	public static byte[] reverseRGBInPlace(byte[] data) {
+
+		int end = data.length - data.length % 3;
+		for (int i = 0; i < end; i += 3) {
+			byte tmp = data[i];
+			data[i] = data[i + 2];
+			data[i + 2] = tmp;
+		}
+
+		return data;
+	}
+
+
+
+
 
 }
@@ -0,0 +1,231 @@
+package org.javaai.stablediffusion.api.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits an RGB image into overlapping tiles, and blends processed tiles back into one output image. <br>
+ * <br>
+ * Tiles are spread evenly so that neighbours overlap by at least overlap pixels. Every seam is feathered by a
+ * linear ramp of overlap pixels centered in the overlapping area, the ramps of the two sides of a seam sum to 1,
+ * so each output pixel is the weighted sum of the tiles covering it, whatever order the tiles are blended in.
+ * The pixels of a tile near its edge, outside the ramp, are not used, they only give context to the processing. <br>
+ * Processed tiles may be scaled, by the same factor for every tile.
+ */
+public class TileBlender {
+
+	private final int width;
+
+	private final int height;
+
+	private final int scale;
+
+	private final int[] xStarts;
+
+	private final int[] yStarts;
+
+	private final int tileWidth;
+
+	private final int tileHeight;
+
+	/**
+	 * Weights of every column of the scaled tiles, one array per tile column.
+	 */
+	private final float[][] xWeights;
+
+	private final float[][] yWeights;
+
+
+	/**
+	 *
+	 * @param width    width of the image.
+	 * @param height   height of the image.
+	 * @param tileSize max width and height of a tile.
+	 * @param overlap  width of the seam ramps, at most tileSize / 4.
+	 * @param scale    factor of processed tiles, at least 1.
+	 */
+	public TileBlender(int width, int height, int tileSize, int overlap, int scale) {
+
+		if (width < 1 || height < 1) {
+			throw new IllegalArgumentException("Image size must be at least 1x1: " + width + "x" + height);
+		}
+
+		if (tileSize < 1 || overlap < 0 || overlap * 4 > tileSize) {
+			throw new IllegalArgumentException("Argument overlap must be between 0 and tileSize / 4, tileSize: "
+					+ tileSize + ", overlap: " + overlap);
+		}
+
+		if (scale < 1) {
+			throw new IllegalArgumentException("Argument scale must be at least 1. ");
+		}
+
+		this.width = width;
+		this.height = height;
+		this.scale = scale;
+		this.tileWidth = Math.min(tileSize, width);
+		this.tileHeight = Math.min(tileSize, height);
+		this.xStarts = starts(width, tileWidth, overlap);
+		this.yStarts = starts(height, tileHeight, overlap);
+		this.xWeights = weights(xStarts, tileWidth, overlap, scale);
+		this.yWeights = weights(yStarts, tileHeight, overlap, scale);
+	}
+
+
+	private static int[] starts(int length, int tile, int overlap) {
+		if (length <= tile) {
+			return new int[] { 0 };
+		}
+
+		int count = (length - overlap + tile - overlap - 1) / (tile - overlap);
+		count = Math.max(2, count);
+		int[] starts = new int[count];
+		for (int i = 0; i < count; i ++) {
+			starts[i] = (int) Math.round((double) i * (length - tile) / (count - 1));
+		}
+		return starts;
+	}
+
+
+	private static float[][] weights(int[] starts, int tile, int overlap, int scale) {
+		float[][] weights = new float[starts.length][tile * scale];
+		double half = overlap * scale / 2.0;
+
+		for (int i = 0; i < starts.length; i ++) {
+			for (int x = 0; x < tile * scale; x ++) {
+				double position = starts[i] * scale + x + 0.5;
+				double weight = 1;
+				if (i > 0) {
+					double seam = (starts[i] + starts[i - 1] + tile) * scale / 2.0;
+					weight *= ramp(position, seam, half);
+				}
+				if (i < starts.length - 1) {
+					double seam = (starts[i + 1] + starts[i] + tile) * scale / 2.0;
+					weight *= 1 - ramp(position, seam, half);
+				}
+				weights[i][x] = (float) weight;
+			}
+		}
+		return weights;
+	}
+
+
+	/**
+	 * 0 before the band around seam, 1 after it, linear inside.
+	 */
+	private static double ramp(double position, double seam, double half) {
+		if (half <= 0) {
+			return position >= seam ? 1 : 0;
+		}
+		return Math.max(0, Math.min(1, (position - seam + half) / (2 * half)));
+	}
+
+
+	public int getTileCount() {
+		return xStarts.length * yStarts.length;
+	}
+
+
+	public int getTileX(int tile) {
+		return xStarts[tile % xStarts.length];
+	}
+
+
+	public int getTileY(int tile) {
+		return yStarts[tile / xStarts.length];
+	}
+
+
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+
+	public int getScale() {
+		return scale;
+	}
+
+
+	/**
+	 *
+	 * @return bytes of the blended RGB output, width * height * scale * scale * 3.
+	 */
+	public int getOutputCapacity() {
+		return DirectBufferPool.rgbCapacity(width * scale, height * scale, 1);
+	}
+
+
+	/**
+	 *
+	 * @param pixelsRGB NotNull, RGB pixels of the whole image.
+	 * @param tile      index of the tile.
+	 * @return RGB pixels of the tile, getTileWidth() * getTileHeight() * 3 bytes.
+	 */
+	public byte[] crop(byte[] pixelsRGB, int tile) {
+		int x0 = getTileX(tile);
+		int y0 = getTileY(tile);
+		int rowBytes = tileWidth * 3;
+		byte[] cropped = new byte[rowBytes * tileHeight];
+		for (int row = 0; row < tileHeight; row ++) {
+			System.arraycopy(pixelsRGB, ((y0 + row) * width + x0) * 3, cropped, row * rowBytes, rowBytes);
+		}
+		return cropped;
+	}
+
+
+	/**
+	 * Add a processed tile to output. Output must be zero filled before the first tile. Not thread safe,
+	 * blends of tiles sharing a seam must not run concurrently.
+	 *
+	 * @param processedRGB NotNull, RGB pixels of the processed tile, getTileWidth() * scale by getTileHeight() * scale.
+	 * @param tile         index of the tile.
+	 * @param output       NotNull, RGB pixels of the blended image, getOutputCapacity() bytes from offset.
+	 * @param offset       position of the blended image in output.
+	 */
+	public void blend(byte[] processedRGB, int tile, ByteBuffer output, int offset) {
+
+		int tw = tileWidth * scale;
+		int th = tileHeight * scale;
+		if (processedRGB.length < tw * th * 3) {
+			throw new IllegalArgumentException("Processed tile too short for " + tw + "x" + th + ": "
+					+ processedRGB.length);
+		}
+
+		int column = tile % xStarts.length;
+		int row = tile / xStarts.length;
+		float[] xw = xWeights[column];
+		float[] yw = yWeights[row];
+		int outWidth = width * scale;
+		int x0 = xStarts[column] * scale;
+		int y0 = yStarts[row] * scale;
+
+		for (int y = 0; y < th; y ++) {
+			float wy = yw[y];
+			if (wy <= 0) {
+				continue;
+			}
+			int src = y * tw * 3;
+			int dst = offset + ((y0 + y) * outWidth + x0) * 3;
+			for (int x = 0; x < tw; x ++, src += 3, dst += 3) {
+				float w = wy * xw[x];
+				if (w <= 0) {
+					continue;
+				}
+				if (w >= 1) {
+					output.put(dst, processedRGB[src]);
+					output.put(dst + 1, processedRGB[src + 1]);
+					output.put(dst + 2, processedRGB[src + 2]);
+					continue;
+				}
+				for (int c = 0; c < 3; c ++) {
+					int value = Math.round((output.get(dst + c) & 0xFF) + w * (processedRGB[src + c] & 0xFF));
+					output.put(dst + c, (byte) Math.min(255, value));
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+package org.javaai.stablediffusion.api.pool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Drives {@link PoolRebalancer#rebalance()} with simulated pools, a manual clock and synthetic traffic.
+ */
+public class PoolRebalancerTest {
+
+	private static final long ROUND_MILLIS = 5_000L;
+
+	private final AtomicLong clock = new AtomicLong();
+
+
+	/**
+	 * Pool of a model, grows and shrinks right away, traffic is set per round.
+	 */
+	private static class SimulatedPool implements ModelCapacity {
+
+		private int size;
+
+		private int waiting;
+
+		private SimulatedPool(int size) {
+			this.size = size;
+		}
+
+		@Override
+		public int getSize() {
+			return size;
+		}
+
+		@Override
+		public int getIdleCount() {
+			return waiting > 0 ? 0 : size;
+		}
+
+		@Override
+		public int getWaitingCount() {
+			return waiting;
+		}
+
+		@Override
+		public long getTotalWaitNanos() {
+			return 0;
+		}
+
+		@Override
+		public long getTotalBorrowCount() {
+			return 0;
+		}
+
+		@Override
+		public void grow() {
+			size ++;
+		}
+
+		@Override
+		public boolean shrink() {
+			if (size <= 1) {
+				return false;
+			}
+			size --;
+			return true;
+		}
+	}
+
+
+	private PoolRebalancer<String> newRebalancer(Map<String, SimulatedPool> pools, int maxTotalSize) {
+		PoolRebalancer<String> rebalancer = new PoolRebalancer<>(pools, maxTotalSize, Runnable::run, clock::get);
+		rebalancer.setHotRounds(3);
+		rebalancer.setColdRounds(4);
+		rebalancer.setCooldownMillis(60_000L);
+		return rebalancer;
+	}
+
+
+	/**
+	 * One round per element of trace, the element is the count of queued requests of pool.
+	 *
+	 * @return actions of every round.
+	 */
+	private int[] replay(PoolRebalancer<String> rebalancer, SimulatedPool pool, int... trace) {
+		int[] actions = new int[trace.length];
+		for (int i = 0; i < trace.length; i ++) {
+			pool.waiting = trace[i];
+			clock.addAndGet(ROUND_MILLIS);
+			actions[i] = rebalancer.rebalance().size();
+		}
+		return actions;
+	}
+
+
+	@Test
+	public void growsOnlyAfterConsecutiveHotRounds() {
+		SimulatedPool pool = new SimulatedPool(1);
+		Map<String, SimulatedPool> pools = new LinkedHashMap<>();
+		pools.put("a", pool);
+		PoolRebalancer<String> rebalancer = newRebalancer(pools, 4);
+
+		// A burst of two rounds is absorbed, the quiet round resets the streak.
+		replay(rebalancer, pool, 2, 2, 0, 2, 2);
+		assertEquals(1, pool.getSize());
+
+		pool.waiting = 2;
+		clock.addAndGet(ROUND_MILLIS);
+		List<RebalanceAction<String>> actions = rebalancer.rebalance();
+		assertEquals(1, actions.size());
+		assertEquals(RebalanceAction.Type.GROW, actions.get(0).getType());
+		assertEquals("a", actions.get(0).getModel());
+		assertEquals(2, pool.getSize());
+	}
+
+
+	@Test
+	public void waitsForCooldownBetweenChanges() {
+		SimulatedPool pool = new SimulatedPool(1);
+		Map<String, SimulatedPool> pools = new LinkedHashMap<>();
+		pools.put("a", pool);
+		PoolRebalancer<String> rebalancer = newRebalancer(pools, 8);
+
+		replay(rebalancer, pool, 5, 5, 5);
+		assertEquals(2, pool.getSize());
+		long grownAt = clock.get();
+
+		// Still hot, but within the cooldown of the last change.
+		while (clock.get() + ROUND_MILLIS - grownAt < 60_000L) {
+			replay(rebalancer, pool, 5);
+			assertEquals(2, pool.getSize());
+		}
+
+		replay(rebalancer, pool, 5);
+		assertEquals(3, pool.getSize());
+	}
+
+
+	@Test
+	public void keepsMinSizeOfIdleModels() {
+		SimulatedPool pool = new SimulatedPool(3);
+		Map<String, SimulatedPool> pools = new LinkedHashMap<>();
+		pools.put("a", pool);
+		PoolRebalancer<String> rebalancer = newRebalancer(pools, 4);
+		rebalancer.setMinSize(2);
+		rebalancer.setCooldownMillis(0L);
+
+		// Cold for coldRounds rounds retires one instance, then minSize holds.
+		int[] actions = replay(rebalancer, pool, 0, 0, 0, 0);
+		assertEquals(1, actions[3]);
+		assertEquals(2, pool.getSize());
+
+		replay(rebalancer, pool, new int[40]);
+		assertEquals(2, pool.getSize());
+	}
+
+
+	@Test
+	public void coldModelDonatesToHotModelAtMaxTotalSize() {
+		SimulatedPool hot = new SimulatedPool(1);
+		SimulatedPool cold = new SimulatedPool(3);
+		Map<String, SimulatedPool> pools = new LinkedHashMap<>();
+		pools.put("hot", hot);
+		pools.put("cold", cold);
+		PoolRebalancer<String> rebalancer = newRebalancer(pools, 4);
+
+		List<RebalanceAction<String>> actions = null;
+		for (int round = 0; round < 3; round ++) {
+			hot.waiting = 3;
+			cold.waiting = 0;
+			clock.addAndGet(ROUND_MILLIS);
+			actions = rebalancer.rebalance();
+		}
+
+		assertEquals(2, actions.size());
+		assertEquals(RebalanceAction.Type.SHRINK, actions.get(0).getType());
+		assertEquals("cold", actions.get(0).getModel());
+		assertTrue(actions.get(0).getReason().contains("hot"));
+		assertEquals(RebalanceAction.Type.GROW, actions.get(1).getType());
+		assertEquals("hot", actions.get(1).getModel());
+		assertEquals(2, hot.getSize());
+		assertEquals(2, cold.getSize());
+		assertEquals(4, hot.getSize() + cold.getSize());
+	}
+
+}